@@ -0,0 +1,297 @@
+package customnode;
+
+import ij3d.SwapWriter;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import javax.vecmath.Color3f;
+import javax.vecmath.Point3f;
+
+/**
+ * Writes CustomMeshes in a compact binary format, which BinaryMeshLoader
+ * reads back by memory-mapping the vertex coordinates instead of
+ * parsing them.
+ *
+ * All numbers are little-endian. A mesh file consists of MAGIC, VERSION
+ * and the number of meshes, followed by the meshes. Each mesh consists of
+ * its name, its type (one of the TYPE_ constants), its color,
+ * transparency, shading and point size or line width, followed by the
+ * number of vertices and their float32 coordinates, which start at a
+ * multiple of 8 bytes. Indexed triangle meshes are followed by the number
+ * of indices and the int32 indices. Strings are stored as their number of
+ * bytes followed by their UTF-8 encoding.
+ *
+ * Besides writing whole mesh files, an exporter can be used to embed
+ * meshes in other files, see ij3d.SaveSession. Swap files, which hold
+ * only the vertex data of a single mesh, start with SWAP_MAGIC and
+ * VERSION instead, followed by the coordinates and the vertex colors,
+ * each stored like the coordinates of a mesh.
+ */
+public class BinaryMeshExporter {
+
+	public static final int MAGIC = 0x4d443349; // "I3DM"
+	public static final int VERSION = 1;
+
+	/** Magic number of swap files, see saveSwap() */
+	public static final int SWAP_MAGIC = 0x43443349; // "I3DC"
+
+	/** Extension of mesh files in this format */
+	public static final String EXTENSION = ".bmesh";
+
+	static final int TYPE_TRIANGLES = 0;
+	static final int TYPE_QUADS = 1;
+	static final int TYPE_POINTS = 2;
+	static final int TYPE_LINES_PAIRWISE = 3;
+	static final int TYPE_LINES_CONTINUOUS = 4;
+	static final int TYPE_INDEXED_TRIANGLES = 5;
+
+	/** Alignment of the vertex coordinates in the file */
+	static final int ALIGN = 8;
+
+	private final FileChannel fc;
+	private final ByteBuffer buf = ByteBuffer.allocate(1 << 20)
+		.order(ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * Creates an exporter writing at the current position of the given
+	 * channel. Call flush() when done.
+	 */
+	public BinaryMeshExporter(FileChannel fc) {
+		this.fc = fc;
+	}
+
+	/**
+	 * Saves the given meshes in the given file. The file is replaced
+	 * only after it was written completely, see replace().
+	 */
+	public static void save(Map<String, CustomMesh> meshes, String file)
+			throws IOException {
+		File f = new File(file);
+		File part = new File(file + ".part");
+		FileOutputStream out = new FileOutputStream(part);
+		try {
+			BinaryMeshExporter e = new BinaryMeshExporter(
+				out.getChannel());
+			e.writeInt(MAGIC);
+			e.writeInt(VERSION);
+			e.writeInt(meshes.size());
+			for(Map.Entry<String, CustomMesh> m : meshes.entrySet())
+				e.writeMesh(m.getKey(), m.getValue());
+			e.flush();
+		} finally {
+			out.close();
+		}
+		replace(part, f, meshes.values());
+		for(Map.Entry<String, CustomMesh> m : meshes.entrySet()) {
+			CustomMesh cm = m.getValue();
+			cm.loadedFromFile = file;
+			cm.loadedFromName = m.getKey();
+			cm.changed = false;
+		}
+	}
+
+	/**
+	 * Saves only the vertex coordinates and colors of a mesh in the
+	 * given file, to swap them out while the other attributes of the
+	 * mesh stay in memory; see CustomMesh.swapDisplayedData().
+	 * @param colors the vertex colors, or null.
+	 */
+	public static void saveSwap(TupleBuffer coords, TupleBuffer colors,
+			String file) throws IOException {
+		File part = new File(file + ".part");
+		FileOutputStream out = new FileOutputStream(part);
+		try {
+			BinaryMeshExporter e = new BinaryMeshExporter(
+				out.getChannel());
+			e.writeInt(SWAP_MAGIC);
+			e.writeInt(VERSION);
+			e.writeTuples(coords);
+			e.writeTuples(colors);
+			e.flush();
+		} finally {
+			out.close();
+		}
+		SwapWriter.replace(part, new File(file));
+	}
+
+	/**
+	 * Replaces the given file by the given, completely written one.
+	 *
+	 * Meshes which are still mapped from the old file stay valid where
+	 * mapped files can be deleted. Where they can not, i.e. on Windows,
+	 * the coordinates of the given meshes, which were written to the new
+	 * file, are copied into memory first, and their mappings released by
+	 * garbage collection. If other meshes are still mapped from the old
+	 * file, it can not be replaced; the new file is kept in this case,
+	 * and its name given in the exception.
+	 */
+	public static void replace(File part, File file,
+			Collection<? extends CustomMesh> meshes) throws IOException {
+		if(file.exists() && !file.delete()) {
+			for(CustomMesh cm : meshes)
+				cm.unmapCoordinates();
+			// mappings are only released when they are collected
+			System.gc();
+			System.runFinalization();
+			if(file.exists() && !file.delete())
+				throw new IOException("Could not replace " + file
+					+ ", which may still be memory-mapped; saved as "
+					+ part + " instead");
+		}
+		SwapWriter.replace(part, file);
+	}
+
+	/** Returns the position in the file at which the next value goes. */
+	public long position() throws IOException {
+		return fc.position() + buf.position();
+	}
+
+	public void writeInt(int v) throws IOException {
+		ensureSpace(4);
+		buf.putInt(v);
+	}
+
+	public void writeFloat(float v) throws IOException {
+		ensureSpace(4);
+		buf.putFloat(v);
+	}
+
+	public void writeString(String s) throws IOException {
+		byte[] b = s.getBytes("UTF-8");
+		writeInt(b.length);
+		for(int off = 0; off < b.length; ) {
+			ensureSpace(1);
+			int n = Math.min(buf.remaining(), b.length - off);
+			buf.put(b, off, n);
+			off += n;
+		}
+	}
+
+	/**
+	 * Writes the given mesh. Throws an IllegalArgumentException for
+	 * unsupported mesh classes.
+	 */
+	public void writeMesh(String name, CustomMesh cm) throws IOException {
+		int type = getType(cm);
+		writeString(name);
+		writeInt(type);
+		Color3f c = cm.getColor();
+		if(c == null)
+			c = CustomMesh.DEFAULT_COLOR;
+		writeFloat(c.x);
+		writeFloat(c.y);
+		writeFloat(c.z);
+		writeFloat(cm.getTransparency());
+		writeInt(cm.isShaded() ? 1 : 0);
+		if(type == TYPE_POINTS)
+			writeFloat(((CustomPointMesh)cm).getPointSize());
+		else if(type == TYPE_LINES_PAIRWISE
+				|| type == TYPE_LINES_CONTINUOUS)
+			writeFloat(((CustomLineMesh)cm).getLineWidth());
+		else
+			writeFloat(0);
+
+		if(type == TYPE_INDEXED_TRIANGLES) {
+			CustomIndexedTriangleMesh im = (CustomIndexedTriangleMesh)cm;
+			writeTuples(im.getCoordinates());
+			writeInt(im.nFaces);
+			for(int i = 0; i < im.nFaces; i++)
+				writeInt(im.faces[i]);
+			return;
+		}
+		TupleBuffer coords = cm.getCoordinates();
+		if(coords != null) {
+			writeTuples(coords);
+		} else {
+			List<Point3f> mesh = cm.getMesh();
+			writeInt(mesh == null ? 0 : mesh.size());
+			align();
+			if(mesh != null)
+				for(Point3f p : mesh)
+					writePoint(p);
+		}
+	}
+
+	/** Writes all buffered data to the channel. */
+	public void flush() throws IOException {
+		buf.flip();
+		while(buf.hasRemaining())
+			fc.write(buf);
+		buf.clear();
+	}
+
+	static int getType(CustomMesh cm) {
+		if(cm instanceof CustomIndexedTriangleMesh)
+			return TYPE_INDEXED_TRIANGLES;
+		// quad meshes are triangle meshes, too
+		if(cm instanceof CustomQuadMesh)
+			return TYPE_QUADS;
+		if(cm instanceof CustomTriangleMesh)
+			return TYPE_TRIANGLES;
+		if(cm instanceof CustomPointMesh)
+			return TYPE_POINTS;
+		if(cm instanceof CustomLineMesh) {
+			switch(((CustomLineMesh)cm).getMode()) {
+			case CustomLineMesh.PAIRWISE:
+				return TYPE_LINES_PAIRWISE;
+			case CustomLineMesh.CONTINUOUS:
+				return TYPE_LINES_CONTINUOUS;
+			default: throw new IllegalArgumentException(
+				"Unknown line mesh mode");
+			}
+		}
+		throw new IllegalArgumentException(
+			"Unknown custom mesh class: " + cm.getClass());
+	}
+
+	private void writePoint(Point3f p) throws IOException {
+		ensureSpace(12);
+		buf.putFloat(p.x);
+		buf.putFloat(p.y);
+		buf.putFloat(p.z);
+	}
+
+	/**
+	 * Writes the number of tuples, which may be null, followed by their
+	 * aligned coordinates.
+	 */
+	private void writeTuples(TupleBuffer t) throws IOException {
+		writeInt(t == null ? 0 : t.size());
+		align();
+		if(t != null)
+			writeFloats(t);
+	}
+
+	/** Writes the coordinates of the tuples, in bulk if possible. */
+	private void writeFloats(TupleBuffer t) throws IOException {
+		int n = 3 * t.size();
+		for(int off = 0; off < n; ) {
+			ensureSpace(4);
+			int len = Math.min(buf.remaining() / 4, n - off);
+			t.get(off, buf.asFloatBuffer(), len);
+			buf.position(buf.position() + 4 * len);
+			off += len;
+		}
+	}
+
+	/** Pads the output with zeros to a multiple of ALIGN bytes. */
+	private void align() throws IOException {
+		while(position() % ALIGN != 0) {
+			ensureSpace(1);
+			buf.put((byte)0);
+		}
+	}
+
+	private void ensureSpace(int n) throws IOException {
+		if(buf.remaining() < n)
+			flush();
+	}
+}
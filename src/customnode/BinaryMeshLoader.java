@@ -0,0 +1,277 @@
+package customnode;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.vecmath.Color3f;
+import javax.vecmath.Point3f;
+
+/**
+ * Reads meshes written by BinaryMeshExporter.
+ *
+ * The vertex coordinates are memory-mapped and referenced directly by
+ * the geometry of the meshes, so loading does not depend on the size of
+ * the meshes; the data is paged in by the operating system when it is
+ * first rendered. Mapped coordinates are copied when a mesh is modified.
+ */
+public class BinaryMeshLoader {
+
+	private final FileChannel fc;
+	private long pos;
+	private final ByteBuffer tmp = ByteBuffer.allocate(1 << 16)
+		.order(ByteOrder.LITTLE_ENDIAN);
+
+	/**
+	 * Creates a loader reading from the given position of the channel.
+	 * The channel may be closed after reading; the meshes stay valid.
+	 */
+	public BinaryMeshLoader(FileChannel fc, long position) {
+		this.fc = fc;
+		this.pos = position;
+	}
+
+	/**
+	 * Returns true if the given file starts with the given magic number.
+	 */
+	public static boolean hasMagic(String file, int magic) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				return new BinaryMeshLoader(raf.getChannel(), 0)
+					.readInt() == magic;
+			} finally {
+				raf.close();
+			}
+		} catch(IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Loads the meshes of the given file, which was written by
+	 * BinaryMeshExporter.save(), and returns them mapped by their names.
+	 */
+	public static Map<String, CustomMesh> load(String file)
+			throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			BinaryMeshLoader l = new BinaryMeshLoader(raf.getChannel(), 0);
+			l.checkHeader(BinaryMeshExporter.MAGIC,
+				BinaryMeshExporter.VERSION, file);
+			int n = l.readInt();
+			Map<String, CustomMesh> meshes =
+				new LinkedHashMap<String, CustomMesh>();
+			for(int i = 0; i < n; i++) {
+				CustomMesh cm = l.readMesh();
+				cm.loadedFromFile = file;
+				meshes.put(cm.getName(), cm);
+			}
+			return meshes;
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Loads a swap file written by BinaryMeshExporter.saveSwap(), and
+	 * returns the mapped vertex coordinates and the vertex colors, which
+	 * are null if none were saved.
+	 */
+	public static TupleBuffer[] loadSwap(String file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			BinaryMeshLoader l = new BinaryMeshLoader(raf.getChannel(), 0);
+			l.checkHeader(BinaryMeshExporter.SWAP_MAGIC,
+				BinaryMeshExporter.VERSION, file);
+			TupleBuffer coords = l.readTuples();
+			TupleBuffer colors = l.readTuples();
+			return new TupleBuffer[] {
+				coords, colors.size() == 0 ? null : colors};
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads the magic number and the version, and throws an IOException
+	 * if they do not match the expected ones.
+	 */
+	public void checkHeader(int magic, int version, String file)
+			throws IOException {
+		if(readInt() != magic)
+			throw new IOException("Not a valid file: " + file);
+		int v = readInt();
+		if(v > version)
+			throw new IOException("Unsupported version " + v
+				+ ": " + file);
+	}
+
+	public long position() {
+		return pos;
+	}
+
+	public int readInt() throws IOException {
+		return read(4).getInt(0);
+	}
+
+	public float readFloat() throws IOException {
+		return read(4).getFloat(0);
+	}
+
+	public String readString() throws IOException {
+		int n = readInt();
+		byte[] b = new byte[n];
+		for(int off = 0; off < n; ) {
+			int len = Math.min(tmp.capacity(), n - off);
+			read(len).get(b, off, len);
+			off += len;
+		}
+		return new String(b, "UTF-8");
+	}
+
+	/**
+	 * Reads a mesh written by BinaryMeshExporter.writeMesh(). Its name
+	 * is set, and it is marked as unchanged.
+	 */
+	public CustomMesh readMesh() throws IOException {
+		String name = readString();
+		int type = readInt();
+		Color3f color = new Color3f(readFloat(), readFloat(), readFloat());
+		float transparency = readFloat();
+		boolean shaded = readInt() != 0;
+		float size = readFloat();
+		int n = readInt();
+		align();
+
+		CustomMesh cm;
+		if(type == BinaryMeshExporter.TYPE_INDEXED_TRIANGLES) {
+			TupleBuffer vertices = readTuples(n);
+			int[] faces = new int[readInt()];
+			readInts(faces);
+			cm = new CustomIndexedTriangleMesh(vertices, faces,
+				color, transparency);
+		} else if(n == 0) {
+			cm = createMesh(type, null, color, transparency);
+		} else {
+			cm = createMesh(type, readTuples(n), color, transparency);
+		}
+		if(!shaded)
+			cm.setShaded(false);
+		if(type == BinaryMeshExporter.TYPE_POINTS)
+			((CustomPointMesh)cm).setPointSize(size);
+		else if(cm instanceof CustomLineMesh)
+			((CustomLineMesh)cm).setLineWidth(size);
+		cm.loadedFromName = name;
+		cm.changed = false;
+		return cm;
+	}
+
+	/**
+	 * Creates a mesh of the given type, from the given coordinates or,
+	 * if they are null, with an empty list of points.
+	 */
+	private static CustomMesh createMesh(int type, TupleBuffer coords,
+			Color3f color, float transparency) throws IOException {
+		ArrayList<Point3f> empty = new ArrayList<Point3f>();
+		switch(type) {
+		case BinaryMeshExporter.TYPE_TRIANGLES:
+			return coords != null
+				? new CustomTriangleMesh(coords, color, transparency)
+				: new CustomTriangleMesh(empty, color, transparency);
+		case BinaryMeshExporter.TYPE_QUADS:
+			return coords != null
+				? new CustomQuadMesh(coords, color, transparency)
+				: new CustomQuadMesh(empty, color, transparency);
+		case BinaryMeshExporter.TYPE_POINTS:
+			return coords != null
+				? new CustomPointMesh(coords, color, transparency)
+				: new CustomPointMesh(empty, color, transparency);
+		case BinaryMeshExporter.TYPE_LINES_PAIRWISE:
+		case BinaryMeshExporter.TYPE_LINES_CONTINUOUS:
+			int mode = type == BinaryMeshExporter.TYPE_LINES_PAIRWISE
+				? CustomLineMesh.PAIRWISE : CustomLineMesh.CONTINUOUS;
+			return coords != null
+				? new CustomLineMesh(coords, mode, color, transparency)
+				: new CustomLineMesh(empty, mode, color, transparency);
+		default:
+			throw new IOException("Unknown mesh type: " + type);
+		}
+	}
+
+	/** Reads the number of tuples followed by their coordinates. */
+	private TupleBuffer readTuples() throws IOException {
+		int n = readInt();
+		align();
+		return readTuples(n);
+	}
+
+	/**
+	 * Maps the coordinates of n tuples. If they do not fit into a single
+	 * mapping, or the platform is not little-endian, they are copied.
+	 */
+	private TupleBuffer readTuples(int n) throws IOException {
+		long bytes = 12L * n;
+		if(bytes <= Integer.MAX_VALUE
+				&& ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+			MappedByteBuffer mb = fc.map(FileChannel.MapMode.READ_ONLY,
+				pos, bytes);
+			pos += bytes;
+			mb.order(ByteOrder.LITTLE_ENDIAN);
+			return new TupleBuffer(mb.asFloatBuffer());
+		}
+		float[] data = new float[3 * n];
+		readFloats(data);
+		return new TupleBuffer(data);
+	}
+
+	private void readFloats(float[] dst) throws IOException {
+		for(int off = 0; off < dst.length; ) {
+			int len = Math.min(tmp.capacity() / 4, dst.length - off);
+			FloatBuffer fb = read(4 * len).asFloatBuffer();
+			fb.get(dst, off, len);
+			off += len;
+		}
+	}
+
+	private void readInts(int[] dst) throws IOException {
+		for(int off = 0; off < dst.length; ) {
+			int len = Math.min(tmp.capacity() / 4, dst.length - off);
+			IntBuffer ib = read(4 * len).asIntBuffer();
+			ib.get(dst, off, len);
+			off += len;
+		}
+	}
+
+	/** Skips the padding up to the next multiple of ALIGN bytes. */
+	private void align() {
+		int a = BinaryMeshExporter.ALIGN;
+		pos = (pos + a - 1) / a * a;
+	}
+
+	/**
+	 * Reads n bytes, at most the capacity of tmp, into tmp, and returns
+	 * it, with position 0 and limit n.
+	 */
+	private ByteBuffer read(int n) throws IOException {
+		tmp.clear();
+		tmp.limit(n);
+		while(tmp.hasRemaining()) {
+			int r = fc.read(tmp, pos + tmp.position());
+			if(r < 0)
+				throw new EOFException();
+		}
+		pos += n;
+		tmp.flip();
+		return tmp;
+	}
+}
@@ -4,17 +4,19 @@ import ij.ImagePlus;
 import ij.measure.Calibration;
 import ij.plugin.Duplicator;
 import ij.process.StackConverter;
+import ij3d.UniverseSettings;
 
 import java.util.List;
 
 import javax.media.j3d.Appearance;
 import javax.media.j3d.ColoringAttributes;
+import javax.media.j3d.Geometry;
 import javax.media.j3d.GeometryArray;
+import javax.media.j3d.GeometryUpdater;
 import javax.media.j3d.IndexedTriangleArray;
 import javax.media.j3d.Material;
 import javax.media.j3d.PolygonAttributes;
 import javax.media.j3d.TransparencyAttributes;
-import javax.media.j3d.TriangleArray;
 import javax.vecmath.Color3f;
 import javax.vecmath.Point3f;
 import javax.vecmath.Vector3f;
@@ -23,8 +25,11 @@ import vib.InterpolatedImage;
 
 public class CustomIndexedTriangleMesh extends CustomMesh {
 
-	protected Point3f[] vertices;
-	protected Color3f[] colors;
+	/*
+	 * The vertices are stored in coords, and their colors in colors;
+	 * the geometry references both, and the normals, directly. Hence
+	 * getMesh() returns the distinct vertices, see getFaces().
+	 */
 	protected int[] faces;
 	protected int nFaces;
 	protected int nVertices;
@@ -37,10 +42,27 @@ public class CustomIndexedTriangleMesh extends CustomMesh {
 		this(vertices, faces, DEFAULT_COLOR, 0);
 	}
 
+	/**
+	 * Creates a mesh from interleaved (x, y, z) vertex coordinates,
+	 * as e.g. returned by MCTriangulator.getIndexedTriangles(). The
+	 * array is used as storage, without copying it.
+	 */
+	public CustomIndexedTriangleMesh(float[] coords, int[] faces, Color3f color, float transp) {
+		this(new TupleBuffer(coords), faces, color, transp);
+	}
+
 	public CustomIndexedTriangleMesh(Point3f[] vertices, int[] faces, Color3f color, float transp) {
-		this.nVertices = vertices.length;
+		this(toBuffer(vertices), faces, color, transp);
+	}
+
+	/**
+	 * Creates a mesh whose vertices are stored in the given buffer,
+	 * which is used as storage, without copying it.
+	 */
+	public CustomIndexedTriangleMesh(TupleBuffer coords, int[] faces, Color3f color, float transp) {
+		this.coords = coords;
+		this.nVertices = coords.size();
 		this.nFaces = faces.length;
-		this.vertices = vertices;
 		this.faces = faces;
 		if(color != null)
 			setColor(color);
@@ -52,6 +74,12 @@ public class CustomIndexedTriangleMesh extends CustomMesh {
 		update();
 	}
 
+	private static TupleBuffer toBuffer(Point3f[] vertices) {
+		TupleBuffer t = new TupleBuffer(vertices.length, false);
+		t.addAll(vertices);
+		return t;
+	}
+
 	@Override
 	public String getFile() {
 		return loadedFromFile;
@@ -67,16 +95,13 @@ public class CustomIndexedTriangleMesh extends CustomMesh {
 		return changed;
 	}
 
-	@Override
-	public void update() {
-		this.setGeometry(createGeometry());
-		this.setAppearance(createAppearance());
-		changed = true;
-	}
-
-	@Override
-	public List getMesh() {
-		return mesh;
+	/**
+	 * Returns the vertex indices, three per triangle, which refer to
+	 * the vertices returned by getMesh() or getCoordinates(). The array
+	 * is used as storage and must not be modified.
+	 */
+	public int[] getFaces() {
+		return faces;
 	}
 
 	@Override
@@ -104,33 +129,6 @@ public class CustomIndexedTriangleMesh extends CustomMesh {
 			pa.setPolygonMode(PolygonAttributes.POLYGON_LINE);
 	}
 
-	@Override
-	public void calculateMinMaxCenterPoint(Point3f min,
-				Point3f max, Point3f center) {
-
-		if(vertices == null || nVertices == 0) {
-			min.set(0, 0, 0);
-			max.set(0, 0, 0);
-			center.set(0, 0, 0);
-			return;
-		}
-
-		min.x = min.y = min.z = Float.MAX_VALUE;
-		max.x = max.y = max.z = Float.MIN_VALUE;
-		for(int i = 0; i < nVertices; i++) {
-			Point3f p = vertices[i];
-			if(p.x < min.x) min.x = p.x;
-			if(p.y < min.y) min.y = p.y;
-			if(p.z < min.z) min.z = p.z;
-			if(p.x > max.x) max.x = p.x;
-			if(p.y > max.y) max.y = p.y;
-			if(p.z > max.z) max.z = p.z;
-		}
-		center.x = (max.x + min.x) / 2;
-		center.y = (max.y + min.y) / 2;
-		center.z = (max.z + min.z) / 2;
-	}
-
 	@Override
 	public float getVolume() {
 		throw new IllegalArgumentException("Not supported yet");
@@ -157,31 +155,15 @@ public class CustomIndexedTriangleMesh extends CustomMesh {
 	}
 
 	public int vertexIndexOfPoint(Point3f p) {
+		Point3f v = new Point3f();
 		for(int i = 0; i < nVertices; i++) {
-			Point3f v = vertices[i];
+			coords.get(i, v);
 			if(p.equals(v))
 				return i;
 		}
 		return -1;
 	}
 
-	@Override
-	public void setCoordinate(int i, Point3f p) {
-		changed = true;
-		vertices[i].set(p);
-		((GeometryArray)getGeometry()).setCoordinate(i, p);
-	}
-
-	@Override
-	public void setCoordinates(int[] indices, Point3f p) {
-		changed = true;
-		GeometryArray ga = (GeometryArray)getGeometry();
-		for(int i = 0; i < indices.length; i++) {
-			ga.setCoordinate(indices[i], p);
-			vertices[indices[i]].set(p);
-		}
-	}
-
 	@Override
 	public void recalculateNormals(GeometryArray ga) {
 	}
@@ -198,44 +180,29 @@ public class CustomIndexedTriangleMesh extends CustomMesh {
 
 	@Override
 	public void setColor(Color3f color) {
-		if(this.colors == null || this.colors.length != this.vertices.length)
-			this.colors = new Color3f[this.vertices.length];
 		this.color = color != null ? color : DEFAULT_COLOR;
-		for(int i = 0; i < nVertices; i++)
-			colors[i] = this.color;
-
-		GeometryArray ga = (GeometryArray)getGeometry();
-		if(ga == null)
-			return;
-
-		ga.setColors(0, colors);
-		changed = true;
+		ensureColors();
+		colors.fill(0, this.color);
+		updateReferences();
 	}
 
 	@Override
 	public void setColor(List<Color3f> color) {
-		if(color.size() != colors.length)
+		if(color.size() != nVertices)
 			throw new IllegalArgumentException("Number of colors must equal number of vertices");
 
 		this.color = null;
-		color.toArray(this.colors);
-
-		GeometryArray ga = (GeometryArray)getGeometry();
-		if(ga == null)
-			return;
-		ga.setColors(0, colors);
-		changed = true;
+		ensureColors();
+		for(int i = 0; i < nVertices; i++)
+			colors.set(i, color.get(i));
+		updateReferences();
 	}
 
 	@Override
 	public void setColor(int vtxIndex, Color3f color) {
 		this.color = null;
-		this.colors[vtxIndex] = color;
-		GeometryArray ga = (GeometryArray)getGeometry();
-		if(ga == null)
-			return;
-		ga.setColor(vtxIndex, color);
-		changed = true;
+		colors.set(vtxIndex, color);
+		updateReferences();
 	}
 
 	@Override
@@ -250,22 +217,28 @@ public class CustomIndexedTriangleMesh extends CustomMesh {
 		double pw = cal.pixelWidth;
 		double ph = cal.pixelHeight;
 		double pd = cal.pixelDepth;
+		Point3f coord = new Point3f();
 		for(int i = 0; i < nVertices; i++) {
-			Point3f coord = vertices[i];
+			coords.get(i, coord);
 			int v = (int)Math.round(ii.interpol.get(
 				coord.x / pw,
 				coord.y / ph,
 				coord.z / pd));
-			colors[i] = new Color3f(
+			colors.set(i,
 				((v & 0xff0000) >> 16) / 255f,
 				((v & 0xff00) >> 8) / 255f,
 				(v & 0xff) / 255f);
 		}
-		GeometryArray ga = (GeometryArray)getGeometry();
-		if(ga == null)
+		updateReferences();
+	}
+
+	/** Allocates the vertex colors, like the vertex coordinates. */
+	private void ensureColors() {
+		if(colors != null && colors.size() == nVertices)
 			return;
-		ga.setColors(0, colors);
-		changed = true;
+		colors = new TupleBuffer(nVertices, coords.isDirect());
+		colors.setSize(nVertices);
+		colors.fill(0, color != null ? color : DEFAULT_COLOR);
 	}
 
 	@Override
@@ -341,53 +314,89 @@ public class CustomIndexedTriangleMesh extends CustomMesh {
 	protected GeometryArray createGeometry() {
 		if(nVertices == 0)
 			return null;
+		ensureColors();
+		boolean direct = coords.isDirect();
+		float[] n = calculateNormals();
+		normals = new TupleBuffer(nVertices, direct);
+		normals.setSize(nVertices);
+		for(int i = 0; i < n.length; i++)
+			normals.set(i, n[i]);
+
+		int format = GeometryArray.COORDINATES |
+				GeometryArray.COLOR_3 |
+				GeometryArray.NORMALS |
+				GeometryArray.BY_REFERENCE |
+				GeometryArray.USE_COORD_INDEX_ONLY;
+		if(direct)
+			format |= GeometryArray.USE_NIO_BUFFER;
 		IndexedTriangleArray ta = new IndexedTriangleArray(
-			vertices.length,
-				TriangleArray.COORDINATES |
-				TriangleArray.COLOR_3 |
-				TriangleArray.NORMALS,
-			faces.length);
+			nVertices, format, faces.length);
 
 		ta.setValidIndexCount(nFaces);
-
-		ta.setCoordinates(0, vertices);
-		ta.setColors(0, colors);
-
 		ta.setCoordinateIndices(0, faces);
-		ta.setColorIndices(0, faces);
-
-		ta.setNormals(0, getNormals());
-		ta.setNormalIndices(0, faces);
+		setReferences(ta);
 
+		ta.setCapability(GeometryArray.ALLOW_REF_DATA_READ);
+		ta.setCapability(GeometryArray.ALLOW_REF_DATA_WRITE);
 		ta.setCapability(GeometryArray.ALLOW_COLOR_WRITE);
 		ta.setCapability(GeometryArray.ALLOW_INTERSECT);
 
 		return ta;
 	}
 
+	private void setReferences(GeometryArray ga) {
+		if((ga.getVertexFormat() & GeometryArray.USE_NIO_BUFFER) != 0) {
+			ga.setCoordRefBuffer(coords.getJ3DBuffer());
+			ga.setColorRefBuffer(colors.getJ3DBuffer());
+			ga.setNormalRefBuffer(normals.getJ3DBuffer());
+		} else {
+			ga.setCoordRefFloat(coords.getArray());
+			ga.setColorRefFloat(colors.getArray());
+			ga.setNormalRefFloat(normals.getArray());
+		}
+	}
+
+	/**
+	 * Tells Java3D that the coordinates or colors have changed; the
+	 * buffers are referenced again, since modifying a read-only buffer
+	 * replaces it.
+	 */
+	@Override
+	protected void updateReferences() {
+		GeometryArray ga = (GeometryArray)getGeometry();
+		if(ga == null)
+			return;
+		ga.updateData(new GeometryUpdater() {
+			public void updateData(Geometry g) {
+				setReferences((GeometryArray)g);
+			}
+		});
+		changed = true;
+	}
+
 	public Vector3f[] getNormals() {
+		float[] n = calculateNormals();
 		Vector3f[] normals = new Vector3f[nVertices];
 		for (int i = 0; i < nVertices; i++)
-			normals[i] = new Vector3f();
-
-		Vector3f v1 = new Vector3f(), v2 = new Vector3f();
-		for (int i = 0; i < nFaces; i += 3) {
-			int f1 = faces[i];
-			int f2 = faces[i + 1];
-			int f3 = faces[i + 2];
-
-			v1.sub(vertices[f2], vertices[f1]);
-			v2.sub(vertices[f3], vertices[f1]);
-			v1.cross(v1, v2);
+			normals[i] = new Vector3f(n[3 * i], n[3 * i + 1], n[3 * i + 2]);
+		return normals;
+	}
 
-			normals[f1].add(v1);
-			normals[f2].add(v1);
-			normals[f3].add(v1);
+	/**
+	 * Calculates the area-weighted vertex normals with MeshNormals,
+	 * x, y and z interleaved.
+	 */
+	protected float[] calculateNormals() {
+		float[] c;
+		if(!coords.isDirect() && coords.getArray().length == 3 * nVertices) {
+			c = coords.getArray();
+		} else {
+			c = new float[3 * nVertices];
+			for(int i = 0; i < c.length; i++)
+				c[i] = coords.get(i);
 		}
-		for (int i = 0; i < nVertices; i++)
-			normals[i].normalize();
-
-		return normals;
+		return MeshNormals.calculate(c, faces, nFaces,
+				UniverseSettings.meshingThreads);
 	}
 
 }
\ No newline at end of file
@@ -55,6 +55,24 @@ public class CustomLineMesh extends CustomMesh {
 		this.update();
 	}
 
+	/**
+	 * Creates a line mesh whose vertices are stored as primitive floats
+	 * in the given buffer.
+	 */
+	public CustomLineMesh(TupleBuffer coords, int mode,
+			Color3f color, float transparency) {
+		this.setCapability(ALLOW_GEOMETRY_READ);
+		this.setCapability(ALLOW_GEOMETRY_WRITE);
+		this.setCapability(ALLOW_APPEARANCE_READ);
+		this.setCapability(ALLOW_APPEARANCE_WRITE);
+		if(color != null)
+			this.color = color;
+		this.coords = coords;
+		this.mode = mode;
+		this.transparency = transparency;
+		this.update();
+	}
+
 	public int getMode() {
 		return mode;
 	}
@@ -134,6 +152,10 @@ public class CustomLineMesh extends CustomMesh {
 
 	@Override
 	protected GeometryArray createGeometry() {
+		if(coords != null)
+			return coords.size() < 2 ? null : createGeometryByRef(
+				mode == PAIRWISE ? LINE_ARRAY : LINE_STRIP_ARRAY,
+				false);
 		if(mesh == null || mesh.size() < 2)
 			return null;
 		List<Point3f> tri = mesh;
@@ -4,20 +4,31 @@ import ij.ImagePlus;
 import ij.measure.Calibration;
 import ij.plugin.Duplicator;
 import ij.process.StackConverter;
+import ij3d.SwapWriter;
+import ij3d.UniverseSettings;
 
 import java.io.IOException;
+import java.util.AbstractList;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
+import java.util.RandomAccess;
 
 import javax.media.j3d.Appearance;
 import javax.media.j3d.ColoringAttributes;
+import javax.media.j3d.Geometry;
 import javax.media.j3d.GeometryArray;
 import javax.media.j3d.GeometryStripArray;
+import javax.media.j3d.GeometryUpdater;
+import javax.media.j3d.LineArray;
+import javax.media.j3d.LineStripArray;
 import javax.media.j3d.Material;
+import javax.media.j3d.PointArray;
 import javax.media.j3d.PolygonAttributes;
+import javax.media.j3d.QuadArray;
 import javax.media.j3d.Shape3D;
 import javax.media.j3d.TransparencyAttributes;
+import javax.media.j3d.TriangleArray;
 import javax.vecmath.Color3f;
 import javax.vecmath.Point3f;
 
@@ -32,6 +43,34 @@ public abstract class CustomMesh extends Shape3D {
 
 	protected Color3f color = DEFAULT_COLOR;
 	protected List<Point3f> mesh = null;
+
+	/**
+	 * Alternative storage of the vertex coordinates as primitive floats.
+	 * If set, mesh is null, and the geometry references coords, colors
+	 * and normals directly (see createGeometryByRef()). getMesh()
+	 * returns a list view of it.
+	 */
+	protected TupleBuffer coords = null;
+	protected TupleBuffer colors = null;
+	protected TupleBuffer normals = null;
+
+	/**
+	 * Normals which are updated incrementally when vertices are
+	 * appended; null if they are not up to date.
+	 */
+	private WeldedNormals weldedNormals = null;
+
+	/** The list view of coords returned by getMesh() */
+	private PointView pointView = null;
+
+	/**
+	 * Whether to calculate normals with MeshNormals instead of
+	 * j3dutils' NormalGenerator.
+	 */
+	protected boolean fastNormals = true;
+
+	/** The crease angle in radians used by MeshNormals */
+	protected float creaseAngle = MeshNormals.DEFAULT_CREASE_ANGLE;
 	protected float transparency = 0;
 	protected boolean shaded = true;
 
@@ -57,6 +96,22 @@ public abstract class CustomMesh extends Shape3D {
 		this.update();
 	}
 
+	/**
+	 * Creates a mesh whose vertices are stored in the given buffer,
+	 * instead of a list of points.
+	 */
+	protected CustomMesh(TupleBuffer coords, Color3f color, float transp) {
+		this.coords = coords;
+		if(color != null)
+			this.color = color;
+		this.transparency = transp;
+		this.setCapability(ALLOW_GEOMETRY_READ);
+		this.setCapability(ALLOW_GEOMETRY_WRITE);
+		this.setCapability(ALLOW_APPEARANCE_READ);
+		this.setCapability(ALLOW_APPEARANCE_WRITE);
+		this.update();
+	}
+
 	public String getFile() {
 		return loadedFromFile;
 	}
@@ -70,13 +125,134 @@ public abstract class CustomMesh extends Shape3D {
 	}
 
 	public void update() {
+		flushPointView();
+		weldedNormals = null;
 		this.setGeometry(createGeometry());
 		this.setAppearance(createAppearance());
 		changed = true;
 	}
 
-	public List getMesh() {
-		return mesh;
+	/**
+	 * Returns the vertices of this mesh. If they are stored in a
+	 * TupleBuffer, a list view of it is returned, whose points are
+	 * created when they are first requested. Changes to these points
+	 * are written to the buffer by update(), after which the view
+	 * creates new points. The view can not add or remove vertices.
+	 */
+	public List<Point3f> getMesh() {
+		if(mesh != null || coords == null)
+			return mesh;
+		if(pointView == null || pointView.coords != coords)
+			pointView = new PointView(coords);
+		return pointView;
+	}
+
+	/**
+	 * Returns the buffer holding the vertex coordinates, or null if
+	 * they are stored as a list of points.
+	 */
+	public TupleBuffer getCoordinates() {
+		return coords;
+	}
+
+	/**
+	 * Copies vertex coordinates which are memory-mapped from a file, see
+	 * BinaryMeshLoader, into memory, so that the file can be replaced.
+	 */
+	public void unmapCoordinates() {
+		if(coords == null || !coords.isReadOnly())
+			return;
+		coords.unmap();
+		updateReferences();
+	}
+
+	/**
+	 * Returns true if the vertices are stored in a TupleBuffer.
+	 */
+	public boolean isBufferBacked() {
+		return coords != null;
+	}
+
+	/**
+	 * Returns the number of vertices.
+	 */
+	public int getVertexCount() {
+		if(coords != null)
+			return coords.size();
+		return mesh == null ? 0 : mesh.size();
+	}
+
+	/**
+	 * Writes the points of the list view which were changed to coords,
+	 * see getMesh().
+	 */
+	private void flushPointView() {
+		if(pointView != null && pointView.coords == coords)
+			pointView.flush();
+		pointView = null;
+	}
+
+	/**
+	 * A list view of a TupleBuffer, see getMesh().
+	 */
+	private static class PointView extends AbstractList<Point3f>
+			implements RandomAccess {
+		final TupleBuffer coords;
+		private Point3f[] points = null;
+
+		PointView(TupleBuffer coords) {
+			this.coords = coords;
+		}
+
+		@Override
+		public int size() {
+			return coords.size();
+		}
+
+		@Override
+		public Point3f get(int i) {
+			int n = size();
+			if(i < 0 || i >= n)
+				throw new IndexOutOfBoundsException(
+					"Index: " + i + ", Size: " + n);
+			if(points == null)
+				points = new Point3f[n];
+			else if(points.length < n)
+				points = Arrays.copyOf(points, n);
+			if(points[i] == null) {
+				points[i] = new Point3f();
+				coords.get(i, points[i]);
+			}
+			return points[i];
+		}
+
+		@Override
+		public Point3f set(int i, Point3f p) {
+			Point3f old = get(i);
+			points[i] = p;
+			coords.set(i, p);
+			return old;
+		}
+
+		/**
+		 * Writes the points which were changed to the buffer; unchanged
+		 * ones are not written, so that read-only buffers are not
+		 * copied needlessly. Forgets all points.
+		 */
+		void flush() {
+			if(points == null)
+				return;
+			Point3f tmp = new Point3f();
+			int n = Math.min(points.length, coords.size());
+			for(int i = 0; i < n; i++) {
+				if(points[i] == null)
+					continue;
+				coords.get(i, tmp);
+				if(!tmp.equals(points[i]))
+					coords.set(i, points[i]);
+			}
+			points = null;
+		}
 	}
 
 	public Color3f getColor() {
@@ -91,6 +267,39 @@ public abstract class CustomMesh extends Shape3D {
 		return shaded;
 	}
 
+	public boolean isFastNormals() {
+		return fastNormals;
+	}
+
+	/**
+	 * Selects whether normals are calculated with MeshNormals (the
+	 * default), or with NormalGenerator. Only has an effect for
+	 * triangle and quad meshes.
+	 */
+	public void setFastNormals(boolean b) {
+		if(b == fastNormals)
+			return;
+		this.fastNormals = b;
+		weldedNormals = null;
+		recalculateNormals((GeometryArray)getGeometry());
+	}
+
+	public float getCreaseAngle() {
+		return creaseAngle;
+	}
+
+	/**
+	 * Sets the crease angle (in radians) for MeshNormals: adjacent
+	 * faces whose normals differ by more than this angle are shaded
+	 * with a sharp edge. MeshNormals.NO_CREASE smoothes all edges.
+	 */
+	public void setCreaseAngle(float creaseAngle) {
+		this.creaseAngle = creaseAngle;
+		weldedNormals = null;
+		if(fastNormals)
+			recalculateNormals((GeometryArray)getGeometry());
+	}
+
 	public void setShaded(boolean b) {
 		this.shaded = b;
 		PolygonAttributes pa = getAppearance().getPolygonAttributes();
@@ -103,7 +312,7 @@ public abstract class CustomMesh extends Shape3D {
 	public void calculateMinMaxCenterPoint(Point3f min,
 				Point3f max, Point3f center) {
 
-		if(mesh == null || mesh.size() == 0) {
+		if(getVertexCount() == 0) {
 			min.set(0, 0, 0);
 			max.set(0, 0, 0);
 			center.set(0, 0, 0);
@@ -112,8 +321,12 @@ public abstract class CustomMesh extends Shape3D {
 
 		min.x = min.y = min.z = Float.MAX_VALUE;
 		max.x = max.y = max.z = Float.MIN_VALUE;
-		for(int i = 0; i < mesh.size(); i++) {
-			Point3f p = (Point3f)mesh.get(i);
+		Point3f p = new Point3f();
+		for(int i = 0; i < getVertexCount(); i++) {
+			if(coords != null)
+				coords.get(i, p);
+			else
+				p = (Point3f)mesh.get(i);
 			if(p.x < min.x) min.x = p.x;
 			if(p.y < min.y) min.y = p.y;
 			if(p.z < min.z) min.z = p.z;
@@ -160,6 +373,7 @@ public abstract class CustomMesh extends Shape3D {
 
 	protected void addVerticesToGeometryArray(Point3f[] v) {
 		changed = true;
+		int n = mesh.size();
 		mesh.addAll(Arrays.asList(v));
 
 		// check maximum vertex count
@@ -167,8 +381,11 @@ public abstract class CustomMesh extends Shape3D {
 		int max = ga.getVertexCount();
 		int idx = ga.getValidVertexCount();
 		if(idx + v.length > max) {
-			// enlarge arrays
+			// enlarge arrays; createGeometry() allocates twice
+			// the needed size, so this happens O(log n) times
 			setGeometry(createGeometry());
+			updateNormals((GeometryArray)getGeometry(),
+					n, mesh.size(), true);
 			return;
 		}
 
@@ -180,17 +397,90 @@ public abstract class CustomMesh extends Shape3D {
 		Arrays.fill(colors, this.color);
 		ga.setColors(idx, colors);
 
-		recalculateNormals(ga);
+		updateNormals(ga, n, mesh.size(), false);
+	}
+
+	/**
+	 * Returns the number of vertices per face for meshes whose normals
+	 * can be updated incrementally when vertices are appended, i.e.
+	 * 3 for triangles and 4 for quads, and 0 otherwise.
+	 */
+	protected int getVerticesPerFace() {
+		return 0;
+	}
+
+	/**
+	 * Updates the normals after the vertices from index from (inclusive)
+	 * to index to (exclusive) have been appended.
+	 *
+	 * If getVerticesPerFace() is not 0, only the normals of the new
+	 * vertices and of existing vertices at the same positions are
+	 * updated, using WeldedNormals. Otherwise, or if the welded normals
+	 * are not up to date, all normals are recalculated.
+	 * @param all whether to write all normals, e.g. after the
+	 *            geometry was re-created.
+	 */
+	protected void updateNormals(GeometryArray ga, int from, int to,
+			boolean all) {
+		if(ga == null || (ga.getVertexFormat() & GeometryArray.NORMALS) == 0)
+			return;
+		int perFace = getVerticesPerFace();
+		if(!fastNormals || perFace == 0 ||
+				from % perFace != 0 || to % perFace != 0) {
+			weldedNormals = null;
+			recalculateNormals(ga);
+			return;
+		}
+		if(weldedNormals == null ||
+				weldedNormals.getVertexCount() != from) {
+			weldedNormals = new WeldedNormals(perFace);
+			weldedNormals.setCreaseAngle(creaseAngle);
+			if(coords != null)
+				weldedNormals.add(coords, 0, from);
+			else
+				weldedNormals.add(mesh, 0, from);
+			all = true;
+		}
+		if(coords != null)
+			weldedNormals.add(coords, from, to);
+		else
+			weldedNormals.add(mesh, from, to);
+
+		int[] indices = null;
+		int n = to;
+		if(!all) {
+			indices = weldedNormals.getChangedVertices();
+			n = indices.length;
+		}
+		float[] normal = new float[3];
+		for(int i = 0; i < n; i++) {
+			int vertex = all ? i : indices[i];
+			weldedNormals.getNormal(vertex, normal);
+			if(normals != null)
+				normals.set(vertex, normal[0], normal[1], normal[2]);
+			else
+				ga.setNormal(vertex, normal);
+		}
+		if(normals != null)
+			updateReferences();
+		changed = true;
 	}
 
 	public int[] vertexIndicesOfPoint(Point3f p) {
-		int N = mesh.size();
+		int N = getVertexCount();
 
 		int[] indices = new int[N];
 		int i = 0;
-		for(int v = 0; v < N; v++)
-			if(mesh.get(v) != null && mesh.get(v).equals(p))
+		Point3f tmp = new Point3f();
+		for(int v = 0; v < N; v++) {
+			if(coords != null) {
+				coords.get(v, tmp);
+				if(tmp.equals(p))
+					indices[i++] = v;
+			} else if(mesh.get(v) != null && mesh.get(v).equals(p)) {
 				indices[i++] = v;
+			}
+		}
 
 		int[] ret = new int[i];
 		System.arraycopy(indices, 0, ret, 0, i);
@@ -199,12 +489,27 @@ public abstract class CustomMesh extends Shape3D {
 
 	public void setCoordinate(int i, Point3f p) {
 		changed = true;
+		weldedNormals = null;
+		if(coords != null) {
+			flushPointView();
+			coords.set(i, p);
+			updateReferences();
+			return;
+		}
 		((GeometryArray)getGeometry()).setCoordinate(i, p);
 		mesh.get(i).set(p);
 	}
 
 	public void setCoordinates(int[] indices, Point3f p) {
 		changed = true;
+		weldedNormals = null;
+		if(coords != null) {
+			flushPointView();
+			for(int i = 0; i < indices.length; i++)
+				coords.set(indices[i], p);
+			updateReferences();
+			return;
+		}
 		GeometryArray ga = (GeometryArray)getGeometry();
 		for(int i = 0; i < indices.length; i++) {
 			ga.setCoordinate(indices[i], p);
@@ -218,6 +523,11 @@ public abstract class CustomMesh extends Shape3D {
 		if((ga.getVertexFormat() & GeometryArray.NORMALS) == 0)
 			return;
 		changed = true;
+		int perFace = getVerticesPerFace();
+		if(fastNormals && perFace != 0) {
+			recalculateFastNormals(ga, perFace);
+			return;
+		}
 		GeometryInfo gi = new GeometryInfo(ga);
 		NormalGenerator ng = new NormalGenerator();
 		ng.generateNormals(gi);
@@ -226,10 +536,158 @@ public abstract class CustomMesh extends Shape3D {
 		int v = ga.getValidVertexCount();
 		float[] normals = new float[3 * v];
 		tmp.getNormals(0, normals);
+		if(this.normals != null) {
+			this.normals.setSize(v);
+			for(int i = 0; i < normals.length; i++)
+				this.normals.set(i, normals[i]);
+			if(ga == getGeometry())
+				updateReferences();
+			return;
+		}
 		ga.setNormals(0, normals);
 	}
 
+	private void recalculateFastNormals(GeometryArray ga, int perFace) {
+		int threads = UniverseSettings.meshingThreads;
+		if(this.normals != null) {
+			MeshNormals.calculate(coords, perFace, creaseAngle,
+					threads, this.normals);
+			if(ga == getGeometry())
+				updateReferences();
+			return;
+		}
+		int v = ga.getValidVertexCount();
+		float[] c = new float[3 * v];
+		ga.getCoordinates(0, c);
+		ga.setNormals(0, MeshNormals.calculate(c, v, perFace,
+				creaseAngle, threads));
+	}
+
+	/**
+	 * Creates a by-reference geometry array for the vertices stored
+	 * in coords. The colors and, if requested, normals buffers are
+	 * (re-)initialized; the array can hold as many vertices as fit
+	 * into the current capacity of coords.
+	 * @param type one of the TYPE_ constants of GeometryInfo, e.g.
+	 *             GeometryInfo.TRIANGLE_ARRAY.
+	 * @param withNormals whether to add normals to the geometry.
+	 */
+	protected GeometryArray createGeometryByRef(int type,
+			boolean withNormals) {
+		int nValid = coords.size();
+		int nAll = coords.capacity();
+		boolean direct = coords.isDirect();
+
+		TupleBuffer oldColors = colors;
+		colors = new TupleBuffer(nAll, direct);
+		colors.setSize(nValid);
+		if(color != null || oldColors == null) {
+			colors.fill(0, color != null ? color : DEFAULT_COLOR);
+		} else {
+			// keep the per-vertex colors
+			Color3f c = new Color3f();
+			for(int i = 0; i < nValid; i++) {
+				if(i < oldColors.size())
+					oldColors.get(i, c);
+				else
+					c.set(DEFAULT_COLOR);
+				colors.set(i, c);
+			}
+		}
+		normals = null;
+		if(withNormals) {
+			normals = new TupleBuffer(nAll, direct);
+			normals.setSize(nValid);
+		}
+
+		int format = GeometryArray.COORDINATES |
+				GeometryArray.COLOR_3 |
+				GeometryArray.BY_REFERENCE;
+		if(withNormals)
+			format |= GeometryArray.NORMALS;
+		if(direct)
+			format |= GeometryArray.USE_NIO_BUFFER;
+
+		GeometryArray ga;
+		switch(type) {
+			case GeometryInfo.TRIANGLE_ARRAY:
+				ga = new TriangleArray(nAll, format); break;
+			case GeometryInfo.QUAD_ARRAY:
+				ga = new QuadArray(nAll, format); break;
+			case POINT_ARRAY:
+				ga = new PointArray(nAll, format); break;
+			case LINE_ARRAY:
+				ga = new LineArray(nAll, format); break;
+			case LINE_STRIP_ARRAY:
+				ga = new LineStripArray(nAll, format,
+						new int[] {nValid}); break;
+			default: throw new IllegalArgumentException(
+				"Unsupported geometry type: " + type);
+		}
+		setReferences(ga);
+
+		ga.setCapability(GeometryArray.ALLOW_REF_DATA_READ);
+		ga.setCapability(GeometryArray.ALLOW_REF_DATA_WRITE);
+		ga.setCapability(GeometryArray.ALLOW_COUNT_WRITE);
+		ga.setCapability(GeometryArray.ALLOW_COUNT_READ);
+		ga.setCapability(GeometryArray.ALLOW_FORMAT_READ);
+		ga.setCapability(GeometryArray.ALLOW_INTERSECT);
+
+		if(withNormals && nValid > 0)
+			recalculateNormals(ga);
+		return ga;
+	}
+
+	// GeometryInfo has no constants for these
+	protected static final int POINT_ARRAY = -1;
+	protected static final int LINE_ARRAY = -2;
+	protected static final int LINE_STRIP_ARRAY = -3;
+
+	/**
+	 * Sets the buffers and the number of valid vertices of a geometry
+	 * created by createGeometryByRef().
+	 */
+	private void setReferences(GeometryArray ga) {
+		int format = ga.getVertexFormat();
+		if((format & GeometryArray.USE_NIO_BUFFER) != 0) {
+			ga.setCoordRefBuffer(coords.getJ3DBuffer());
+			ga.setColorRefBuffer(colors.getJ3DBuffer());
+			if(normals != null)
+				ga.setNormalRefBuffer(normals.getJ3DBuffer());
+		} else {
+			ga.setCoordRefFloat(coords.getArray());
+			ga.setColorRefFloat(colors.getArray());
+			if(normals != null)
+				ga.setNormalRefFloat(normals.getArray());
+		}
+		if(ga instanceof GeometryStripArray)
+			((GeometryStripArray)ga).setStripVertexCounts(
+					new int[] {coords.size()});
+		else
+			ga.setValidVertexCount(coords.size());
+	}
+
+	/**
+	 * Tells Java3D that the data referenced by the geometry has changed,
+	 * and updates the references and vertex count.
+	 */
+	protected void updateReferences() {
+		GeometryArray ga = (GeometryArray)getGeometry();
+		if(ga == null || coords == null)
+			return;
+		ga.updateData(new GeometryUpdater() {
+			public void updateData(Geometry g) {
+				setReferences((GeometryArray)g);
+			}
+		});
+		changed = true;
+	}
+
 	protected void addVertices(Point3f[] v) {
+		if(coords != null) {
+			addVerticesToBuffer(v);
+			return;
+		}
 		if(mesh == null)
 			return;
 		changed = true;
@@ -246,7 +704,47 @@ public abstract class CustomMesh extends Shape3D {
 			addVerticesToGeometryArray(v);
 	}
 
+	/**
+	 * Appends the given vertices to the buffers. The geometry is only
+	 * re-created if its capacity is exceeded.
+	 */
+	private void addVerticesToBuffer(Point3f[] v) {
+		changed = true;
+		flushPointView();
+		int n = coords.size();
+		coords.addAll(v);
+		GeometryArray ga = (GeometryArray)getGeometry();
+		if(ga == null || coords.size() > ga.getVertexCount()) {
+			// coords doubles its capacity, which is used for
+			// the new geometry
+			setGeometry(createGeometry());
+			updateNormals((GeometryArray)getGeometry(),
+					n, coords.size(), true);
+			return;
+		}
+		Color3f c = color != null ? color : DEFAULT_COLOR;
+		colors.setSize(coords.size());
+		for(int i = n; i < coords.size(); i++)
+			colors.set(i, c);
+		if(normals != null)
+			normals.setSize(coords.size());
+		updateReferences();
+		updateNormals(ga, n, coords.size(), false);
+	}
+
 	protected void removeVertices(int[] indices) {
+		weldedNormals = null;
+		if(coords != null) {
+			changed = true;
+			flushPointView();
+			int[] sorted = indices.clone();
+			Arrays.sort(sorted);
+			coords.remove(sorted);
+			if(colors != null)
+				colors.remove(sorted);
+			setGeometry(createGeometry());
+			return;
+		}
 		if(mesh == null)
 			return;
 
@@ -261,6 +759,11 @@ public abstract class CustomMesh extends Shape3D {
 
 	public void setColor(Color3f color) {
 		this.color = color != null ? color : DEFAULT_COLOR;
+		if(colors != null) {
+			colors.fill(0, this.color);
+			updateReferences();
+			return;
+		}
 		GeometryArray ga = (GeometryArray)getGeometry();
 		if(ga == null)
 			return;
@@ -282,6 +785,12 @@ public abstract class CustomMesh extends Shape3D {
 		if(color.size() != N)
 			throw new IllegalArgumentException(
 				"list of size " + N + " expected");
+		if(colors != null) {
+			for(int i = 0; i < N; i++)
+				colors.set(i, color.get(i));
+			updateReferences();
+			return;
+		}
 		Color3f[] colors = new Color3f[N];
 		color.toArray(colors);
 		ga.setColors(0, colors);
@@ -290,6 +799,11 @@ public abstract class CustomMesh extends Shape3D {
 
 	public void setColor(int vtxIndex, Color3f color) {
 		this.color = null;
+		if(colors != null) {
+			colors.set(vtxIndex, color);
+			updateReferences();
+			return;
+		}
 		GeometryArray ga = (GeometryArray)getGeometry();
 		if(ga == null)
 			return;
@@ -316,7 +830,10 @@ public abstract class CustomMesh extends Shape3D {
 		double pd = cal.pixelDepth;
 		Point3f coord = new Point3f();
 		for(int i = 0; i < N; i++) {
-			ga.getCoordinate(i, coord);
+			if(coords != null)
+				coords.get(i, coord);
+			else
+				ga.getCoordinate(i, coord);
 			int v = (int)Math.round(ii.interpol.get(
 				coord.x / pw,
 				coord.y / ph,
@@ -326,6 +843,13 @@ public abstract class CustomMesh extends Shape3D {
 				((v & 0xff00) >> 8) / 255f,
 				(v & 0xff) / 255f);
 		}
+		if(this.colors != null) {
+			this.color = null;
+			for(int i = 0; i < N; i++)
+				this.colors.set(i, colors[i]);
+			updateReferences();
+			return;
+		}
 		ga.setColors(0, colors);
 		changed = true;
 	}
@@ -382,35 +906,87 @@ public abstract class CustomMesh extends Shape3D {
 		return appearance;
 	}
 
-	public void restoreDisplayedData(String path, String name) {
-		HashMap<String, CustomMesh> contents = null;
-		try {
-			contents = WavefrontLoader.load(path);
-		} catch(IOException e) {
-			e.printStackTrace();
+	/**
+	 * The coordinates mapped from the swap file by restoreDisplayedData();
+	 * as long as they are not modified, the swap file is up to date.
+	 */
+	private TupleBuffer swappedCoords = null;
+
+	/** The vertex data of a swapped mesh, see swapDisplayedData() */
+	private static class MeshSwap extends SwapWriter.Swap {
+		final List<Point3f> mesh;
+		final TupleBuffer coords, colors;
+
+		MeshSwap(List<Point3f> mesh, TupleBuffer coords,
+				TupleBuffer colors) {
+			this.mesh = mesh;
+			this.coords = coords;
+			this.colors = colors;
 		}
-		if(contents.containsKey(name)) {
-			this.mesh = contents.get(name).getMesh();
-			update();
+
+		protected void write(String file) throws IOException {
+			TupleBuffer c = coords;
+			if(c == null)
+				c = mesh != null ? new TupleBuffer(mesh, false)
+					: new TupleBuffer();
+			BinaryMeshExporter.saveSwap(c, colors, file);
 		}
 	}
 
-	public void swapDisplayedData(String path, String name) {
-		HashMap<String, CustomMesh> contents =
-			new HashMap<String, CustomMesh>();
-		contents.put(name, this);
-		try {
-			WavefrontExporter.save(
-				contents,
-				path + ".obj");
-			this.mesh = null;
-		} catch(IOException e) {
-			e.printStackTrace();
+	public void restoreDisplayedData(String path, String name) {
+		String file = path + BinaryMeshExporter.EXTENSION;
+		MeshSwap swap = (MeshSwap)SwapWriter.reclaim(file);
+		if(swap != null) {
+			// not written yet
+			mesh = swap.mesh;
+			coords = swap.coords;
+			colors = swap.colors;
+		} else {
+			TupleBuffer[] data = null;
+			try {
+				data = BinaryMeshLoader.loadSwap(file);
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+			mesh = null;
+			coords = colors = null;
+			if(data != null && data[0].size() > 0) {
+				coords = swappedCoords = data[0];
+				colors = data[1];
+			} else {
+				// empty, or lost if the file could not be read
+				mesh = new ArrayList<Point3f>();
+			}
 		}
+		normals = null;
+		boolean c = changed;
+		update();
+		changed = c;
+	}
+
+	/**
+	 * Queues the vertex data to be written to a swap file by the
+	 * SwapWriter, and releases it. The other attributes of this mesh
+	 * stay in memory.
+	 */
+	public void swapDisplayedData(String path, String name) {
+		flushPointView();
+		// the swap file still holds the mapped coordinates unless they
+		// were modified; changes of per-vertex colors are not tracked
+		boolean upToDate = coords != null && coords == swappedCoords
+			&& coords.isReadOnly() && color != null;
+		if(!upToDate)
+			SwapWriter.write(path + BinaryMeshExporter.EXTENSION,
+				new MeshSwap(mesh, coords, color == null ? colors : null));
+		clearDisplayedData();
 	}
 
 	public void clearDisplayedData() {
 		this.mesh = null;
+		this.coords = this.colors = this.normals = null;
+		this.weldedNormals = null;
+		this.swappedCoords = null;
+		this.pointView = null;
 	}
 
 	protected abstract GeometryArray createGeometry();
@@ -1,8 +1,6 @@
 package customnode;
 
-import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 
 import javax.media.j3d.BranchGroup;
@@ -174,34 +172,15 @@ public class CustomMultiMesh extends CustomMeshNode {
 	}
 
 	public void restoreDisplayedData(String path, String name) {
-		HashMap<String, CustomMesh> contents = null;
-		customMeshes = null;
-		try {
-			contents = WavefrontLoader.load(path);
-			for(int i = 0; i < contents.size(); i++) {
-				CustomMesh cm = contents.get(name + "###" + i);
-				customMeshes.add(cm);
-				cm.update();
-			}
-
-		} catch(IOException e) {
-			e.printStackTrace();
-		}
+		for(int i = 0; i < customMeshes.size(); i++)
+			customMeshes.get(i).restoreDisplayedData(
+				path + "_" + i, name + "###" + i);
 	}
 
 	public void swapDisplayedData(String path, String name) {
-		HashMap<String, CustomMesh> contents =
-			new HashMap<String, CustomMesh>();
 		for(int i = 0; i < customMeshes.size(); i++)
-			contents.put(name + "###" + i, customMeshes.get(i));
-
-		try {
-			WavefrontExporter.save(
-				contents,
-				path + ".obj");
-		} catch(IOException e) {
-			e.printStackTrace();
-		}
+			customMeshes.get(i).swapDisplayedData(
+				path + "_" + i, name + "###" + i);
 	}
 }
 
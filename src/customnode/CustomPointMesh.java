@@ -29,6 +29,15 @@ public class CustomPointMesh extends CustomMesh {
 		super(mesh, color, transparency);
 	}
 
+	/**
+	 * Creates a point mesh whose vertices are stored as primitive
+	 * floats in the given buffer.
+	 */
+	public CustomPointMesh(TupleBuffer coords,
+						Color3f color, float transparency) {
+		super(coords, color, transparency);
+	}
+
 	public float getPointSize() {
 		return pointsize;
 	}
@@ -100,6 +109,9 @@ public class CustomPointMesh extends CustomMesh {
 
 	@Override
 	protected GeometryArray createGeometry() {
+		if(coords != null)
+			return coords.size() == 0 ? null :
+				createGeometryByRef(POINT_ARRAY, false);
 		if(mesh == null || mesh.size() == 0)
 			return null;
 		List<Point3f> tri = mesh;
@@ -1,5 +1,7 @@
 package customnode;
 
+import ij3d.UniverseSettings;
+
 import java.util.Arrays;
 import java.util.List;
 
@@ -21,6 +23,14 @@ public class CustomQuadMesh extends CustomTriangleMesh {
 		super(mesh, color, trans);
 	}
 
+	/**
+	 * Creates a mesh whose vertices are stored as primitive floats in
+	 * the given buffer; four subsequent vertices form a quad.
+	 */
+	public CustomQuadMesh(TupleBuffer coords, Color3f color, float trans) {
+		super(coords, color, trans);
+	}
+
 	public void addQuads(Point3f[] v) {
 		if(v.length % 4 != 0)
 			throw new IllegalArgumentException(
@@ -37,8 +47,16 @@ public class CustomQuadMesh extends CustomTriangleMesh {
 		addVertices(fourPoints);
 	}
 
+	@Override
+	protected int getVerticesPerFace() {
+		return 4;
+	}
+
 	@Override
 	protected GeometryArray createGeometry() {
+		if(coords != null)
+			return coords.size() < 4 ? null : createGeometryByRef(
+					GeometryInfo.QUAD_ARRAY, true);
 		if(mesh == null || mesh.size() < 4)
 			return null;
 		List<Point3f> tri = mesh;
@@ -59,12 +77,18 @@ public class CustomQuadMesh extends CustomTriangleMesh {
 		ta.setCoordinates(0, coords);
 		ta.setColors(0, colors);
 
-		GeometryInfo gi = new GeometryInfo(ta);
-		// generate normals
-		NormalGenerator ng = new NormalGenerator();
-		ng.generateNormals(gi);
-
-		GeometryArray result = gi.getGeometryArray();
+		GeometryArray result;
+		if(fastNormals) {
+			ta.setNormals(0, MeshNormals.calculate(tri, 4,
+				creaseAngle, UniverseSettings.meshingThreads));
+			result = ta;
+		} else {
+			GeometryInfo gi = new GeometryInfo(ta);
+			// generate normals
+			NormalGenerator ng = new NormalGenerator();
+			ng.generateNormals(gi);
+			result = gi.getGeometryArray();
+		}
 		result.setValidVertexCount(nValid);
 
 		result.setCapability(GeometryArray.ALLOW_NORMAL_WRITE);
@@ -1,5 +1,6 @@
 package customnode;
 
+import ij3d.UniverseSettings;
 import isosurface.MeshProperties;
 
 import java.awt.Polygon;
@@ -37,8 +38,30 @@ public class CustomTriangleMesh extends CustomMesh {
 		}
 	}
 
+	/**
+	 * Creates a mesh whose vertices are stored as primitive floats in
+	 * the given buffer; three subsequent vertices form a triangle.
+	 * The geometry references the buffer directly.
+	 */
+	public CustomTriangleMesh(TupleBuffer coords, Color3f col, float trans) {
+		super(coords, col, trans);
+		if(coords != null) {
+			Point3d center = new Point3d();
+			double[][] inertia = new double[3][3];
+			volume = MeshProperties.compute(coords, center, inertia);
+		}
+	}
+
 	public void setMesh(List<Point3f> mesh) {
 		this.mesh = mesh;
+		this.coords = this.colors = this.normals = null;
+		update();
+	}
+
+	public void setMesh(TupleBuffer coords) {
+		this.mesh = null;
+		this.coords = coords;
+		this.colors = this.normals = null;
 		update();
 	}
 
@@ -79,8 +102,16 @@ public class CustomTriangleMesh extends CustomMesh {
 		removeVertices(vIndices);
 	}
 
+	@Override
+	protected int getVerticesPerFace() {
+		return 3;
+	}
+
 	@Override
 	protected GeometryArray createGeometry() {
+		if(coords != null)
+			return coords.size() < 3 ? null : createGeometryByRef(
+					GeometryInfo.TRIANGLE_ARRAY, true);
 		if(mesh == null || mesh.size() < 3)
 			return null;
 		List<Point3f> tri = mesh;
@@ -98,7 +129,8 @@ public class CustomTriangleMesh extends CustomMesh {
 				colors[i] = new Color3f(DEFAULT_COLOR);
 			}
 			GeometryArray gaOld = (GeometryArray) getGeometry();
-			if (null != gaOld)
+			if (null != gaOld && (gaOld.getVertexFormat() &
+					GeometryArray.BY_REFERENCE) == 0)
 				gaOld.getColors(0, colors);
 		} else {
 			Arrays.fill(colors, color);
@@ -112,15 +144,22 @@ public class CustomTriangleMesh extends CustomMesh {
 		ta.setCoordinates(0, coords);
 		ta.setColors(0, colors);
 
-		GeometryInfo gi = new GeometryInfo(ta);
-// 		gi.recomputeIndices();
-		// generate normals
-		NormalGenerator ng = new NormalGenerator();
-		ng.generateNormals(gi);
-		// stripify
-// 		Stripifier st = new Stripifier();
-// 		st.stripify(gi);
-		GeometryArray result = gi.getGeometryArray();
+		GeometryArray result;
+		if(fastNormals) {
+			ta.setNormals(0, MeshNormals.calculate(tri, 3,
+				creaseAngle, UniverseSettings.meshingThreads));
+			result = ta;
+		} else {
+			GeometryInfo gi = new GeometryInfo(ta);
+// 			gi.recomputeIndices();
+			// generate normals
+			NormalGenerator ng = new NormalGenerator();
+			ng.generateNormals(gi);
+			// stripify
+// 			Stripifier st = new Stripifier();
+// 			st.stripify(gi);
+			result = gi.getGeometryArray();
+		}
 		result.setCapability(GeometryArray.ALLOW_NORMAL_WRITE);
 		result.setCapability(GeometryArray.ALLOW_COLOR_WRITE);
 		result.setCapability(GeometryArray.ALLOW_COORDINATE_WRITE);
@@ -150,6 +189,7 @@ public class CustomTriangleMesh extends CustomMesh {
 		this.getLocalToVworld(toVWorld);
 		volToIP.mul(toVWorld);
 
+		List<Point3f> mesh = getMesh();
 		ArrayList<Point3f> f = new ArrayList<Point3f>();
 		for(int i = 0; i < mesh.size(); i += 3) {
 			Point3f p1 = mesh.get(i);
@@ -163,6 +203,10 @@ public class CustomTriangleMesh extends CustomMesh {
 				f.add(p3);
 			}
 		}
+		if(coords != null) {
+			setMesh(new TupleBuffer(f, coords.isDirect()));
+			return;
+		}
 		mesh.clear();
 		mesh.addAll(f);
 		update();
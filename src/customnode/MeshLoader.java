@@ -12,6 +12,8 @@ public class MeshLoader {
 			return loadDXF(file);
 		if(downCased.endsWith(".stl"))
 			return loadSTL(file);
+		if(downCased.endsWith(BinaryMeshExporter.EXTENSION))
+			return loadBinary(file);
 		return null;
 	}
 
@@ -36,5 +38,13 @@ public class MeshLoader {
 		}
 		return null;
 	}
-}
 
+	public static Map<String, CustomMesh> loadBinary(String file) {
+		try {
+			return BinaryMeshLoader.load(file);
+		} catch(Exception e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+}
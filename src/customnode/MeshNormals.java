@@ -0,0 +1,423 @@
+package customnode;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Calculates vertex normals of triangle and quad meshes directly on
+ * primitive arrays, as a faster replacement for j3dutils' NormalGenerator.
+ *
+ * Vertices at identical positions are welded. The normal of a vertex is
+ * the normalized sum of the area-weighted normals of the faces adjacent
+ * to its welded vertex. If a crease angle is given, only those adjacent
+ * faces are included whose normal deviates from the normal of the
+ * vertex's own face by at most the crease angle, so that sharp edges
+ * stay sharp, like with NormalGenerator.
+ *
+ * Face normals and vertex normals are calculated in parallel if more
+ * than one thread is requested.
+ */
+public class MeshNormals {
+
+	/** The default crease angle of NormalGenerator, 44 degrees. */
+	public static final float DEFAULT_CREASE_ANGLE =
+		(float)Math.toRadians(44);
+
+	/** A crease angle which disables the crease test. */
+	public static final float NO_CREASE = (float)Math.PI;
+
+	/** Minimal number of items processed by a thread. */
+	private static final int MIN_CHUNK = 4096;
+
+	/** The pool shared by all calculations, see getPool() */
+	private static ForkJoinPool pool;
+
+	private MeshNormals() {}
+
+	/**
+	 * Calculates the normals of a triangle or quad soup.
+	 *
+	 * @param coords the vertex coordinates, x, y and z interleaved.
+	 * @param nVertices the number of vertices to use; coords may be
+	 *                  longer than 3 * nVertices.
+	 * @param verticesPerFace 3 for triangles, 4 for quads.
+	 * @param creaseAngle the crease angle in radians; NO_CREASE or
+	 *                    larger for smooth normals everywhere.
+	 * @param nThreads the number of threads to use.
+	 * @return the normals, x, y and z interleaved, one per vertex.
+	 */
+	public static float[] calculate(float[] coords, int nVertices,
+			int verticesPerFace, float creaseAngle, int nThreads) {
+		float[] normals = new float[3 * nVertices];
+		calculate(coords, nVertices, verticesPerFace, creaseAngle,
+				nThreads, normals);
+		return normals;
+	}
+
+	/**
+	 * Like calculate(float[], int, int, float, int), but stores the
+	 * normals in the given array, which must hold at least 3 * nVertices
+	 * floats.
+	 */
+	public static void calculate(final float[] coords, int nVertices,
+			final int verticesPerFace, float creaseAngle,
+			int nThreads, final float[] normals) {
+		if(verticesPerFace != 3 && verticesPerFace != 4)
+			throw new IllegalArgumentException(
+				"Only triangles and quads are supported");
+		final int nFaces = nVertices / verticesPerFace;
+		nVertices = nFaces * verticesPerFace;
+
+		final int[] weld = new int[nVertices];
+		final int nWelded = WeldedNormals.weld(coords, nVertices, weld);
+		final float[] faceNormals = faceNormals(coords, null,
+				verticesPerFace, nFaces, nThreads);
+		final int[] offsets = new int[nWelded + 1];
+		final int[] corners = corners(weld, nVertices, nWelded,
+				offsets);
+
+		if(creaseAngle >= NO_CREASE) {
+			forEach(nWelded, nThreads, new Range() {
+				@Override
+				public void run(int from, int to) {
+					for(int w = from; w < to; w++)
+						smooth(w, offsets, corners,
+							verticesPerFace,
+							faceNormals, normals);
+				}
+			});
+			return;
+		}
+
+		final float cosCrease = (float)Math.cos(creaseAngle);
+		final float[] lengths = new float[nFaces];
+		for(int f = 0; f < nFaces; f++)
+			lengths[f] = length(faceNormals, 3 * f);
+		forEach(nWelded, nThreads, new Range() {
+			@Override
+			public void run(int from, int to) {
+				for(int w = from; w < to; w++)
+					creased(w, offsets, corners,
+						verticesPerFace, faceNormals,
+						lengths, cosCrease, normals);
+			}
+		});
+	}
+
+	/**
+	 * Calculates the normals of a list of vertices, three (triangles) or
+	 * four (quads) per face.
+	 */
+	public static float[] calculate(List<Point3f> vertices,
+			int verticesPerFace, float creaseAngle, int nThreads) {
+		float[] coords = new float[3 * vertices.size()];
+		int i = 0;
+		for(Point3f p : vertices) {
+			coords[i++] = p.x;
+			coords[i++] = p.y;
+			coords[i++] = p.z;
+		}
+		return calculate(coords, vertices.size(), verticesPerFace,
+				creaseAngle, nThreads);
+	}
+
+	/**
+	 * Calculates the normals of the vertices stored in the given buffer,
+	 * three (triangles) or four (quads) per face, and stores them in
+	 * the given normals buffer, which is resized accordingly.
+	 */
+	public static void calculate(TupleBuffer coords, int verticesPerFace,
+			float creaseAngle, int nThreads, TupleBuffer normals) {
+		int n = coords.size();
+		float[] c;
+		if(coords.isDirect()) {
+			c = new float[3 * n];
+			for(int i = 0; i < c.length; i++)
+				c[i] = coords.get(i);
+		} else {
+			c = coords.getArray();
+		}
+		normals.setSize(n);
+		if(normals.isDirect()) {
+			float[] result = calculate(c, n, verticesPerFace,
+					creaseAngle, nThreads);
+			for(int i = 0; i < result.length; i++)
+				normals.set(i, result[i]);
+		} else {
+			calculate(c, n, verticesPerFace, creaseAngle,
+					nThreads, normals.getArray());
+		}
+	}
+
+	/**
+	 * Calculates the normals of an indexed triangle mesh, i.e. one
+	 * normal per vertex, the normalized sum of the area-weighted normals
+	 * of all adjacent triangles. Vertices are not welded.
+	 *
+	 * @param vertices the vertex coordinates, x, y and z interleaved.
+	 * @param faces the vertex indices, three per triangle.
+	 * @param nIndices the number of entries in faces to use.
+	 * @return the normals, x, y and z interleaved.
+	 */
+	public static float[] calculate(float[] vertices, int[] faces,
+			int nIndices, int nThreads) {
+		final int nVertices = vertices.length / 3;
+		int nFaces = nIndices / 3;
+		nIndices = 3 * nFaces;
+		final float[] faceNormals = faceNormals(vertices, faces,
+				3, nFaces, nThreads);
+		final int[] offsets = new int[nVertices + 1];
+		final int[] corners = corners(faces, nIndices, nVertices,
+				offsets);
+		final float[] sums = new float[3 * nVertices];
+		forEach(nVertices, nThreads, new Range() {
+			@Override
+			public void run(int from, int to) {
+				for(int v = from; v < to; v++)
+					sum(v, offsets, corners, 3,
+						faceNormals, sums);
+			}
+		});
+		return sums;
+	}
+
+	/**
+	 * Calculates the area-weighted face normals: the cross product of
+	 * two edges for triangles, and of the two diagonals for quads.
+	 * The vertex coordinates are looked up via the given indices, or,
+	 * if indices is null, taken consecutively from coords.
+	 */
+	private static float[] faceNormals(final float[] coords,
+			final int[] indices, final int verticesPerFace,
+			int nFaces, int nThreads) {
+		final float[] faceNormals = new float[3 * nFaces];
+		forEach(nFaces, nThreads, new Range() {
+			@Override
+			public void run(int from, int to) {
+				for(int f = from; f < to; f++) {
+					int i = f * verticesPerFace;
+					int a, b, c, d;
+					if(indices == null) {
+						a = 3 * i; b = a + 3;
+						c = b + 3; d = c + 3;
+					} else {
+						a = 3 * indices[i];
+						b = 3 * indices[i + 1];
+						c = 3 * indices[i + 2];
+						d = verticesPerFace == 4 ?
+							3 * indices[i + 3] : 0;
+					}
+					faceNormal(coords, a, b, c, d,
+						verticesPerFace, faceNormals,
+						3 * f);
+				}
+			}
+		});
+		return faceNormals;
+	}
+
+	private static void faceNormal(float[] coords, int a, int b, int c,
+			int d, int verticesPerFace, float[] n, int offset) {
+		// u x v, with u = b - a, v = c - a for triangles
+		// and u = c - a, v = d - b for quads
+		int u0 = a, u1 = b, v0 = a, v1 = c;
+		if(verticesPerFace == 4) {
+			u1 = c;
+			v0 = b;
+			v1 = d;
+		}
+		float ux = coords[u1] - coords[u0];
+		float uy = coords[u1 + 1] - coords[u0 + 1];
+		float uz = coords[u1 + 2] - coords[u0 + 2];
+		float vx = coords[v1] - coords[v0];
+		float vy = coords[v1 + 1] - coords[v0 + 1];
+		float vz = coords[v1 + 2] - coords[v0 + 2];
+		n[offset] = uy * vz - uz * vy;
+		n[offset + 1] = uz * vx - ux * vz;
+		n[offset + 2] = ux * vy - uy * vx;
+	}
+
+	/**
+	 * Sorts the corners c (0 <= c < nCorners) by the vertex indices[c]
+	 * they refer to, i.e. the corners of vertex i are stored in the
+	 * returned array from offsets[i] (inclusive) to offsets[i + 1]
+	 * (exclusive).
+	 */
+	private static int[] corners(int[] indices, int nCorners,
+			int nVertices, int[] offsets) {
+		for(int c = 0; c < nCorners; c++)
+			offsets[indices[c] + 1]++;
+		for(int i = 0; i < nVertices; i++)
+			offsets[i + 1] += offsets[i];
+		int[] pos = new int[nVertices];
+		System.arraycopy(offsets, 0, pos, 0, nVertices);
+		int[] corners = new int[nCorners];
+		for(int c = 0; c < nCorners; c++)
+			corners[pos[indices[c]]++] = c;
+		return corners;
+	}
+
+	/**
+	 * Sums up the normals of all faces adjacent to index i and stores
+	 * the normalized sum at position i of normals.
+	 */
+	private static void sum(int i, int[] offsets, int[] corners,
+			int verticesPerFace, float[] faceNormals,
+			float[] normals) {
+		float x = 0, y = 0, z = 0;
+		for(int k = offsets[i]; k < offsets[i + 1]; k++) {
+			int f = 3 * (corners[k] / verticesPerFace);
+			x += faceNormals[f];
+			y += faceNormals[f + 1];
+			z += faceNormals[f + 2];
+		}
+		store(x, y, z, normals, 3 * i);
+	}
+
+	/**
+	 * Like sum(), but stores the normal for all vertices of the welded
+	 * vertex w.
+	 */
+	private static void smooth(int w, int[] offsets, int[] corners,
+			int verticesPerFace, float[] faceNormals,
+			float[] normals) {
+		float x = 0, y = 0, z = 0;
+		for(int k = offsets[w]; k < offsets[w + 1]; k++) {
+			int f = 3 * (corners[k] / verticesPerFace);
+			x += faceNormals[f];
+			y += faceNormals[f + 1];
+			z += faceNormals[f + 2];
+		}
+		int first = offsets[w];
+		store(x, y, z, normals, 3 * corners[first]);
+		for(int k = first + 1; k < offsets[w + 1]; k++)
+			System.arraycopy(normals, 3 * corners[first],
+					normals, 3 * corners[k], 3);
+	}
+
+	/**
+	 * Calculates the normals of the vertices of the welded vertex w,
+	 * each one including only the faces within the crease angle.
+	 */
+	private static void creased(int w, int[] offsets, int[] corners,
+			int verticesPerFace, float[] faceNormals,
+			float[] lengths, float cosCrease, float[] normals) {
+		int start = offsets[w], end = offsets[w + 1];
+		for(int k = start; k < end; k++) {
+			int f = corners[k] / verticesPerFace;
+			float fx = faceNormals[3 * f];
+			float fy = faceNormals[3 * f + 1];
+			float fz = faceNormals[3 * f + 2];
+			float limit = cosCrease * lengths[f];
+			float x = 0, y = 0, z = 0;
+			for(int l = start; l < end; l++) {
+				int g = 3 * (corners[l] / verticesPerFace);
+				float gx = faceNormals[g];
+				float gy = faceNormals[g + 1];
+				float gz = faceNormals[g + 2];
+				if(fx * gx + fy * gy + fz * gz
+						< limit * lengths[g / 3])
+					continue;
+				x += gx;
+				y += gy;
+				z += gz;
+			}
+			store(x, y, z, normals, 3 * corners[k]);
+		}
+	}
+
+	private static float length(float[] v, int offset) {
+		float x = v[offset], y = v[offset + 1], z = v[offset + 2];
+		return (float)Math.sqrt(x * x + y * y + z * z);
+	}
+
+	private static void store(float x, float y, float z,
+			float[] normals, int offset) {
+		float len = (float)Math.sqrt(x * x + y * y + z * z);
+		if(len == 0) {
+			normals[offset] = normals[offset + 1] =
+				normals[offset + 2] = 0;
+			return;
+		}
+		normals[offset] = x / len;
+		normals[offset + 1] = y / len;
+		normals[offset + 2] = z / len;
+	}
+
+	private static abstract class Range {
+		public abstract void run(int from, int to);
+	}
+
+	/**
+	 * Returns the pool shared by all calculations, which is created
+	 * when it is first needed. Its daemon threads are reused across
+	 * calculations, and end when they are idle.
+	 */
+	private static synchronized ForkJoinPool getPool() {
+		if(pool == null)
+			pool = new ForkJoinPool(
+				Runtime.getRuntime().availableProcessors());
+		return pool;
+	}
+
+	/**
+	 * Runs range on chunks of [0, n), using the calling thread and up
+	 * to nThreads - 1 threads of the shared pool. Returns only when all
+	 * chunks are done, since they write to arrays owned by the caller;
+	 * the first exception of a chunk is rethrown then.
+	 */
+	private static void forEach(final int n, int nThreads,
+			final Range range) {
+		final int chunk = Math.max(MIN_CHUNK,
+				n / (4 * Math.max(nThreads, 1)) + 1);
+		nThreads = Math.min(nThreads, (n + chunk - 1) / chunk);
+		if(nThreads < 2) {
+			range.run(0, n);
+			return;
+		}
+		final AtomicInteger next = new AtomicInteger(0);
+		Runnable worker = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for(int from = next.getAndAdd(chunk);
+							from < n;
+							from = next.getAndAdd(chunk))
+						range.run(from,
+							Math.min(n, from + chunk));
+				} catch(RuntimeException e) {
+					// skip the remaining chunks
+					next.set(n);
+					throw e;
+				}
+			}
+		};
+		ForkJoinPool pool = getPool();
+		List<ForkJoinTask<?>> tasks =
+			new ArrayList<ForkJoinTask<?>>(nThreads - 1);
+		for(int i = 1; i < nThreads; i++)
+			tasks.add(pool.submit(worker));
+		RuntimeException failure = null;
+		try {
+			worker.run();
+		} catch(RuntimeException e) {
+			failure = e;
+		}
+		// join() is not interrupted
+		for(ForkJoinTask<?> task : tasks) {
+			try {
+				task.join();
+			} catch(RuntimeException e) {
+				if(failure == null)
+					failure = e;
+			}
+		}
+		if(failure != null)
+			throw failure;
+	}
+}
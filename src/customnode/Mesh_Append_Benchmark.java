@@ -0,0 +1,113 @@
+/* -*- mode: java; c-basic-offset: 8; indent-tabs-mode: t; tab-width: 8 -*- */
+
+package customnode;
+
+import ij.IJ;
+import ij.gui.GenericDialog;
+import ij.plugin.PlugIn;
+
+import java.util.ArrayList;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Micro benchmark for streaming triangles into a CustomTriangleMesh,
+ * e.g. from a tracing tool.
+ *
+ * Appends triangles of a long ribbon in batches, once with the incremental
+ * normal update, and once recalculating all normals after each batch, as
+ * it was done before. The latter is quadratic in the number of triangles,
+ * so it is run for fewer triangles by default.
+ */
+public class Mesh_Append_Benchmark implements PlugIn {
+
+	public void run(String arg) {
+		GenericDialog gd = new GenericDialog("Mesh append benchmark");
+		gd.addNumericField("Triangles", 1000000, 0);
+		gd.addNumericField("Batch size", 100, 0);
+		gd.addNumericField("Triangles (full normal update)", 20000, 0);
+		gd.showDialog();
+		if(gd.wasCanceled())
+			return;
+		int nTriangles = (int)gd.getNextNumber();
+		int batch = (int)gd.getNextNumber();
+		int nTrianglesFull = (int)gd.getNextNumber();
+		benchmark(nTriangles, batch, nTrianglesFull);
+	}
+
+	public static void main(String[] args) {
+		int nTriangles = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+		int batch = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+		int nTrianglesFull = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+		benchmark(nTriangles, batch, nTrianglesFull);
+	}
+
+	public static void benchmark(int nTriangles, int batch,
+			int nTrianglesFull) {
+		long t = append(new CustomTriangleMesh(
+				new ArrayList<Point3f>()), nTriangles, batch);
+		log("incremental normals: " + nTriangles + " triangles in "
+			+ "batches of " + batch + ": " + t + " ms ("
+			+ (1000000L * t / nTriangles) + " ns per triangle)");
+
+		CustomTriangleMesh full = new CustomTriangleMesh(
+				new ArrayList<Point3f>()) {
+			@Override
+			protected int getVerticesPerFace() {
+				// disables the incremental update
+				return 0;
+			}
+		};
+		t = append(full, nTrianglesFull, batch);
+		log("full normal update:  " + nTrianglesFull + " triangles in "
+			+ "batches of " + batch + ": " + t + " ms ("
+			+ (1000000L * t / nTrianglesFull) + " ns per triangle)");
+	}
+
+	/**
+	 * Appends nTriangles triangles of a ribbon in the xy-plane, bent
+	 * around the z-axis, to the given mesh; subsequent triangles share
+	 * vertices. Returns the time in milliseconds.
+	 */
+	private static long append(CustomTriangleMesh mesh, int nTriangles,
+			int batch) {
+		Point3f[] tri = new Point3f[3 * batch];
+		long start = System.currentTimeMillis();
+		for(int i = 0; i < nTriangles; i += batch) {
+			int n = Math.min(batch, nTriangles - i);
+			if(n != batch)
+				tri = new Point3f[3 * n];
+			for(int j = 0; j < n; j++) {
+				int k = (i + j) / 2;
+				Point3f a0 = ribbon(k, 0), a1 = ribbon(k, 1);
+				Point3f b0 = ribbon(k + 1, 0), b1 = ribbon(k + 1, 1);
+				if((i + j) % 2 == 0) {
+					tri[3 * j] = a0;
+					tri[3 * j + 1] = b0;
+					tri[3 * j + 2] = a1;
+				} else {
+					tri[3 * j] = a1;
+					tri[3 * j + 1] = b0;
+					tri[3 * j + 2] = b1;
+				}
+			}
+			mesh.addTriangles(tri);
+		}
+		return System.currentTimeMillis() - start;
+	}
+
+	private static Point3f ribbon(int k, int side) {
+		double angle = k * 0.001;
+		return new Point3f(
+			(float)(100 * Math.cos(angle)),
+			(float)(100 * Math.sin(angle)),
+			side + k * 0.01f);
+	}
+
+	private static void log(String s) {
+		if(IJ.getInstance() != null)
+			IJ.log(s);
+		else
+			System.out.println(s);
+	}
+}
@@ -0,0 +1,126 @@
+package customnode;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Writes text to a Writer which is formatted in blocks by several
+ * threads. The blocks are written in the order in which they were
+ * added, and only a few blocks per thread are held in memory at any
+ * time, so the amount of formatted text in memory is bounded
+ * independent of the total size of the output.
+ *
+ * Typical use:
+ * <pre>
+ * OrderedTextWriter out = new OrderedTextWriter(w, nThreads);
+ * try {
+ *     ... out.write(...) ...
+ *     out.finish();
+ * } finally {
+ *     out.cancel();
+ * }
+ * </pre>
+ */
+public class OrderedTextWriter {
+
+	/** Formats a part of the output */
+	public static abstract class Block {
+		protected abstract void format(TextBuffer out);
+	}
+
+	private final Writer out;
+	private final ExecutorService exec;
+	private final int window;
+
+	/* Strings and Futures of blocks which are not written yet */
+	private final LinkedList<Object> pending = new LinkedList<Object>();
+
+	private final TextBuffer tmp = new TextBuffer();
+
+	/**
+	 * @param out the writer to write to. It is neither flushed nor
+	 *        closed by this class.
+	 * @param nThreads the number of threads to format blocks with.
+	 */
+	public OrderedTextWriter(Writer out, int nThreads) {
+		this.out = out;
+		this.exec = nThreads > 1
+			? Executors.newFixedThreadPool(nThreads) : null;
+		this.window = 2 * nThreads;
+	}
+
+	public void write(String s) throws IOException {
+		if(pending.isEmpty())
+			out.write(s);
+		else
+			pending.add(s);
+	}
+
+	public void write(final Block block) throws IOException {
+		if(exec == null) {
+			tmp.clear();
+			block.format(tmp);
+			tmp.writeTo(out);
+			return;
+		}
+		pending.add(exec.submit(new Callable<TextBuffer>() {
+			public TextBuffer call() {
+				TextBuffer buf = new TextBuffer();
+				block.format(buf);
+				return buf;
+			}
+		}));
+		while(pending.size() > window)
+			writeFirst();
+	}
+
+	/**
+	 * Writes all pending blocks and releases the threads.
+	 */
+	public void finish() throws IOException {
+		while(!pending.isEmpty())
+			writeFirst();
+		cancel();
+	}
+
+	/**
+	 * Discards all pending blocks and releases the threads. Must be
+	 * called if finish() was not reached, e.g. after an exception; does
+	 * nothing after finish().
+	 */
+	public void cancel() {
+		for(Object o : pending)
+			if(o instanceof Future)
+				((Future<?>)o).cancel(true);
+		pending.clear();
+		if(exec != null)
+			exec.shutdownNow();
+	}
+
+	private void writeFirst() throws IOException {
+		Object o = pending.removeFirst();
+		if(o instanceof String) {
+			out.write((String)o);
+			return;
+		}
+		try {
+			((TextBuffer)((Future<?>)o).get()).writeTo(out);
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while writing");
+		} catch(ExecutionException e) {
+			Throwable cause = e.getCause();
+			if(cause instanceof RuntimeException)
+				throw (RuntimeException)cause;
+			if(cause instanceof Error)
+				throw (Error)cause;
+			throw new IOException(cause);
+		}
+	}
+}
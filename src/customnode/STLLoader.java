@@ -3,14 +3,19 @@ package customnode;
 import ij.IJ;
 
 import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.text.DecimalFormat;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -24,7 +29,18 @@ public class STLLoader {
 	 */
 	public static Map<String, CustomMesh> load(String stlfile)
 			throws IOException {
+		return load(stlfile, false);
+	}
+
+	/**
+	 * Load the specified stl file. If weld is true, binary STL files are
+	 * returned as CustomIndexedTriangleMeshes, whose vertices are shared
+	 * by all triangles with identical corner coordinates.
+	 */
+	public static Map<String, CustomMesh> load(String stlfile, boolean weld)
+			throws IOException {
 		STLLoader sl = new STLLoader();
+		sl.weld = weld;
 		try {
 			sl.parse(stlfile);
 		} catch (RuntimeException e) {
@@ -34,7 +50,11 @@ public class STLLoader {
 		return sl.meshes;
 	}
 
+	/** Number of triangles read from the file at once */
+	private static final int CHUNK = 1 << 16;
+
 	private HashMap<String, CustomMesh> meshes;
+	private boolean weld = false;
 
 	private STLLoader() {
 	}
@@ -47,7 +67,6 @@ public class STLLoader {
 	private String name = null;
 	private String stlfile = null;
 	private Point3f normal = new Point3f(0.0f, 0.0f, 0.0f); //to be used for file checking
-	private FileInputStream fis;
 	private int triangles;
 	private DecimalFormat decimalFormat = new DecimalFormat("0.0E0");
 
@@ -62,23 +81,30 @@ public class STLLoader {
 		// Hypothesis 1: this is an ASCII STL
 		BufferedReader br = new BufferedReader(new FileReader(stlfile));
 		String line = br.readLine();
-		String[] words = line.trim().split("\\s+");
-		if (line.indexOf('\0') < 0 && words[0].equalsIgnoreCase("solid")) {
+		br.close();
+		String[] words = line == null ? new String[] {""}
+			: line.trim().split("\\s+");
+		if (line != null && line.indexOf('\0') < 0
+				&& words[0].equalsIgnoreCase("solid")) {
 			IJ.log("Looks like an ASCII STL");
 			parseAscii(f);
 			return;
 		}
 
 		// Hypothesis 2: this is a binary STL
-		FileInputStream fs = new FileInputStream(f);
-
 		// bytes 80, 81, 82 and 83 form a little-endian int
 		// that contains the number of triangles
-		byte[] buffer = new byte[84];
-		fs.read(buffer, 0, 84);
-		triangles = (int) (((buffer[83] & 0xff) << 24)
-				| ((buffer[82] & 0xff) << 16) | ((buffer[81] & 0xff) << 8) | (buffer[80] & 0xff));
-		if (((f.length() - 84) / 50) == triangles) {
+		ByteBuffer header = ByteBuffer.allocate(84)
+			.order(ByteOrder.LITTLE_ENDIAN);
+		FileChannel fc = new FileInputStream(f).getChannel();
+		try {
+			while (header.hasRemaining() && fc.read(header) >= 0)
+				;
+		} finally {
+			fc.close();
+		}
+		triangles = header.hasRemaining() ? -1 : header.getInt(80);
+		if (f.length() >= 84 && ((f.length() - 84) / 50) == triangles) {
 			IJ.log("Looks like a binary STL");
 			parseBinary(f);
 			return;
@@ -119,41 +145,96 @@ public class STLLoader {
 		meshes.put(name, cm);
 	}
 
-	private void parseBinary(File f) {
+	/**
+	 * Reads the triangles in chunks into a float array, via a
+	 * little-endian ByteBuffer.
+	 */
+	private void parseBinary(File f) throws IOException {
 		meshes = new HashMap<String, CustomMesh>();
-		vertices = new ArrayList<Point3f>();
+		float[] coords = new float[9 * triangles];
+		ByteBuffer buf = ByteBuffer.allocate(50 * Math.min(CHUNK, triangles))
+			.order(ByteOrder.LITTLE_ENDIAN);
+		FileChannel fc = new FileInputStream(f).getChannel();
 		try {
-			fis = new FileInputStream(f);
-			for (int h = 0; h < 84; h++)
-				fis.read();// skip the header bytes
-			for (int t = 0; t < triangles; t++) {
-				byte[] tri = new byte[50];
-				for (int tb = 0; tb < 50; tb++) {
-					tri[tb] = (byte) fis.read();
-				}
-				normal.x = leBytesToFloat(tri[0], tri[1], tri[2], tri[3]);
-				normal.y = leBytesToFloat(tri[4], tri[5], tri[6], tri[7]);
-				normal.z = leBytesToFloat(tri[8], tri[9], tri[10], tri[11]);
-				for (int i = 0; i < 3; i++) {
-					final int j = i * 12 + 12;
-					float px = leBytesToFloat(tri[j], tri[j + 1], tri[j + 2],
-							tri[j + 3]);
-					float py = leBytesToFloat(tri[j + 4], tri[j + 5],
-							tri[j + 6], tri[j + 7]);
-					float pz = leBytesToFloat(tri[j + 8], tri[j + 9],
-							tri[j + 10], tri[j + 11]);
-					Point3f p = new Point3f(px, py, pz);
-					vertices.add(p);
-				}
+			fc.position(84); // skip the header bytes
+			int j = 0;
+			for (int t = 0; t < triangles; t += CHUNK) {
+				int n = Math.min(CHUNK, triangles - t);
+				buf.clear();
+				buf.limit(50 * n);
+				while (buf.hasRemaining())
+					if (fc.read(buf) < 0)
+						throw new EOFException("Unexpected end of "
+								+ stlfile);
+				// skip the normal and the attribute byte count
+				for (int tri = 0; tri < n; tri++)
+					for (int k = 12; k < 48; k += 4)
+						coords[j++] = buf.getFloat(50 * tri + k);
 			}
-			fis.close();
-		} catch (FileNotFoundException e) {
-			e.printStackTrace();
-		} catch (IOException e) {
-			e.printStackTrace();
+		} finally {
+			fc.close();
 		}
-		CustomMesh cm = createCustomMesh();
-		meshes.put(name, cm);
+		meshes.put(name, createCustomMesh(coords));
+	}
+
+	private CustomMesh createCustomMesh(float[] coords) {
+		if (coords.length == 0)
+			return null;
+		CustomMesh cm;
+		if (weld) {
+			int[] faces = new int[coords.length / 3];
+			float[] vertices = weld(coords, faces);
+			cm = new CustomIndexedTriangleMesh(vertices, faces,
+					CustomMesh.DEFAULT_COLOR, 0);
+		} else {
+			cm = new CustomTriangleMesh(new TupleBuffer(coords),
+					CustomMesh.DEFAULT_COLOR, 0);
+		}
+		cm.loadedFromName = name;
+		cm.changed = false;
+		return cm;
+	}
+
+	/**
+	 * Merges vertices with identical coordinates, using a hash table of
+	 * their bits with open addressing. Returns the interleaved coordinates
+	 * of the distinct vertices and stores the index of each input vertex
+	 * in faces.
+	 */
+	static float[] weld(float[] coords, int[] faces) {
+		int n = coords.length / 3;
+		int capacity = Integer.highestOneBit(Math.max(2, 2 * n) - 1) << 1;
+		int mask = capacity - 1;
+		int[] table = new int[capacity];
+		Arrays.fill(table, -1);
+		float[] vertices = new float[coords.length];
+		int nVertices = 0;
+		for (int i = 0; i < n; i++) {
+			// adding 0 turns -0 into 0
+			float x = coords[3 * i] + 0f;
+			float y = coords[3 * i + 1] + 0f;
+			float z = coords[3 * i + 2] + 0f;
+			int h = Float.floatToIntBits(x);
+			h = 31 * h + Float.floatToIntBits(y);
+			h = 31 * h + Float.floatToIntBits(z);
+			h ^= h >>> 16;
+			h *= 0x85ebca6b;
+			h ^= h >>> 13;
+			int slot = h & mask;
+			int v;
+			while ((v = table[slot]) >= 0 && (vertices[3 * v] != x
+					|| vertices[3 * v + 1] != y || vertices[3 * v + 2] != z))
+				slot = (slot + 1) & mask;
+			if (v < 0) {
+				v = nVertices++;
+				vertices[3 * v] = x;
+				vertices[3 * v + 1] = y;
+				vertices[3 * v + 2] = z;
+				table[slot] = v;
+			}
+			faces[i] = v;
+		}
+		return Arrays.copyOf(vertices, 3 * nVertices);
 	}
 
 	private float parseFloat(String string) throws ParseException {
@@ -164,11 +245,6 @@ public class STLLoader {
 	  	return decimalFormat.parse(string).floatValue();
 	}
 	
-	private float leBytesToFloat(byte b0, byte b1, byte b2, byte b3) {
-		return Float.intBitsToFloat((((b3 & 0xff) << 24) | ((b2 & 0xff) << 16)
-				| ((b1 & 0xff) << 8) | (b0 & 0xff)));
-	}
-
 	private CustomMesh createCustomMesh() {
 		if (vertices.size() == 0)
 			return null;
@@ -0,0 +1,147 @@
+package customnode;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * A growable buffer of characters with fast formatting of numbers, used
+ * by the text based mesh exporters.
+ *
+ * Floats are written with the fewest decimals which read back as the
+ * same float, without creating intermediate Strings; very small or large
+ * values are written with Float.toString().
+ */
+public class TextBuffer {
+
+	private static final double[] POW10 = new double[13];
+	static {
+		POW10[0] = 1;
+		for(int i = 1; i < POW10.length; i++)
+			POW10[i] = 10 * POW10[i - 1];
+	}
+
+	private char[] buf;
+	private int length = 0;
+
+	public TextBuffer() {
+		this(1 << 12);
+	}
+
+	public TextBuffer(int capacity) {
+		buf = new char[Math.max(16, capacity)];
+	}
+
+	public int length() {
+		return length;
+	}
+
+	public void clear() {
+		length = 0;
+	}
+
+	/** Writes the contents of this buffer to the given writer. */
+	public void writeTo(Writer w) throws IOException {
+		w.write(buf, 0, length);
+	}
+
+	@Override
+	public String toString() {
+		return new String(buf, 0, length);
+	}
+
+	private void ensureCapacity(int n) {
+		if(length + n > buf.length)
+			buf = Arrays.copyOf(buf, Math.max(2 * buf.length, length + n));
+	}
+
+	public TextBuffer append(char c) {
+		ensureCapacity(1);
+		buf[length++] = c;
+		return this;
+	}
+
+	public TextBuffer append(String s) {
+		int n = s.length();
+		ensureCapacity(n);
+		s.getChars(0, n, buf, length);
+		length += n;
+		return this;
+	}
+
+	public TextBuffer append(int v) {
+		return append((long)v);
+	}
+
+	public TextBuffer append(long v) {
+		ensureCapacity(20);
+		if(v < 0) {
+			if(v == Long.MIN_VALUE)
+				return append(Long.toString(v));
+			buf[length++] = '-';
+			v = -v;
+		}
+		int end = length + digits(v);
+		for(int i = end - 1; i >= length; i--) {
+			buf[i] = (char)('0' + v % 10);
+			v /= 10;
+		}
+		length = end;
+		return this;
+	}
+
+	private static int digits(long v) {
+		int n = 1;
+		while(v >= 10) {
+			v /= 10;
+			n++;
+		}
+		return n;
+	}
+
+	/**
+	 * Appends the given float such that Float.parseFloat() of the
+	 * result gives the same float again.
+	 */
+	public TextBuffer append(float f) {
+		if(f == 0)
+			return append(Float.floatToRawIntBits(f) < 0 ? "-0.0" : "0.0");
+		double a = Math.abs((double)f);
+		if(a >= 1e-3 && a < 1e7) {
+			float af = Math.abs(f);
+			for(int d = 1; d < POW10.length; d++) {
+				double scaled = a * POW10[d];
+				if(scaled >= (1L << 53))
+					break;
+				long m = (long)Math.rint(scaled);
+				double back = m / POW10[d];
+				// reading back rounds the exact decimal value to float;
+				// back is correctly rounded, and rounding it to float is
+				// the same unless it lies halfway between two floats
+				long bits = Double.doubleToRawLongBits(back);
+				if((float)back == af
+						&& (bits & 0x1fffffffL) != 0x10000000L) {
+					appendFixed(f < 0, m, d);
+					return this;
+				}
+			}
+		}
+		return append(Float.toString(f));
+	}
+
+	/** Appends m / 10^decimals with the given number of decimals */
+	private void appendFixed(boolean negative, long m, int decimals) {
+		ensureCapacity(22 + decimals);
+		if(negative)
+			buf[length++] = '-';
+		long p = (long)POW10[decimals];
+		append(m / p);
+		buf[length++] = '.';
+		long frac = m % p;
+		for(int i = length + decimals - 1; i >= length; i--) {
+			buf[i] = (char)('0' + frac % 10);
+			frac /= 10;
+		}
+		length += decimals;
+	}
+}
@@ -0,0 +1,282 @@
+package customnode;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.media.j3d.J3DBuffer;
+import javax.vecmath.Point3f;
+import javax.vecmath.Tuple3f;
+
+/**
+ * A growable buffer of three-component float tuples, e.g. the coordinates,
+ * colors or normals of the vertices of a CustomMesh.
+ *
+ * The tuples are stored interleaved in a float array, or, for direct
+ * buffers, in a native-order FloatBuffer outside of the Java heap. The
+ * capacity is doubled when it is exceeded, which reallocates the storage;
+ * geometries referencing the data need to be updated in this case.
+ */
+public class TupleBuffer {
+
+	private float[] data;
+	private FloatBuffer buffer;
+	private final boolean direct;
+	/** Whether the array is shared and needs to be copied before writing */
+	private boolean readOnly = false;
+
+	/** The number of tuples in this buffer */
+	private int size = 0;
+
+	public TupleBuffer() {
+		this(16, false);
+	}
+
+	/**
+	 * @param capacity the initial number of tuples which can be stored.
+	 * @param direct if true, store the tuples off-heap.
+	 */
+	public TupleBuffer(int capacity, boolean direct) {
+		this.direct = direct;
+		allocate(Math.max(1, capacity));
+	}
+
+	/**
+	 * Wraps the given array of interleaved tuples, without copying it.
+	 */
+	public TupleBuffer(float[] data) {
+		this(data, false);
+	}
+
+	/**
+	 * Wraps the given array of interleaved tuples, without copying it.
+	 * If readOnly is set, the array is copied when it is modified for
+	 * the first time, so that it can be shared, e.g. with a cache.
+	 */
+	public TupleBuffer(float[] data, boolean readOnly) {
+		this.direct = false;
+		this.data = data;
+		this.size = data.length / 3;
+		this.readOnly = readOnly;
+	}
+
+	/**
+	 * Wraps the given direct, native-order buffer of interleaved tuples
+	 * without copying it, e.g. a memory-mapped part of a file. Read-only
+	 * buffers are copied when they are modified for the first time.
+	 */
+	public TupleBuffer(FloatBuffer buffer) {
+		if(!buffer.isDirect() || buffer.order() != ByteOrder.nativeOrder())
+			throw new IllegalArgumentException(
+				"Only direct, native-order buffers can be wrapped");
+		this.direct = true;
+		this.buffer = buffer.slice();
+		this.size = this.buffer.capacity() / 3;
+	}
+
+	public TupleBuffer(List<? extends Tuple3f> tuples, boolean direct) {
+		this(tuples.size(), direct);
+		for(Tuple3f t : tuples)
+			add(t);
+	}
+
+	private void allocate(int capacity) {
+		if(direct) {
+			FloatBuffer b = ByteBuffer.allocateDirect(12 * capacity)
+				.order(ByteOrder.nativeOrder()).asFloatBuffer();
+			if(buffer != null) {
+				FloatBuffer old = buffer.duplicate();
+				old.position(0);
+				old.limit(3 * size);
+				b.put(old);
+				b.position(0);
+			}
+			buffer = b;
+		} else {
+			data = data == null ? new float[3 * capacity]
+					: Arrays.copyOf(data, 3 * capacity);
+			readOnly = false;
+		}
+	}
+
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * Returns true if the tuples are still stored in the read-only
+	 * buffer or array this was created with, i.e. they were not modified.
+	 */
+	public boolean isReadOnly() {
+		return direct ? buffer.isReadOnly() : readOnly;
+	}
+
+	/**
+	 * Copies the tuples of a read-only buffer, e.g. a memory-mapped
+	 * file or a shared array, into newly allocated memory, as a
+	 * modification would.
+	 * Geometries referencing the data need to be updated afterwards.
+	 */
+	public void unmap() {
+		if(isReadOnly())
+			allocate(capacity());
+	}
+
+	/** Returns the number of tuples in this buffer. */
+	public int size() {
+		return size;
+	}
+
+	/** Returns the number of tuples which fit into the current storage. */
+	public int capacity() {
+		return direct ? buffer.capacity() / 3 : data.length / 3;
+	}
+
+	/**
+	 * Makes sure that n tuples can be stored, by doubling the capacity
+	 * until it is large enough.
+	 * @return true if the storage was reallocated.
+	 */
+	public boolean ensureCapacity(int n) {
+		int c = capacity();
+		if(n <= c)
+			return false;
+		c = Math.max(c, 1);
+		while(c < n)
+			c = c > (Integer.MAX_VALUE / 6) ? n : 2 * c;
+		allocate(c);
+		return true;
+	}
+
+	/** Sets the number of tuples, growing the storage if necessary. */
+	public void setSize(int n) {
+		ensureCapacity(n);
+		size = n;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/** Returns the i-th float, i.e. component i % 3 of tuple i / 3. */
+	public final float get(int i) {
+		return direct ? buffer.get(i) : data[i];
+	}
+
+	public final void set(int i, float v) {
+		if(direct) {
+			if(buffer.isReadOnly())
+				allocate(capacity());
+			buffer.put(i, v);
+		} else {
+			if(readOnly)
+				allocate(capacity());
+			data[i] = v;
+		}
+	}
+
+	/** Copies n floats, starting with float i, into the given buffer. */
+	public void get(int i, FloatBuffer dst, int n) {
+		if(direct) {
+			FloatBuffer b = buffer.duplicate();
+			b.limit(i + n);
+			b.position(i);
+			dst.put(b);
+		} else {
+			dst.put(data, i, n);
+		}
+	}
+
+	public void get(int index, Tuple3f t) {
+		int i = 3 * index;
+		t.set(get(i), get(i + 1), get(i + 2));
+	}
+
+	public void set(int index, Tuple3f t) {
+		set(index, t.x, t.y, t.z);
+	}
+
+	public void set(int index, float x, float y, float z) {
+		int i = 3 * index;
+		set(i, x);
+		set(i + 1, y);
+		set(i + 2, z);
+	}
+
+	public void add(float x, float y, float z) {
+		ensureCapacity(size + 1);
+		set(size++, x, y, z);
+	}
+
+	public void add(Tuple3f t) {
+		add(t.x, t.y, t.z);
+	}
+
+	public void addAll(Tuple3f[] t) {
+		ensureCapacity(size + t.length);
+		for(int i = 0; i < t.length; i++)
+			set(size++, t[i]);
+	}
+
+	/** Sets the tuples from index on to the given value. */
+	public void fill(int index, Tuple3f t) {
+		for(int i = index; i < size; i++)
+			set(i, t);
+	}
+
+	/**
+	 * Removes the tuples at the given indices, which must be sorted
+	 * in ascending order. Invalid indices are ignored.
+	 */
+	public void remove(int[] indices) {
+		int next = 0, n = 0;
+		for(int i = 0; i < size; i++) {
+			while(next < indices.length && indices[next] < i)
+				next++;
+			if(next < indices.length && indices[next] == i)
+				continue;
+			if(n != i)
+				set(n, get(3 * i), get(3 * i + 1), get(3 * i + 2));
+			n++;
+		}
+		size = n;
+	}
+
+	/**
+	 * Returns the backing array, which may be longer than 3 * size(),
+	 * and must not be modified if isReadOnly(). Throws an exception for
+	 * direct buffers.
+	 */
+	public float[] getArray() {
+		if(direct)
+			throw new UnsupportedOperationException(
+				"Direct buffers are not backed by an array");
+		return data;
+	}
+
+	/**
+	 * Returns the data wrapped in a J3DBuffer, for use with by-reference
+	 * geometries created with GeometryArray.USE_NIO_BUFFER. Throws an
+	 * exception for heap buffers.
+	 */
+	public J3DBuffer getJ3DBuffer() {
+		if(!direct)
+			throw new UnsupportedOperationException(
+				"Only direct buffers can be wrapped");
+		return new J3DBuffer(buffer);
+	}
+
+	/** Copies the tuples into a new list of points. */
+	public List<Point3f> toPointList() {
+		List<Point3f> l = new ArrayList<Point3f>(size);
+		for(int i = 0; i < size; i++) {
+			Point3f p = new Point3f();
+			get(i, p);
+			l.add(p);
+		}
+		return l;
+	}
+}
@@ -6,13 +6,12 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 
 import javax.vecmath.Color3f;
 import javax.vecmath.Color4f;
-import javax.vecmath.Point3f;
 
 public class WavefrontExporter {
 
@@ -56,6 +55,9 @@ public class WavefrontExporter {
 		}
 	}
 
+	/** Number of vertices or faces formatted per block */
+	private static final int BLOCK = 1 << 13;
+
 	/**
 	 * Write the given collection of <code>CustomMesh</code>es;
 	 * @param meshes maps a name to a <code>CustomMesh</code>. The name
@@ -70,6 +72,22 @@ public class WavefrontExporter {
 			String mtlFileName,
 			Writer objWriter,
 			Writer mtlWriter) throws IOException {
+		save(meshes, mtlFileName, objWriter, mtlWriter,
+			Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Write the given collection of <code>CustomMesh</code>es, formatting
+	 * vertices and faces with the given number of threads. The meshes
+	 * are streamed to the writer in blocks, so that only a bounded amount
+	 * of text is held in memory.
+	 */
+	public static void save(
+			Map<String, CustomMesh> meshes,
+			String mtlFileName,
+			Writer objWriter,
+			Writer mtlWriter,
+			int nThreads) throws IOException {
 
 		objWriter.write("# OBJ File\n");
 		objWriter.write("mtllib ");
@@ -80,90 +98,102 @@ public class WavefrontExporter {
 
 		// Vert indices in .obj files are global, not reset for every
 		// object. Starting at '1' because vert indices start at one.
-		int j = 1; 
+		int j = 1;
 
-		final StringBuffer tmp = new StringBuffer(100);
+		OrderedTextWriter out = new OrderedTextWriter(objWriter, nThreads);
+		try {
+			for(String name : meshes.keySet()) {
+				CustomMesh cmesh = meshes.get(name);
 
-		for(String name : meshes.keySet()) {
-			CustomMesh cmesh = meshes.get(name);
+				TupleBuffer coords = cmesh.getCoordinates();
+				if(coords == null)
+					coords = new TupleBuffer(cmesh.getMesh(), false);
+				// make material, and see whether it exists already
+				Color3f color = cmesh.getColor();
+				if (null == color) {
+					// happens when independent colors
+					// have been set for each vertex.
+					color = CustomMesh.DEFAULT_COLOR;
+				}
+				Mtl mat = new Mtl(1 - cmesh.getTransparency(),
+						color);
+				if(ht_mat.containsKey(mat))
+					mat = ht_mat.get(mat);
+				else
+					ht_mat.put(mat, mat);
 
-			final List<Point3f> vertices = cmesh.getMesh();
-			// make material, and see whether it exists already
-			Color3f color = cmesh.getColor();
-			if (null == color) {
-				// happens when independent colors
-				// have been set for each vertex.
-				color = CustomMesh.DEFAULT_COLOR;
-			}
-			Mtl mat = new Mtl(1 - cmesh.getTransparency(),
-					color);
-			if(ht_mat.containsKey(mat))
-				mat = ht_mat.get(mat);
-			else
-				ht_mat.put(mat, mat);
-
-			// make list of vertices
-			String title = name.replaceAll(" ", "_").
-					replaceAll("#", "--");
-			HashMap<Point3f, Integer> ht_points =
-					new HashMap<Point3f, Integer>();
-			objWriter.write("g ");
-			objWriter.write(title);
-			objWriter.write('\n');
-			final int len = vertices.size();
-			int[] index = new int[len];
-
-			// index over index array, to make faces later
-			int k = 0;
-			for (Point3f p : vertices) {
-				// check if point already exists
-				if(ht_points.containsKey(p)) {
-					index[k] = ht_points.get(p);
+				// check the face type before writing anything
+				int arity, step;
+				int[] faces = null;
+				if(cmesh.getClass() == CustomIndexedTriangleMesh.class) {
+					faces = ((CustomIndexedTriangleMesh)cmesh)
+						.getFaces();
+					checkMultiple(faces.length, 3, "triangles", name);
+					arity = step = 3;
+				} else if(cmesh.getClass() == CustomTriangleMesh.class) {
+					checkMultiple(coords.size(), 3, "triangles", name);
+					arity = step = 3;
+				} else if(cmesh.getClass() == CustomQuadMesh.class) {
+					checkMultiple(coords.size(), 4, "quads", name);
+					arity = step = 4;
+				} else if(cmesh.getClass() == CustomPointMesh.class) {
+					arity = step = 1;
+				} else if(cmesh.getClass() == CustomLineMesh.class) {
+					CustomLineMesh clm = (CustomLineMesh)cmesh;
+					switch(clm.getMode()) {
+					case CustomLineMesh.PAIRWISE:
+						checkMultiple(coords.size(), 2, "lines", name);
+						arity = step = 2;
+						break;
+					case CustomLineMesh.CONTINUOUS:
+						arity = 2;
+						step = 1;
+						break;
+					default: throw new IllegalArgumentException(
+						"Unknown line mesh mode");
+					}
 				} else {
-					// new point
-					index[k] = j;
-					// record
-					ht_points.put(p, j);
-					// append vertex
-					tmp.append('v').append(' ')
-					   .append(p.x).append(' ')
-					   .append(p.y).append(' ')
-					   .append(p.z).append('\n');
-					objWriter.write(tmp.toString());
-					tmp.setLength(0);
-					j++;
+					throw new IllegalArgumentException(
+						"Unknown custom mesh class: " +
+						cmesh.getClass());
 				}
-				k++;
-			}
-			objWriter.write("usemtl ");
-			objWriter.write(mat.name);
-			objWriter.write('\n');
-			// print faces
-			if(cmesh.getClass() == CustomTriangleMesh.class)
-				writeTriangleFaces(index, objWriter, name);
-			else if(cmesh.getClass() == CustomQuadMesh.class)
-				writeQuadFaces(index, objWriter, name);
-			else if(cmesh.getClass() == CustomPointMesh.class)
-				writePointFaces(index, objWriter, name);
-			else if(cmesh.getClass() == CustomLineMesh.class) {
-				CustomLineMesh clm = (CustomLineMesh)cmesh;
-				switch(clm.getMode()) {
-				case CustomLineMesh.PAIRWISE:
-					writePairwiseLineFaces(
-						index, objWriter, name);
-					break;
-				case CustomLineMesh.CONTINUOUS:
-					writeContinuousLineFaces(
-						index, objWriter, name);
-					break;
-				default: throw new IllegalArgumentException(
-					"Unknown line mesh mode");
+
+				// make list of vertices
+				String title = name.replaceAll(" ", "_").
+						replaceAll("#", "--");
+				out.write("g " + title + "\n");
+				final int len = coords.size();
+				final int[] index = new int[len];
+				final int[] firsts = new int[len];
+				int nNew = indexVertices(coords, j, index, firsts);
+				for(int i = 0; i < nNew; i += BLOCK)
+					out.write(new VertexBlock(coords, firsts, i,
+						Math.min(BLOCK, nNew - i)));
+				j += nNew;
+
+				// indexed meshes list the corners of their faces
+				int[] corners = index;
+				int nCorners = len;
+				if(faces != null) {
+					nCorners = faces.length;
+					corners = new int[nCorners];
+					for(int c = 0; c < nCorners; c++)
+						corners[c] = index[faces[c]];
 				}
-			} else {
-				throw new IllegalArgumentException(
-					"Unknown custom mesh class: " +
-					cmesh.getClass());
+
+				out.write("usemtl " + mat.name + "\n");
+				// print faces
+				out.write("s 1\n");
+				int nFaces = arity == step
+					? nCorners / step : Math.max(0, nCorners - 1);
+				for(int f = 0; f < nFaces; f += BLOCK)
+					out.write(new FaceBlock(corners, f,
+						Math.min(BLOCK, nFaces - f), arity, step));
+				out.write("\n");
 			}
+			out.finish();
+		} finally {
+			out.cancel();
 		}
 		// make mtl file
 		mtlWriter.write("# MTL File\n");
@@ -174,103 +204,106 @@ public class WavefrontExporter {
 		}
 	}
 
-	/**
-	 * Write faces for triangle meshes.
-	 */
-	static void writeTriangleFaces(int[] indices, Writer objWriter, String name)
-						throws IOException {
-		if(indices.length % 3 != 0)
-			throw new IllegalArgumentException(
-				"list of triangles not multiple of 3: " + name);
-		final StringBuffer buf = new StringBuffer(100);
-		objWriter.write("s 1\n");
-		for (int i = 0; i < indices.length; i += 3) {
-			buf.append('f').append(' ')
-				.append(indices[i]).append(' ')
-				.append(indices[i+1]).append(' ')
-				.append(indices[i+2]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
-		}
-		objWriter.write('\n');
+	private static void checkMultiple(int n, int m, String what,
+			String name) {
+		if(n % m != 0)
+			throw new IllegalArgumentException("list of " + what
+				+ " not multiple of " + m + ": " + name);
 	}
 
 	/**
-	 * Write faces for point meshes.
+	 * Assigns each vertex the obj index of the first vertex with the same
+	 * coordinates, using a hash table with open addressing. New indices
+	 * are numbered from firstIndex on. Stores the position of the
+	 * vertex which defines each new index in firsts, and returns the
+	 * number of new indices.
 	 */
-	static void writePointFaces(int[] indices, Writer objWriter, String name)
-						throws IOException {
-		final StringBuffer buf = new StringBuffer(100);
-		objWriter.write("s 1\n");
-		for (int i = 0; i < indices.length; i++) {
-			buf.append('f').append(' ')
-				.append(indices[i]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
+	static int indexVertices(TupleBuffer coords, int firstIndex,
+			int[] index, int[] firsts) {
+		int n = coords.size();
+		int capacity = Integer.highestOneBit(Math.max(2, 2 * n) - 1) << 1;
+		int mask = capacity - 1;
+		int[] table = new int[capacity];
+		Arrays.fill(table, -1);
+		int nNew = 0;
+		for(int i = 0; i < n; i++) {
+			float x = coords.get(3 * i);
+			float y = coords.get(3 * i + 1);
+			float z = coords.get(3 * i + 2);
+			// adding 0 turns -0 into 0, as they are equal
+			int h = Float.floatToIntBits(x + 0f);
+			h = 31 * h + Float.floatToIntBits(y + 0f);
+			h = 31 * h + Float.floatToIntBits(z + 0f);
+			h ^= h >>> 16;
+			h *= 0x85ebca6b;
+			h ^= h >>> 13;
+			int slot = h & mask;
+			int v, p;
+			while((v = table[slot]) >= 0 && (
+					coords.get(p = 3 * firsts[v]) != x ||
+					coords.get(p + 1) != y ||
+					coords.get(p + 2) != z))
+				slot = (slot + 1) & mask;
+			if(v < 0) {
+				v = nNew++;
+				firsts[v] = i;
+				table[slot] = v;
+			}
+			index[i] = firstIndex + v;
 		}
-		objWriter.write('\n');
+		return nNew;
 	}
 
-	/**
-	 * Write faces for quad meshes.
-	 */
-	static void writeQuadFaces(int[] indices, Writer objWriter, String name)
-						throws IOException {
-		if(indices.length % 4 != 0)
-			throw new IllegalArgumentException(
-				"list of quads not multiple of 4: " + name);
-		final StringBuffer buf = new StringBuffer(100);
-		objWriter.write("s 1\n");
-		for (int i = 0; i < indices.length; i += 4) {
-			buf.append('f').append(' ')
-				.append(indices[i]).append(' ')
-				.append(indices[i+1]).append(' ')
-				.append(indices[i+2]).append(' ')
-				.append(indices[i+3]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
+	/** Formats the lines of a range of new vertices */
+	private static final class VertexBlock extends OrderedTextWriter.Block {
+		private final TupleBuffer coords;
+		private final int[] firsts;
+		private final int start, count;
+
+		VertexBlock(TupleBuffer coords, int[] firsts, int start, int count) {
+			this.coords = coords;
+			this.firsts = firsts;
+			this.start = start;
+			this.count = count;
 		}
-		objWriter.write('\n');
-	}
 
-	/**
-	 * Write faces for pairwise line meshes, ie the points addressed
-	 * by the indices array are arranged in pairs each specifying 
-	 * one line segment.
-	 */
-	static void writePairwiseLineFaces(int[] indices, Writer objWriter, String name)
-						throws IOException {
-		if(indices.length % 2 != 0)
-			throw new IllegalArgumentException(
-				"list of lines not multiple of 2: " + name);
-		final StringBuffer buf = new StringBuffer(100);
-		objWriter.write("s 1\n");
-		for (int i = 0; i < indices.length; i += 2) {
-			buf.append('f').append(' ')
-				.append(indices[i]).append(' ')
-				.append(indices[i+1]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
+		@Override
+		protected void format(TextBuffer buf) {
+			for(int i = start; i < start + count; i++) {
+				int p = 3 * firsts[i];
+				buf.append('v').append(' ')
+					.append(coords.get(p)).append(' ')
+					.append(coords.get(p + 1)).append(' ')
+					.append(coords.get(p + 2)).append('\n');
+			}
 		}
-		objWriter.write('\n');
 	}
 
 	/**
-	 * Write faces for continuous line meshes, ie the points addressed
-	 * by the indices array represent a continuous line.
+	 * Formats a range of faces. Face f consists of the arity indices
+	 * starting at f * step.
 	 */
-	static void writeContinuousLineFaces(int[] indices, Writer objWriter, String name)
-						throws IOException {
-		final StringBuffer buf = new StringBuffer(100);
-		objWriter.write("s 1\n");
-		for (int i = 0; i < indices.length - 1; i++) {
-			buf.append('f').append(' ')
-				.append(indices[i]).append(' ')
-				.append(indices[i+1]).append('\n');
-			objWriter.write(buf.toString());
-			buf.setLength(0);
+	private static final class FaceBlock extends OrderedTextWriter.Block {
+		private final int[] index;
+		private final int start, count, arity, step;
+
+		FaceBlock(int[] index, int start, int count, int arity, int step) {
+			this.index = index;
+			this.start = start;
+			this.count = count;
+			this.arity = arity;
+			this.step = step;
+		}
+
+		@Override
+		protected void format(TextBuffer buf) {
+			for(int f = start; f < start + count; f++) {
+				buf.append('f');
+				for(int k = 0, i = f * step; k < arity; k++, i++)
+					buf.append(' ').append(index[i]);
+				buf.append('\n');
+			}
 		}
-		objWriter.write('\n');
 	}
 
 	/** A Material, but avoiding name colisions. Not thread-safe. */
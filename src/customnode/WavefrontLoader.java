@@ -2,17 +2,40 @@ package customnode;
 
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.vecmath.Color3f;
 import javax.vecmath.Color4f;
 import javax.vecmath.Point3f;
 
+/**
+ * Loads Wavefront OBJ files.
+ *
+ * The file is split into chunks at line boundaries, which are tokenized
+ * concurrently directly from bytes: each chunk yields its vertices as
+ * floats and its faces, groups and material statements in the order of
+ * the file. These are then replayed sequentially, so the result is the
+ * same for any number of threads.
+ */
 public class WavefrontLoader {
 
+	/** Minimum number of bytes per chunk */
+	private static final int MIN_CHUNK = 1 << 22;
+
 	/**
 	 * Load the specified obj file and returns the result as
 	 * a hash map, mapping the object names to the corresponding
@@ -20,9 +43,18 @@ public class WavefrontLoader {
 	 */
 	public static HashMap<String, CustomMesh> load(String objfile)
 						throws IOException {
+		return load(objfile, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Load the specified obj file, tokenizing it with up to nThreads
+	 * threads.
+	 */
+	public static HashMap<String, CustomMesh> load(String objfile,
+			int nThreads) throws IOException {
 		WavefrontLoader wl = new WavefrontLoader();
 		try {
-			wl.parse(objfile);
+			wl.parse(objfile, nThreads);
 		} catch(RuntimeException e) {
 			System.out.println("error reading " + wl.name);
 			throw e;
@@ -34,51 +66,74 @@ public class WavefrontLoader {
 
 	private  WavefrontLoader() {}
 
-	private BufferedReader in;
-	private String line;
-
 	// attributes of the currently read mesh
-	private ArrayList<Point3f> vertices = new ArrayList<Point3f>();
+	private Point3f[] vertices;
 	private ArrayList<Point3f> indices = new ArrayList<Point3f>();
 	private String name = null;
 	private Color4f material = null;
 	private int type = -1;
 	private String objfile = null;
 
-	private void parse(String objfile) throws IOException {
+	private void parse(String objfile, int nThreads) throws IOException {
 		this.objfile = objfile;
 		File f = new File(objfile);
 
-		in = new BufferedReader(new FileReader(objfile));
+		List<Chunk> chunks = tokenize(f, nThreads);
+		int nVertices = 0;
+		for(Chunk c : chunks)
+			nVertices += c.nVertices;
+		vertices = new Point3f[nVertices];
+		int v = 0;
+		for(Chunk c : chunks) {
+			for(int i = 0; i < c.nVertices; i++, v++)
+				vertices[v] = new Point3f(c.vertices[3 * i],
+					c.vertices[3 * i + 1], c.vertices[3 * i + 2]);
+			c.vertices = null;
+		}
+
 		HashMap<String, Color4f> materials = null;
 
 		meshes = new HashMap<String, CustomMesh>();
 
-		while((line = in.readLine()) != null) {
-			if(line.startsWith("mtllib")) {
-				String mtlName = line.split("\\s+")[1].trim();
-				materials = readMaterials(f, mtlName);
-			} else if(line.startsWith("g ")) {
-				if(name != null) {
-					CustomMesh cm = createCustomMesh();
-					if(cm != null)
-						meshes.put(name, cm);
-					indices = new ArrayList<Point3f>();
-					material = null;
+		for(Chunk c : chunks) {
+			int[] ops = c.ops;
+			for(int i = 0; i < c.nOps; ) {
+				int op = ops[i++];
+				switch(op) {
+				case Chunk.MTLLIB:
+					materials = readMaterials(f,
+						c.strings.get(ops[i++]));
+					break;
+				case Chunk.GROUP:
+					if(name != null) {
+						CustomMesh cm = createCustomMesh();
+						if(cm != null)
+							meshes.put(name, cm);
+						indices = new ArrayList<Point3f>();
+						material = null;
+					}
+					name = c.strings.get(ops[i++]);
+					break;
+				case Chunk.USEMTL:
+					String mtl = c.strings.get(ops[i++]);
+					if(materials != null)
+						material = materials.get(mtl);
+					break;
+				default:
+					// a face with op vertices
+					type = op;
+					indices.ensureCapacity(indices.size() + op);
+					for(int k = 0; k < op; k++) {
+						int idx = ops[i++];
+						if(idx == -1)
+							throw new RuntimeException(
+								"Error parsing faces: " + name);
+						indices.add(vertices[idx]);
+					}
+					break;
 				}
-				name = line.split("\\s+")[1].trim();
-			} else if(line.startsWith("usemtl ")) {
-				if(materials != null)
-					material = materials.get(line.split("\\s+")[1]);
-			} else if(line.startsWith("v ")) {
-				readVertex();
-			} else if(line.startsWith("f ")) {
-				readFace();
-			} else if(line.startsWith("l ")) {
-				readFace();
-			} else if(line.startsWith("p ")) {
-				readFace();
 			}
+			c.ops = null;
 		}
 		if(name != null && indices.size() > 0) {
 			CustomMesh cm = createCustomMesh();
@@ -112,33 +167,350 @@ public class WavefrontLoader {
 		return cm;
 	}
 
-	private void readFace() {
-		String[] sp = line.split("\\s+");
-		type = sp.length - 1;
-		for(int i = 1; i < sp.length; i++) {
-			int idx = -1;
+	/**
+	 * Splits the file into chunks at line boundaries and tokenizes them
+	 * in parallel.
+	 */
+	private static List<Chunk> tokenize(File f, int nThreads)
+			throws IOException {
+		final FileChannel fc = new FileInputStream(f).getChannel();
+		try {
+			long length = fc.size();
+			int n = (int)Math.max(1, Math.min(4L * nThreads,
+				length / MIN_CHUNK));
+			final List<Chunk> chunks = new ArrayList<Chunk>(n);
+			for(int i = 0; i < n; i++)
+				chunks.add(new Chunk(length * i / n,
+					length * (i + 1) / n));
+			if(n == 1 || nThreads < 2) {
+				for(Chunk c : chunks)
+					c.tokenize(fc);
+				return chunks;
+			}
+			final AtomicInteger next = new AtomicInteger();
+			List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+			for(int t = 0; t < Math.min(nThreads, n); t++) {
+				tasks.add(new Callable<Object>() {
+					public Object call() throws IOException {
+						int i;
+						while((i = next.getAndIncrement()) < chunks.size())
+							chunks.get(i).tokenize(fc);
+						return null;
+					}
+				});
+			}
+			ExecutorService exec = Executors.newFixedThreadPool(tasks.size());
 			try {
-				idx = Integer.parseInt(sp[i]) - 1;
-			} catch(NumberFormatException e) {
-				int l = sp[i].indexOf('/');
-				if(l != -1) {
-					sp[i] = sp[i].substring(0, l);
-					idx = Integer.parseInt(sp[i]) - 1;
-				}
+				for(Future<Object> fu : exec.invokeAll(tasks))
+					fu.get();
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while reading " + f);
+			} catch(ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof IOException)
+					throw (IOException)cause;
+				if(cause instanceof RuntimeException)
+					throw (RuntimeException)cause;
+				throw new RuntimeException(cause);
+			} finally {
+				exec.shutdown();
 			}
-			if(idx == -1)
-				throw new RuntimeException(
-					"Error parsing faces: " + name);
-			indices.add(vertices.get(idx));
+			return chunks;
+		} finally {
+			fc.close();
 		}
 	}
 
-	private void readVertex() {
-		String[] sp = line.split("\\s+");
-		vertices.add(new Point3f(
-			Float.parseFloat(sp[1]),
-			Float.parseFloat(sp[2]),
-			Float.parseFloat(sp[3])));
+	/**
+	 * The tokens of the lines starting in a range of bytes of the file.
+	 * Vertices are stored as floats; everything else as a sequence of
+	 * operations: MTLLIB, GROUP or USEMTL followed by the index of a
+	 * string, or, for a face, its number of vertices followed by their
+	 * zero-based indices.
+	 */
+	private static final class Chunk {
+		static final int MTLLIB = -1, GROUP = -2, USEMTL = -3;
+
+		private static final int BUFFER_SIZE = 1 << 20;
+
+		private final long start, end;
+
+		float[] vertices = new float[3 * 1024];
+		int nVertices = 0;
+		int[] ops = new int[1024];
+		int nOps = 0;
+		final List<String> strings = new ArrayList<String>();
+
+		// the bytes currently read from the file
+		private byte[] buf = new byte[BUFFER_SIZE];
+		private int pos, limit;
+		private long bufStart;
+		private boolean eof;
+
+		// the current line, from pos to lineEnd
+		private int lineEnd;
+
+		Chunk(long start, long end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		void tokenize(FileChannel fc) throws IOException {
+			bufStart = Math.max(0, start - 1);
+			pos = limit = 0;
+			fill(fc);
+			// a line starts in this chunk if the previous byte ends a line
+			if(start > 0) {
+				boolean lineStart = buf[0] == '\n' || buf[0] == '\r';
+				pos = 1;
+				if(!lineStart && !nextLine(fc))
+					return;
+				pos = lineEnd;
+				skipLineEnd(fc);
+			}
+			while(bufStart + pos < end && nextLine(fc)) {
+				parseLine();
+				pos = lineEnd;
+				skipLineEnd(fc);
+			}
+			buf = null;
+		}
+
+		/**
+		 * Finds the end of the line starting at pos, reading more of the
+		 * file if necessary. Returns false at the end of the file.
+		 */
+		private boolean nextLine(FileChannel fc) throws IOException {
+			int i = pos;
+			while(true) {
+				while(i < limit && buf[i] != '\n' && buf[i] != '\r')
+					i++;
+				if(i < limit || eof) {
+					lineEnd = i;
+					return i > pos || i < limit;
+				}
+				i -= pos;
+				fill(fc);
+				i += pos;
+			}
+		}
+
+		private void skipLineEnd(FileChannel fc) throws IOException {
+			if(pos == limit && !eof)
+				fill(fc);
+			if(pos < limit && buf[pos] == '\r') {
+				pos++;
+				if(pos == limit && !eof)
+					fill(fc);
+			}
+			if(pos < limit && buf[pos] == '\n')
+				pos++;
+		}
+
+		/** Moves the bytes from pos to the start and reads more */
+		private void fill(FileChannel fc) throws IOException {
+			int remaining = limit - pos;
+			if(remaining == buf.length)
+				buf = Arrays.copyOf(buf, 2 * buf.length);
+			System.arraycopy(buf, pos, buf, 0, remaining);
+			bufStart += pos;
+			pos = 0;
+			limit = remaining;
+			ByteBuffer bb = ByteBuffer.wrap(buf, limit, buf.length - limit);
+			int r = fc.read(bb, bufStart + limit);
+			if(r < 0)
+				eof = true;
+			else
+				limit += r;
+		}
+
+		private void parseLine() {
+			int l = lineEnd - pos;
+			if(l < 2)
+				return;
+			byte c = buf[pos];
+			if(buf[pos + 1] == ' ') {
+				if(c == 'v')
+					readVertex();
+				else if(c == 'f' || c == 'l' || c == 'p')
+					readFace();
+				else if(c == 'g')
+					addString(GROUP);
+			} else if(startsWith("usemtl ")) {
+				addString(USEMTL);
+			} else if(startsWith("mtllib")) {
+				addString(MTLLIB);
+			}
+		}
+
+		private boolean startsWith(String prefix) {
+			int n = prefix.length();
+			if(lineEnd - pos < n)
+				return false;
+			for(int i = 0; i < n; i++)
+				if(buf[pos + i] != prefix.charAt(i))
+					return false;
+			return true;
+		}
+
+		// the current token, from tokStart to tokEnd
+		private int tokStart, tokEnd;
+
+		/** Finds the next whitespace-separated token after tokEnd */
+		private boolean nextToken() {
+			int i = tokEnd;
+			while(i < lineEnd && isWhitespace(buf[i]))
+				i++;
+			if(i == lineEnd)
+				return false;
+			tokStart = i;
+			while(i < lineEnd && !isWhitespace(buf[i]))
+				i++;
+			tokEnd = i;
+			return true;
+		}
+
+		private static boolean isWhitespace(byte b) {
+			return b == ' ' || b == '\t' || b == 0x0b || b == '\f';
+		}
+
+		/** Adds the operation with the second token of the line */
+		private void addString(int op) {
+			tokEnd = pos;
+			nextToken();
+			if(!nextToken())
+				throw new RuntimeException("Missing name in line: "
+					+ new String(buf, pos, lineEnd - pos));
+			addOp(op);
+			addOp(strings.size());
+			strings.add(new String(buf, tokStart, tokEnd - tokStart));
+		}
+
+		private void readVertex() {
+			if(3 * nVertices + 3 > vertices.length)
+				vertices = Arrays.copyOf(vertices, 2 * vertices.length);
+			tokEnd = pos + 1;
+			for(int i = 0; i < 3; i++) {
+				if(!nextToken())
+					throw new RuntimeException("Missing coordinate: "
+						+ new String(buf, pos, lineEnd - pos));
+				vertices[3 * nVertices + i] = parseFloat();
+			}
+			nVertices++;
+		}
+
+		private void readFace() {
+			int opIndex = nOps;
+			addOp(0);
+			int n = 0;
+			tokEnd = pos + 1;
+			while(nextToken()) {
+				addOp(parseIndex() - 1);
+				n++;
+			}
+			ops[opIndex] = n;
+		}
+
+		private void addOp(int op) {
+			if(nOps == ops.length)
+				ops = Arrays.copyOf(ops, 2 * ops.length);
+			ops[nOps++] = op;
+		}
+
+		/**
+		 * Parses the vertex index in front of the first '/' of the
+		 * current token. Returns 0 if it is not a number.
+		 */
+		private int parseIndex() {
+			int i = tokStart;
+			boolean neg = false;
+			if(i < tokEnd && (buf[i] == '-' || buf[i] == '+'))
+				neg = buf[i++] == '-';
+			int digitsStart = i;
+			long v = 0;
+			while(i < tokEnd && buf[i] >= '0' && buf[i] <= '9'
+					&& v <= Integer.MAX_VALUE)
+				v = 10 * v + (buf[i++] - '0');
+			if(i == digitsStart || (i < tokEnd && buf[i] != '/')
+					|| v > Integer.MAX_VALUE)
+				return 0;
+			return (int)(neg ? -v : v);
+		}
+
+		/**
+		 * Parses the current token as a float. Simple decimal numbers
+		 * are parsed directly; ambiguous cases, in which the result
+		 * might differ from Float.parseFloat() in the last bit, and
+		 * all other formats are handed to Float.parseFloat().
+		 */
+		private float parseFloat() {
+			int i = tokStart;
+			boolean neg = false;
+			if(i < tokEnd && (buf[i] == '-' || buf[i] == '+'))
+				neg = buf[i++] == '-';
+			long mantissa = 0;
+			int digits = 0, exp = 0;
+			boolean any = false;
+			while(i < tokEnd && buf[i] >= '0' && buf[i] <= '9') {
+				if(digits < 18) {
+					mantissa = 10 * mantissa + (buf[i] - '0');
+					if(mantissa != 0)
+						digits++;
+				} else {
+					exp++;
+				}
+				i++;
+				any = true;
+			}
+			if(i < tokEnd && buf[i] == '.') {
+				i++;
+				while(i < tokEnd && buf[i] >= '0' && buf[i] <= '9') {
+					if(digits < 18) {
+						mantissa = 10 * mantissa + (buf[i] - '0');
+						if(mantissa != 0)
+							digits++;
+						exp--;
+					}
+					i++;
+					any = true;
+				}
+			}
+			if(any && i < tokEnd && (buf[i] == 'e' || buf[i] == 'E')) {
+				i++;
+				boolean eneg = false;
+				if(i < tokEnd && (buf[i] == '-' || buf[i] == '+'))
+					eneg = buf[i++] == '-';
+				int e = 0, eStart = i;
+				while(i < tokEnd && buf[i] >= '0' && buf[i] <= '9'
+						&& e < 10000)
+					e = 10 * e + (buf[i++] - '0');
+				if(i == eStart)
+					any = false;
+				exp += eneg ? -e : e;
+			}
+			if(any && i == tokEnd && mantissa < (1L << 53)
+					&& exp >= -22 && exp <= 22) {
+				double d = exp < 0 ? mantissa / POW10[-exp]
+					: mantissa * POW10[exp];
+				// the double is correctly rounded; rounding it to float
+				// again is exact unless it lies halfway between floats
+				long bits = Double.doubleToRawLongBits(d);
+				if((bits & 0x1fffffffL) != 0x10000000L
+						&& (d == 0 || (d >= Float.MIN_NORMAL
+						&& d <= Float.MAX_VALUE)))
+					return (float)(neg ? -d : d);
+			}
+			return Float.parseFloat(
+				new String(buf, tokStart, tokEnd - tokStart));
+		}
+
+		private static final double[] POW10 = new double[23];
+		static {
+			POW10[0] = 1;
+			for(int i = 1; i < POW10.length; i++)
+				POW10[i] = 10 * POW10[i - 1];
+		}
 	}
 
 	private HashMap<String, Color4f> readMaterials(
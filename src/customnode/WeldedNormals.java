@@ -0,0 +1,339 @@
+package customnode;
+
+import java.util.Arrays;
+import java.util.List;
+
+import javax.vecmath.Point3f;
+
+/**
+ * Incrementally maintained vertex normals of a triangle or quad mesh.
+ *
+ * Vertices at identical positions are welded; each welded vertex
+ * accumulates the (area-weighted) normals of its adjacent faces. When
+ * faces are appended, only the welded vertices they touch change, so the
+ * normals of k new faces are calculated in O(k), independent of the size
+ * of the mesh. All data is kept in primitive arrays.
+ *
+ * The normals equal those calculated by MeshNormals, including the
+ * optional crease angle.
+ */
+public class WeldedNormals {
+
+	private final int verticesPerFace;
+
+	/** Number of vertices added so far */
+	private int nVertices = 0;
+
+	/** For each vertex, the index of its welded vertex */
+	private int[] weld = new int[256];
+
+	/** For each vertex, the next vertex with the same welded vertex */
+	private int[] next = new int[256];
+
+	/** Number of welded vertices */
+	private int nWelded = 0;
+
+	/** For each welded vertex, its position */
+	private float[] position = new float[3 * 256];
+
+	/** For each welded vertex, the sum of its face normals */
+	private float[] sum = new float[3 * 256];
+
+	/** For each welded vertex, the first vertex welded to it */
+	private int[] first = new int[256];
+
+	/** For each welded vertex, the last update in which it changed */
+	private int[] stamp = new int[256];
+	private int currentStamp = 0;
+
+	/** The cosine of the crease angle, or -1 for smooth normals */
+	private float cosCrease = -1;
+
+	/** Open addressing hash table from position to welded vertex + 1 */
+	private int[] table = new int[512];
+
+	/** The welded vertices changed by the last call to add() */
+	private int[] changed = new int[64];
+	private int nChanged = 0;
+
+	/**
+	 * @param verticesPerFace 3 for triangles, 4 for quads.
+	 */
+	public WeldedNormals(int verticesPerFace) {
+		if(verticesPerFace != 3 && verticesPerFace != 4)
+			throw new IllegalArgumentException(
+				"Only triangles and quads are supported");
+		this.verticesPerFace = verticesPerFace;
+	}
+
+	/**
+	 * Sets the crease angle in radians; see MeshNormals. Affects
+	 * subsequent calls to getNormal().
+	 */
+	public void setCreaseAngle(float creaseAngle) {
+		cosCrease = creaseAngle >= MeshNormals.NO_CREASE ? -1 :
+			(float)Math.cos(creaseAngle);
+	}
+
+	/** Returns the number of vertices added so far. */
+	public int getVertexCount() {
+		return nVertices;
+	}
+
+	/**
+	 * Adds the vertices from index from (inclusive) to index to
+	 * (exclusive) of the given list, which must be the next ones after
+	 * the previously added vertices.
+	 */
+	public void add(List<Point3f> vertices, int from, int to) {
+		startUpdate(from, to);
+		for(int i = from; i < to; i++) {
+			Point3f p = vertices.get(i);
+			addVertex(p.x, p.y, p.z);
+		}
+		addFaces(from, to);
+	}
+
+	/**
+	 * Adds the vertices from index from (inclusive) to index to
+	 * (exclusive) of the given buffer, which must be the next ones after
+	 * the previously added vertices.
+	 */
+	public void add(TupleBuffer coords, int from, int to) {
+		startUpdate(from, to);
+		for(int i = from; i < to; i++)
+			addVertex(coords.get(3 * i), coords.get(3 * i + 1),
+					coords.get(3 * i + 2));
+		addFaces(from, to);
+	}
+
+	/**
+	 * Returns the indices of all vertices whose normal was changed by
+	 * the last call to add(), i.e. the added vertices and all previous
+	 * vertices sharing a position with them.
+	 */
+	public int[] getChangedVertices() {
+		int n = 0;
+		for(int c = 0; c < nChanged; c++)
+			for(int v = first[changed[c]]; v != -1; v = next[v])
+				n++;
+		int[] ret = new int[n];
+		n = 0;
+		for(int c = 0; c < nChanged; c++)
+			for(int v = first[changed[c]]; v != -1; v = next[v])
+				ret[n++] = v;
+		return ret;
+	}
+
+	/**
+	 * Stores the normalized normal of the given vertex in n.
+	 */
+	public void getNormal(int vertex, float[] n) {
+		if(cosCrease == -1) {
+			int w = 3 * weld[vertex];
+			normalize(sum[w], sum[w + 1], sum[w + 2], n);
+			return;
+		}
+		// only include the faces within the crease angle
+		float[] fn = new float[3], gn = new float[3];
+		faceNormal(vertex / verticesPerFace, fn);
+		float limit = cosCrease * length(fn);
+		float x = 0, y = 0, z = 0;
+		for(int v = first[weld[vertex]]; v != -1; v = next[v]) {
+			faceNormal(v / verticesPerFace, gn);
+			if(fn[0] * gn[0] + fn[1] * gn[1] + fn[2] * gn[2]
+					< limit * length(gn))
+				continue;
+			x += gn[0];
+			y += gn[1];
+			z += gn[2];
+		}
+		normalize(x, y, z, n);
+	}
+
+	/**
+	 * Welds the first nVertices vertices of the given coordinates at
+	 * once, for MeshNormals: stores for each vertex the index of its
+	 * welded vertex, numbered in the order of first occurrence, and
+	 * returns the number of welded vertices. Uses the same hash as the
+	 * incremental welding, but only a table of the first vertex at each
+	 * position.
+	 */
+	static int weld(float[] coords, int nVertices, int[] weld) {
+		int size = Integer.highestOneBit(Math.max(2 * nVertices, 2)) << 1;
+		int mask = size - 1;
+		// vertex index + 1 of the first vertex at a position
+		int[] table = new int[size];
+		int nWelded = 0;
+		for(int v = 0; v < nVertices; v++) {
+			// make sure that 0 and -0 are welded
+			float x = coords[3 * v] + 0f;
+			float y = coords[3 * v + 1] + 0f;
+			float z = coords[3 * v + 2] + 0f;
+			int h = hash(x, y, z) & mask;
+			while(true) {
+				int u = table[h] - 1;
+				if(u == -1) {
+					table[h] = v + 1;
+					weld[v] = nWelded++;
+					break;
+				}
+				if(coords[3 * u] + 0f == x
+						&& coords[3 * u + 1] + 0f == y
+						&& coords[3 * u + 2] + 0f == z) {
+					weld[v] = weld[u];
+					break;
+				}
+				h = (h + 1) & mask;
+			}
+		}
+		return nWelded;
+	}
+
+	private static int hash(float x, float y, float z) {
+		int h = Float.floatToIntBits(x);
+		h = 31 * h + Float.floatToIntBits(y);
+		h = 31 * h + Float.floatToIntBits(z);
+		return h ^ (h >>> 16);
+	}
+
+	private static float length(float[] v) {
+		return (float)Math.sqrt(v[0] * v[0] + v[1] * v[1] + v[2] * v[2]);
+	}
+
+	private static void normalize(float x, float y, float z, float[] n) {
+		float len = (float)Math.sqrt(x * x + y * y + z * z);
+		if(len == 0) {
+			n[0] = n[1] = n[2] = 0;
+			return;
+		}
+		n[0] = x / len;
+		n[1] = y / len;
+		n[2] = z / len;
+	}
+
+	private void startUpdate(int from, int to) {
+		if(from != nVertices)
+			throw new IllegalArgumentException("Expected vertex "
+				+ nVertices + " but got " + from);
+		if(from % verticesPerFace != 0 || to % verticesPerFace != 0)
+			throw new IllegalArgumentException(
+				"Vertices must form complete faces");
+		currentStamp++;
+		nChanged = 0;
+		if(to > weld.length) {
+			int n = Math.max(to, 2 * weld.length);
+			weld = Arrays.copyOf(weld, n);
+			next = Arrays.copyOf(next, n);
+		}
+	}
+
+	private void addVertex(float x, float y, float z) {
+		// make sure that 0 and -0 are welded
+		x += 0f; y += 0f; z += 0f;
+		int mask = table.length - 1;
+		int h = hash(x, y, z) & mask;
+		int w;
+		while(true) {
+			w = table[h] - 1;
+			if(w == -1) {
+				w = newWelded(x, y, z);
+				break;
+			}
+			if(position[3 * w] == x && position[3 * w + 1] == y
+					&& position[3 * w + 2] == z)
+				break;
+			h = (h + 1) & mask;
+		}
+		int v = nVertices++;
+		weld[v] = w;
+		next[v] = first[w];
+		first[w] = v;
+		markChanged(w);
+	}
+
+	private int newWelded(float x, float y, float z) {
+		if(nWelded == first.length) {
+			int n = 2 * first.length;
+			first = Arrays.copyOf(first, n);
+			stamp = Arrays.copyOf(stamp, n);
+			position = Arrays.copyOf(position, 3 * n);
+			sum = Arrays.copyOf(sum, 3 * n);
+		}
+		int w = nWelded++;
+		position[3 * w] = x;
+		position[3 * w + 1] = y;
+		position[3 * w + 2] = z;
+		first[w] = -1;
+		stamp[w] = 0;
+		// keep the load factor below 0.5
+		if(2 * nWelded > table.length)
+			rehash();
+		else
+			insert(w);
+		return w;
+	}
+
+	private void rehash() {
+		table = new int[2 * table.length];
+		for(int w = 0; w < nWelded; w++)
+			insert(w);
+	}
+
+	private void insert(int w) {
+		int mask = table.length - 1;
+		int h = hash(position[3 * w], position[3 * w + 1],
+				position[3 * w + 2]) & mask;
+		while(table[h] != 0)
+			h = (h + 1) & mask;
+		table[h] = w + 1;
+	}
+
+	private void markChanged(int w) {
+		if(stamp[w] == currentStamp)
+			return;
+		stamp[w] = currentStamp;
+		if(nChanged == changed.length)
+			changed = Arrays.copyOf(changed, 2 * nChanged);
+		changed[nChanged++] = w;
+	}
+
+	private void addFaces(int from, int to) {
+		float[] n = new float[3];
+		for(int f = from; f < to; f += verticesPerFace) {
+			faceNormal(f / verticesPerFace, n);
+			for(int i = 0; i < verticesPerFace; i++) {
+				int w = 3 * weld[f + i];
+				sum[w] += n[0];
+				sum[w + 1] += n[1];
+				sum[w + 2] += n[2];
+			}
+		}
+	}
+
+	/**
+	 * Calculates the area-weighted normal of the given face, as the
+	 * cross product u x v, with u and v being the edges (b - a) and
+	 * (c - a) for triangles, and the diagonals (c - a) and (d - b) for
+	 * quads.
+	 */
+	private void faceNormal(int face, float[] n) {
+		int f = face * verticesPerFace;
+		int u0 = 3 * weld[f], u1 = 3 * weld[f + 1];
+		int v0 = u0, v1 = 3 * weld[f + 2];
+		if(verticesPerFace == 4) {
+			v0 = u1;
+			u1 = v1;
+			v1 = 3 * weld[f + 3];
+		}
+		float ux = position[u1] - position[u0];
+		float uy = position[u1 + 1] - position[u0 + 1];
+		float uz = position[u1 + 2] - position[u0 + 2];
+		float vx = position[v1] - position[v0];
+		float vy = position[v1 + 1] - position[v0 + 1];
+		float vz = position[v1 + 2] - position[v0 + 2];
+		n[0] = uy * vz - uz * vy;
+		n[1] = uz * vx - ux * vz;
+		n[2] = ux * vy - uy * vx;
+	}
+}
@@ -383,7 +383,9 @@ public class Executer {
 
 	public void saveSession() {
 		SaveDialog sd = new SaveDialog(
-			"Save session...", "session", ".scene");
+			"Save session...", "session",
+			UniverseSettings.binarySessions
+				? SaveSession.BINARY_EXTENSION : ".scene");
 		String dir = sd.getDirectory();
 		String name = sd.getFileName();
 		if(dir == null || name == null)
@@ -867,12 +869,23 @@ public class Executer {
 			c.setChannels(channels);
 		else
 			ci.setChannels(channels);
+		waitForMeshes(c);
 		univ.fireContentChanged(c);
 		record(SET_CHANNELS, Boolean.toString(channels[0]),
 			Boolean.toString(channels[1]),
 			Boolean.toString(channels[2]));
 	}
 
+	/**
+	 * Waits until the surfaces of all timepoints of the given content
+	 * were re-meshed, so that e.g. a macro continues with the new ones.
+	 */
+	private static void waitForMeshes(Content c) {
+		for(ContentInstant ci : c.getInstants().values())
+			if(ci.getContent() instanceof MeshGroup)
+				((MeshGroup)ci.getContent()).waitForMesh();
+	}
+
 	public void changeTransparency(final Content c) {
 		if(!checkSel(c))
 			return;
@@ -973,6 +986,7 @@ public class Executer {
 				c.setThreshold(th);
 			else
 				ci.setThreshold(th);
+			waitForMeshes(c);
 			univ.fireContentChanged(c);
 			record(SET_THRESHOLD, Integer.toString(th));
 			return;
@@ -44,6 +44,7 @@ import javax.vecmath.Point3d;
 import javax.vecmath.Point3f;
 import javax.vecmath.Vector3d;
 
+import octree.FilePreparer;
 import octree.VolumeOctree;
 import view4d.Timeline;
 import view4d.TimelineGUI;
@@ -766,49 +767,36 @@ public class Image3DUniverse extends DefaultAnimatableUniverse {
 	}
 
 	/**
-	 * @deprecated The octree methods will be outsourced into a different
-	 *             plugin.
+	 * Creates the octree files of the image at the given path in the
+	 * given directory and adds the octree to the universe. An existing,
+	 * partially created octree in the directory is completed.
 	 */
-	/*
-	 * Requires an empty directory.
-	 */
-	// public VolumeOctree createAndAddOctree(
-	// String imagePath, String dir, String name) {
-	// File outdir = new File(dir);
-	// if(!outdir.exists())
-	// outdir.mkdir();
-	// if(!outdir.isDirectory()) {
-	// throw new RuntimeException("Not a directory");
-	// }
-	// try {
-	// new FilePreparer(imagePath, VolumeOctree.SIZE, dir).createFiles();
-	// return addOctree(dir, name);
-	// } catch(Exception e) {
-	// e.printStackTrace();
-	// throw new RuntimeException(e);
-	// }
-	// }
+	public VolumeOctree createAndAddOctree(
+			String imagePath, String dir, String name) {
+		try {
+			new FilePreparer(imagePath, dir).createFiles();
+			return addOctree(dir, name);
+		} catch(IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+	}
 
 	/**
-	 * @deprecated The octree methods will be outsourced into a different
-	 *             plugin.
+	 * Creates the octree files of the given image in the given
+	 * directory and adds the octree to the universe. An existing,
+	 * partially created octree in the directory is completed.
 	 */
-	// public octree.VolumeOctree createAndAddOctree(
-	// ImagePlus image, String dir, String name) {
-	// File outdir = new File(dir);
-	// if(!outdir.exists())
-	// outdir.mkdir();
-	// if(!outdir.isDirectory()) {
-	// throw new RuntimeException("Not a directory");
-	// }
-	// try {
-	// new FilePreparer(image, VolumeOctree.SIZE, dir).createFiles();
-	// return addOctree(dir, name);
-	// } catch(Exception e) {
-	// e.printStackTrace();
-	// throw new RuntimeException(e);
-	// }
-	// }
+	public VolumeOctree createAndAddOctree(
+			ImagePlus image, String dir, String name) {
+		try {
+			new FilePreparer(image, dir).createFiles();
+			return addOctree(dir, name);
+		} catch(IOException e) {
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+	}
 
 	/* *************************************************************
 	 * Adding and removing Contents
@@ -25,6 +25,8 @@ import javax.vecmath.Color3f;
 
 import com.sun.j3d.utils.universe.SimpleUniverse;
 
+import voltex.VoltexVolume;
+
 public class ImageCanvas3D extends Canvas3D implements KeyListener {
 
 	private RoiImagePlus roiImagePlus;
@@ -76,6 +78,12 @@ public class ImageCanvas3D extends Canvas3D implements KeyListener {
 		addListeners();
 	}
 
+	@Override
+	public void addNotify() {
+		super.addNotify();
+		VoltexVolume.queryTextureProperties(this);
+	}
+
 	public Background getBG() { //can't use getBackground()
 		return background;
 	}
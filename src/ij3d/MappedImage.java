@@ -0,0 +1,455 @@
+package ij3d;
+
+import ij.ImagePlus;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * An 8-bit or RGB image stack which is memory-mapped from an uncompressed
+ * file (raw, TIFF or NRRD) instead of being loaded into an ImagePlus.
+ *
+ * The data is paged in by the operating system on access, so stacks
+ * larger than the Java heap (and even larger than the physical memory)
+ * can be used as a Volume, e.g. for meshing with MCTriangulator, for
+ * SurfacePlot or for VoltexVolume. The image is read-only.
+ *
+ * Since a single mapping is limited to 2 GB, consecutive slices are
+ * grouped into chunks of at most MAX_CHUNK bytes, each mapped separately.
+ */
+public class MappedImage implements Volume.Img {
+
+	/** The maximum number of bytes mapped at once */
+	public static final int MAX_CHUNK = 1 << 30;
+
+	private final String path;
+	private final int w, h, d;
+	private final boolean rgb;
+	private final Calibration calibration;
+
+	private final MappedByteBuffer[] chunks;
+
+	/** For each slice, the index of its chunk */
+	private final int[] sliceChunk;
+
+	/** For each slice, its byte offset within its chunk */
+	private final int[] sliceOffset;
+
+	/**
+	 * Maps the given slices of a raw file.
+	 * @param path the file.
+	 * @param width the width in pixels.
+	 * @param height the height in pixels.
+	 * @param sliceOffsets the file offset of each slice.
+	 * @param rgb true for interleaved 24-bit RGB pixels, false for
+	 *            8-bit pixels.
+	 * @param calibration the calibration, may be null.
+	 */
+	public MappedImage(String path, int width, int height,
+			long[] sliceOffsets, boolean rgb,
+			Calibration calibration) throws IOException {
+		this.path = path;
+		this.w = width;
+		this.h = height;
+		this.d = sliceOffsets.length;
+		this.rgb = rgb;
+		this.calibration = calibration != null ? calibration
+				: new Calibration();
+
+		long sliceSize = (long)width * height * (rgb ? 3 : 1);
+		if(sliceSize > MAX_CHUNK)
+			throw new IOException("Slices larger than " + MAX_CHUNK
+				+ " bytes are not supported");
+
+		sliceChunk = new int[d];
+		sliceOffset = new int[d];
+		List<MappedByteBuffer> list = new ArrayList<MappedByteBuffer>();
+		RandomAccessFile file = new RandomAccessFile(path, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			long length = channel.size();
+			int z = 0;
+			while(z < d) {
+				// group consecutive slices into one chunk
+				long start = sliceOffsets[z];
+				int first = z;
+				long end = start + sliceSize;
+				while(z < d && sliceOffsets[z] >= start &&
+						sliceOffsets[z] + sliceSize
+						- start <= MAX_CHUNK) {
+					end = Math.max(end,
+						sliceOffsets[z] + sliceSize);
+					z++;
+				}
+				if(end > length)
+					throw new IOException("File " + path
+						+ " is too short");
+				list.add(channel.map(FileChannel.MapMode.READ_ONLY,
+						start, end - start));
+				for(int i = first; i < z; i++) {
+					sliceChunk[i] = list.size() - 1;
+					sliceOffset[i] = (int)(sliceOffsets[i] - start);
+				}
+			}
+		} finally {
+			// the mappings stay valid after the file is closed
+			file.close();
+		}
+		chunks = list.toArray(new MappedByteBuffer[list.size()]);
+	}
+
+	/**
+	 * Maps a raw file described by the given FileInfo; supported
+	 * file types are FileInfo.GRAY8, FileInfo.COLOR8 and FileInfo.RGB.
+	 * The slices start at fi.longOffset (or fi.offset) and are
+	 * separated by fi.gapBetweenImages bytes.
+	 */
+	public static MappedImage openRaw(String path, FileInfo fi)
+			throws IOException {
+		boolean rgb = checkType(fi);
+		long sliceSize = (long)fi.width * fi.height * (rgb ? 3 : 1);
+		long[] offsets = new long[Math.max(1, fi.nImages)];
+		for(int z = 0; z < offsets.length; z++)
+			offsets[z] = getOffset(fi)
+				+ z * (sliceSize + fi.gapBetweenImages);
+		return new MappedImage(path, fi.width, fi.height, offsets, rgb,
+				getCalibration(fi));
+	}
+
+	/**
+	 * Maps an uncompressed 8-bit or RGB TIFF file, as e.g. written by
+	 * ImageJ.
+	 */
+	public static MappedImage openTiff(String path) throws IOException {
+		File f = new File(path);
+		String dir = f.getParent() == null ? "" : f.getParent() + File.separator;
+		FileInfo[] info = new TiffDecoder(dir, f.getName()).getTiffInfo();
+		if(info == null || info.length == 0)
+			throw new IOException("Cannot read TIFF header of " + path);
+		if(info.length == 1)
+			return openRaw(path, checkTiff(info[0]));
+
+		// one FileInfo per page
+		boolean rgb = checkType(info[0]);
+		long[] offsets = new long[info.length];
+		for(int z = 0; z < info.length; z++) {
+			FileInfo fi = checkTiff(info[z]);
+			if(fi.width != info[0].width ||
+					fi.height != info[0].height ||
+					checkType(fi) != rgb)
+				throw new IOException("All pages of " + path
+					+ " must have the same size and type");
+			offsets[z] = getOffset(fi);
+		}
+		return new MappedImage(path, info[0].width, info[0].height,
+				offsets, rgb, getCalibration(info[0]));
+	}
+
+	/**
+	 * Maps the raw payload of a NRRD file (or of the data file of a
+	 * detached .nhdr header), which must be of type uchar, 3D for
+	 * 8-bit images or 4D with 3 samples per pixel for RGB images, with
+	 * raw encoding.
+	 */
+	public static MappedImage openNrrd(String path) throws IOException {
+		HashMap<String, String> fields = new HashMap<String, String>();
+		long headerLength = readNrrdHeader(path, fields);
+
+		String encoding = fields.get("encoding");
+		if(encoding == null || !encoding.equals("raw"))
+			throw new IOException("Only raw NRRD encoding is supported");
+		String type = fields.get("type");
+		if(type == null || !(type.equals("uchar")
+				|| type.equals("unsigned char")
+				|| type.equals("uint8")
+				|| type.equals("uint8_t")))
+			throw new IOException("Only 8-bit NRRD files are supported");
+
+		String[] sizes = split(fields.get("sizes"));
+		boolean rgb;
+		int[] dims = new int[3];
+		if(sizes.length == 3) {
+			rgb = false;
+		} else if(sizes.length == 4 && sizes[0].equals("3")) {
+			rgb = true;
+		} else {
+			throw new IOException("Unsupported NRRD dimensions");
+		}
+		for(int i = 0; i < 3; i++)
+			dims[i] = Integer.parseInt(sizes[sizes.length - 3 + i]);
+
+		String dataPath = path;
+		long offset = headerLength;
+		String dataFile = fields.get("data file");
+		if(dataFile != null) {
+			File df = new File(dataFile);
+			if(!df.isAbsolute())
+				df = new File(new File(path).getParentFile(), dataFile);
+			dataPath = df.getPath();
+			offset = 0;
+		}
+		long size = (long)dims[0] * dims[1] * dims[2] * (rgb ? 3 : 1);
+		String byteSkip = fields.get("byte skip");
+		if(byteSkip != null) {
+			long skip = Long.parseLong(byteSkip);
+			offset = skip >= 0 ? offset + skip
+				: new File(dataPath).length() - size;
+		}
+
+		Calibration cal = new Calibration();
+		double[] spacing = getNrrdSpacing(fields);
+		if(spacing != null) {
+			cal.pixelWidth = spacing[0];
+			cal.pixelHeight = spacing[1];
+			cal.pixelDepth = spacing[2];
+		}
+
+		long sliceSize = (long)dims[0] * dims[1] * (rgb ? 3 : 1);
+		long[] offsets = new long[dims[2]];
+		for(int z = 0; z < offsets.length; z++)
+			offsets[z] = offset + z * sliceSize;
+		return new MappedImage(dataPath, dims[0], dims[1], offsets, rgb,
+				cal);
+	}
+
+	/**
+	 * Maps the given file, depending on its extension, as TIFF
+	 * (.tif, .tiff) or NRRD (.nrrd, .nhdr) file.
+	 */
+	public static MappedImage open(String path) throws IOException {
+		String lower = path.toLowerCase();
+		if(lower.endsWith(".tif") || lower.endsWith(".tiff"))
+			return openTiff(path);
+		if(lower.endsWith(".nrrd") || lower.endsWith(".nhdr"))
+			return openNrrd(path);
+		throw new IOException("Unsupported file type: " + path);
+	}
+
+	public String getPath() {
+		return path;
+	}
+
+	public int getWidth() {
+		return w;
+	}
+
+	public int getHeight() {
+		return h;
+	}
+
+	public int getStackSize() {
+		return d;
+	}
+
+	/**
+	 * Returns ImagePlus.GRAY8 or ImagePlus.COLOR_RGB.
+	 */
+	public int getType() {
+		return rgb ? ImagePlus.COLOR_RGB : ImagePlus.GRAY8;
+	}
+
+	public boolean isRGB() {
+		return rgb;
+	}
+
+	public Calibration getCalibration() {
+		return calibration;
+	}
+
+	/**
+	 * Returns the pixel value, i.e. the 8-bit value for gray images, and
+	 * the packed color (as in ColorProcessor) for RGB images.
+	 */
+	public int get(int x, int y, int z) {
+		MappedByteBuffer b = chunks[sliceChunk[z]];
+		if(!rgb)
+			return b.get(sliceOffset[z] + y * w + x) & 0xff;
+		int i = sliceOffset[z] + 3 * (y * w + x);
+		return 0xff000000 | ((b.get(i) & 0xff) << 16)
+				| ((b.get(i + 1) & 0xff) << 8)
+				| (b.get(i + 2) & 0xff);
+	}
+
+	public void get(int x, int y, int z, int[] c) {
+		MappedByteBuffer b = chunks[sliceChunk[z]];
+		if(!rgb) {
+			c[0] = c[1] = c[2] =
+				b.get(sliceOffset[z] + y * w + x) & 0xff;
+			return;
+		}
+		int i = sliceOffset[z] + 3 * (y * w + x);
+		c[0] = b.get(i) & 0xff;
+		c[1] = b.get(i + 1) & 0xff;
+		c[2] = b.get(i + 2) & 0xff;
+	}
+
+	public byte getAverage(int x, int y, int z) {
+		MappedByteBuffer b = chunks[sliceChunk[z]];
+		if(!rgb)
+			return b.get(sliceOffset[z] + y * w + x);
+		int i = sliceOffset[z] + 3 * (y * w + x);
+		return (byte)(((b.get(i) & 0xff) + (b.get(i + 1) & 0xff)
+				+ (b.get(i + 2) & 0xff)) / 3);
+	}
+
+	public void set(int x, int y, int z, int v) {
+		throw new UnsupportedOperationException(
+			"Memory-mapped images are read-only");
+	}
+
+	private static boolean checkType(FileInfo fi) throws IOException {
+		switch(fi.fileType) {
+			case FileInfo.GRAY8:
+			case FileInfo.COLOR8:
+				return false;
+			case FileInfo.RGB:
+				return true;
+			default:
+				throw new IOException(
+					"Only 8-bit and RGB images can be mapped");
+		}
+	}
+
+	private static FileInfo checkTiff(FileInfo fi) throws IOException {
+		if(fi.compression > FileInfo.COMPRESSION_NONE)
+			throw new IOException(
+				"Compressed TIFF files cannot be mapped");
+		int[] so = fi.stripOffsets, sl = fi.stripLengths;
+		if(so != null && sl != null) {
+			for(int i = 1; i < so.length; i++)
+				if((so[i] & 0xffffffffL) != (so[i - 1] & 0xffffffffL)
+						+ (sl[i - 1] & 0xffffffffL))
+					throw new IOException("TIFF strips "
+						+ "are not contiguous");
+		}
+		return fi;
+	}
+
+	private static long getOffset(FileInfo fi) {
+		return fi.longOffset > 0 ? fi.longOffset
+			: fi.offset & 0xffffffffL;
+	}
+
+	private static Calibration getCalibration(FileInfo fi) {
+		Calibration cal = new Calibration();
+		if(fi.pixelWidth > 0)
+			cal.pixelWidth = fi.pixelWidth;
+		if(fi.pixelHeight > 0)
+			cal.pixelHeight = fi.pixelHeight;
+		if(fi.pixelDepth > 0)
+			cal.pixelDepth = fi.pixelDepth;
+		if(fi.unit != null)
+			cal.setUnit(fi.unit);
+		// ImageJ stores the z spacing in the image description
+		if(fi.description != null) {
+			for(String line : fi.description.split("\n")) {
+				if(line.startsWith("spacing=")) try {
+					cal.pixelDepth = Double.parseDouble(
+						line.substring(8).trim());
+				} catch(NumberFormatException e) {
+					// ignore
+				}
+				else if(line.startsWith("unit="))
+					cal.setUnit(line.substring(5).trim());
+			}
+		}
+		return cal;
+	}
+
+	/**
+	 * Reads the fields of a NRRD header into the given map and returns
+	 * the length of the header in bytes.
+	 */
+	private static long readNrrdHeader(String path,
+			HashMap<String, String> fields) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(
+				new FileInputStream(path), "ISO-8859-1"));
+		try {
+			String line = in.readLine();
+			if(line == null || !line.startsWith("NRRD"))
+				throw new IOException(path + " is not a NRRD file");
+			long length = line.length() + 1;
+			while((line = in.readLine()) != null) {
+				// assumes \n line endings, as required by NRRD
+				length += line.length() + 1;
+				if(line.length() == 0)
+					break;
+				if(line.startsWith("#") || line.contains(":="))
+					continue;
+				int colon = line.indexOf(": ");
+				if(colon < 0)
+					continue;
+				fields.put(line.substring(0, colon).trim()
+					.toLowerCase(),
+					line.substring(colon + 2).trim());
+			}
+			return length;
+		} finally {
+			in.close();
+		}
+	}
+
+	private static double[] getNrrdSpacing(HashMap<String, String> fields) {
+		String[] s = split(fields.get("spacings"));
+		if(s.length >= 3) {
+			double[] spacing = new double[3];
+			for(int i = 0; i < 3; i++)
+				spacing[i] = parse(s[s.length - 3 + i]);
+			return spacing;
+		}
+		String dirs = fields.get("space directions");
+		if(dirs == null)
+			return null;
+		// e.g. "none (0.5,0,0) (0,0.5,0) (0,0,2)"
+		List<double[]> vectors = new ArrayList<double[]>();
+		for(String v : dirs.split("\\)")) {
+			int open = v.indexOf('(');
+			if(open < 0)
+				continue;
+			String[] c = v.substring(open + 1).split(",");
+			double[] vec = new double[c.length];
+			for(int i = 0; i < c.length; i++)
+				vec[i] = parse(c[i].trim());
+			vectors.add(vec);
+		}
+		if(vectors.size() < 3)
+			return null;
+		double[] spacing = new double[3];
+		for(int i = 0; i < 3; i++) {
+			double[] v = vectors.get(vectors.size() - 3 + i);
+			double sum = 0;
+			for(int j = 0; j < v.length; j++)
+				sum += v[j] * v[j];
+			spacing[i] = Math.sqrt(sum);
+		}
+		return spacing;
+	}
+
+	private static double parse(String s) {
+		try {
+			double v = Double.parseDouble(s);
+			return Double.isNaN(v) || v <= 0 ? 1 : v;
+		} catch(NumberFormatException e) {
+			return 1;
+		}
+	}
+
+	private static String[] split(String s) {
+		if(s == null)
+			return new String[0];
+		s = s.trim();
+		return s.length() == 0 ? new String[0] : s.split("\\s+");
+	}
+}
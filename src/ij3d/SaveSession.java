@@ -14,13 +14,17 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 
@@ -29,6 +33,8 @@ import javax.vecmath.Color3f;
 
 import orthoslice.OrthoGroup;
 import surfaceplot.SurfacePlotGroup;
+import customnode.BinaryMeshExporter;
+import customnode.BinaryMeshLoader;
 import customnode.CustomMesh;
 import customnode.CustomMeshNode;
 import customnode.CustomMultiMesh;
@@ -37,6 +43,12 @@ import customnode.WavefrontExporter;
 
 public class SaveSession {
 
+	/** Extension of session files which are saved in the binary format */
+	public static final String BINARY_EXTENSION = ".bscene";
+
+	static final int BINARY_MAGIC = 0x53443349; // "I3DS"
+	static final int BINARY_VERSION = 1;
+
 	public static void saveView(Image3DUniverse univ, String path)
 							throws IOException {
 		SaveSession sase = new SaveSession();
@@ -54,8 +66,16 @@ public class SaveSession {
 		sase.apply(view, univ);
 	}
 
+	/**
+	 * Saves the scene to the given path; if it ends with
+	 * BINARY_EXTENSION, in the binary format, otherwise as text.
+	 */
 	public static void saveScene(Image3DUniverse univ, String path)
 							throws IOException {
+		if(path.toLowerCase().endsWith(BINARY_EXTENSION)) {
+			saveBinaryScene(univ, path);
+			return;
+		}
 		SaveSession sase = new SaveSession();
 		if(!sase.ensureAllSaved(univ.getContents())) {
 			IJ.error("Could not save session");
@@ -68,8 +88,15 @@ public class SaveSession {
 		out.close();
 	}
 
+	/**
+	 * Loads a scene saved by saveScene(), in either format.
+	 */
 	public static void loadScene(Image3DUniverse univ, String path)
 						throws IOException {
+		if(BinaryMeshLoader.hasMagic(path, BINARY_MAGIC)) {
+			loadBinaryScene(univ, path);
+			return;
+		}
 		BufferedReader in = new BufferedReader(new FileReader(path));
 		SaveSession sase = new SaveSession();
 		univ.removeAllContents();
@@ -85,6 +112,137 @@ public class SaveSession {
 		sase.apply(view, univ);
 	}
 
+	/**
+	 * Saves the scene in a single binary file. It contains the view, the
+	 * properties of all contents as in the text format and the vertex
+	 * data of all custom meshes, so these need not be saved separately.
+	 * Images are referenced by their file, as in the text format.
+	 *
+	 * The file consists of BINARY_MAGIC, BINARY_VERSION, the view
+	 * properties and the number of contents, followed by the contents.
+	 * Each content consists of its name and the number of its instants,
+	 * followed by the instants, each consisting of its properties and its
+	 * number of meshes, followed by the meshes as written by
+	 * BinaryMeshExporter. Properties are stored as their number, followed
+	 * by key and value of each.
+	 */
+	public static void saveBinaryScene(Image3DUniverse univ, String path)
+							throws IOException {
+		SaveSession sase = new SaveSession();
+		List<Content> contents = new ArrayList<Content>();
+		for(Object c : univ.getContents())
+			contents.add((Content)c);
+		if(!sase.ensureImagesSaved(contents)) {
+			IJ.error("Could not save session");
+			return;
+		}
+		// meshes may still be mapped from the file to replace
+		File f = new File(path);
+		ArrayList<CustomMesh> written = new ArrayList<CustomMesh>();
+		File part = new File(path + ".part");
+		FileOutputStream out = new FileOutputStream(part);
+		try {
+			BinaryMeshExporter e =
+				new BinaryMeshExporter(out.getChannel());
+			e.writeInt(BINARY_MAGIC);
+			e.writeInt(BINARY_VERSION);
+			writeProperties(e, sase.getViewProperties(univ));
+			e.writeInt(contents.size());
+			for(Content c : contents) {
+				e.writeString(c.getName());
+				e.writeInt(c.getInstants().size());
+				for(ContentInstant ci : c.getInstants().values()) {
+					writeProperties(e, sase.getProperties(ci));
+					if(ci.getType() != Content.CUSTOM) {
+						e.writeInt(0);
+						continue;
+					}
+					ArrayList<CustomMesh> meshes = getMeshes(
+						(CustomMeshNode)ci.getContent());
+					e.writeInt(meshes.size());
+					written.addAll(meshes);
+					for(CustomMesh cm : meshes) {
+						String name = cm.getName();
+						e.writeMesh(name == null
+							? ci.getName() : name, cm);
+					}
+				}
+			}
+			e.flush();
+		} finally {
+			out.close();
+		}
+		BinaryMeshExporter.replace(part, f, written);
+	}
+
+	/**
+	 * Loads a scene saved by saveBinaryScene(). The vertex data of the
+	 * meshes is memory-mapped, not parsed.
+	 */
+	public static void loadBinaryScene(Image3DUniverse univ, String path)
+							throws IOException {
+		SaveSession sase = new SaveSession();
+		univ.removeAllContents();
+		HashMap<String, String> view;
+		RandomAccessFile raf = new RandomAccessFile(path, "r");
+		try {
+			BinaryMeshLoader in =
+				new BinaryMeshLoader(raf.getChannel(), 0);
+			in.checkHeader(BINARY_MAGIC, BINARY_VERSION, path);
+			view = readProperties(in);
+			int nContents = in.readInt();
+			for(int i = 0; i < nContents; i++) {
+				String name = in.readString();
+				TreeMap<Integer, ContentInstant> cis =
+					new TreeMap<Integer, ContentInstant>();
+				int nInstants = in.readInt();
+				for(int j = 0; j < nInstants; j++) {
+					HashMap<String, String> props =
+						readProperties(in);
+					ArrayList<CustomMesh> meshes =
+						new ArrayList<CustomMesh>();
+					int nMeshes = in.readInt();
+					for(int k = 0; k < nMeshes; k++)
+						meshes.add(in.readMesh());
+					CustomMeshNode node = null;
+					if(meshes.size() == 1)
+						node = new CustomMeshNode(meshes.get(0));
+					else if(meshes.size() > 1)
+						node = new CustomMultiMesh(meshes);
+					ContentInstant ci =
+						sase.createContentInstant(props, node);
+					cis.put(ci.timepoint, ci);
+				}
+				Content c = new Content(name, cis);
+				c.setPointListDialog(univ.getPointListDialog());
+				univ.addContent(c);
+			}
+		} finally {
+			raf.close();
+		}
+		sase.apply(view, univ);
+	}
+
+	private static void writeProperties(BinaryMeshExporter e,
+			Map<String, String> props) throws IOException {
+		e.writeInt(props.size());
+		for(Map.Entry<String, String> p : props.entrySet()) {
+			e.writeString(p.getKey());
+			e.writeString(p.getValue());
+		}
+	}
+
+	private static HashMap<String, String> readProperties(
+			BinaryMeshLoader in) throws IOException {
+		HashMap<String, String> props = new HashMap<String, String>();
+		int n = in.readInt();
+		for(int i = 0; i < n; i++) {
+			String key = in.readString();
+			props.put(key, in.readString().trim());
+		}
+		return props;
+	}
+
 	private class CMesh {
 		private CustomMesh mesh;
 		private String name;
@@ -96,22 +254,18 @@ public class SaveSession {
 	}
 
 	boolean ensureAllSaved(Collection<Content> contents) throws IOException {
-		// go through all contents, make sure that those with
-		// images have saved images, and collect the custom
-		// meshes file-wise.
+		// make sure that contents with images have saved images
+		if(!ensureImagesSaved(contents))
+			return false;
+
+		// collect the custom meshes file-wise.
 		HashMap<String, ArrayList<CMesh>> custommeshes =
 			new HashMap<String, ArrayList<CMesh>>();
 
-		ArrayList<String> unsavedImages = new ArrayList<String>();
 		for(Content content : contents) {
 			for(ContentInstant c : content.getInstants().values()) {
-				int t = c.getType();
-				if(t != Content.CUSTOM) {
-					FileInfo fi = c.getImage().getOriginalFileInfo();
-					if(fi == null || c.image.changes)
-						unsavedImages.add(c.image.getTitle());
+				if(c.getType() != Content.CUSTOM)
 					continue;
-				}
 				CustomMeshNode cn = (CustomMeshNode)c.getContent();
 				ArrayList<CustomMesh> meshes = getMeshes(cn);
 				int i = -1;
@@ -135,22 +289,6 @@ public class SaveSession {
 			}
 		}
 
-		// show the user a dialog with all changed images and ask them
-		// to save them all
-		if(!unsavedImages.isEmpty()) {
-			StringBuilder sb = new StringBuilder();
-			sb.append("Error.\n")
-				.append("The following images have unsaved ")
-				.append("changes:\n  \n");
-			for(String s : unsavedImages)
-				sb.append("  ").append(s).append("\n");
-			sb.append("  \nPlease save them separately ").
-				append("before calling 'Save session' again");
-
-			IJ.error(sb.toString());
-			return false;
-		}
-
 		// ask user to save all meshes with no file in single new file
 		if(custommeshes.containsKey(null)) {
 			ArrayList<CMesh> meshes = custommeshes.get(null);
@@ -189,6 +327,36 @@ public class SaveSession {
 		return true;
 	}
 
+	boolean ensureImagesSaved(Collection<Content> contents) {
+		ArrayList<String> unsavedImages = new ArrayList<String>();
+		for(Content content : contents) {
+			for(ContentInstant c : content.getInstants().values()) {
+				if(c.getType() == Content.CUSTOM)
+					continue;
+				FileInfo fi = c.getImage().getOriginalFileInfo();
+				if(fi == null || c.image.changes)
+					unsavedImages.add(c.image.getTitle());
+			}
+		}
+
+		// show the user a dialog with all changed images and ask them
+		// to save them all
+		if(!unsavedImages.isEmpty()) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("Error.\n")
+				.append("The following images have unsaved ")
+				.append("changes:\n  \n");
+			for(String s : unsavedImages)
+				sb.append("  ").append(s).append("\n");
+			sb.append("  \nPlease save them separately ").
+				append("before calling 'Save session' again");
+
+			IJ.error(sb.toString());
+			return false;
+		}
+		return true;
+	}
+
 	static boolean updateObj(ArrayList<CMesh> meshes, String path)
 						throws IOException {
 		Map<String, CustomMesh> prev = MeshLoader.load(path);
@@ -196,7 +364,7 @@ public class SaveSession {
 			prev.put(m.name, m.mesh);
 
 		try {
-			WavefrontExporter.save(prev, path);
+			saveMeshes(prev, path);
 			return true;
 		} catch(IOException e) {
 			e.printStackTrace();
@@ -222,7 +390,7 @@ public class SaveSession {
 			m2w.put(m.name, m.mesh);
 
 		try {
-			WavefrontExporter.save(m2w, path);
+			saveMeshes(m2w, path);
 			return true;
 		} catch(IOException e) {
 			e.printStackTrace();
@@ -231,6 +399,18 @@ public class SaveSession {
 		}
 	}
 
+	/**
+	 * Saves the meshes in the binary format if the path ends with
+	 * BinaryMeshExporter.EXTENSION, otherwise as Wavefront OBJ.
+	 */
+	static void saveMeshes(Map<String, CustomMesh> meshes, String path)
+							throws IOException {
+		if(path.toLowerCase().endsWith(BinaryMeshExporter.EXTENSION))
+			BinaryMeshExporter.save(meshes, path);
+		else
+			WavefrontExporter.save(meshes, path);
+	}
+
 	static String showPathDialog(String title, String msg) {
 		GenericDialog gd = new GenericDialog(title);
 		gd.addMessage(msg);
@@ -259,18 +439,30 @@ public class SaveSession {
 	void saveView(PrintWriter out, Image3DUniverse univ)
 						throws IOException {
 		out.println("BeginView");
+		print(out, getViewProperties(univ));
+		out.println("EndView");
+	}
+
+	LinkedHashMap<String, String> getViewProperties(Image3DUniverse univ) {
+		LinkedHashMap<String, String> props =
+			new LinkedHashMap<String, String>();
 		Transform3D t3d = new Transform3D();
 		univ.getCenterTG().getTransform(t3d);
-		out.println("center = " + toString(t3d));
+		props.put("center", toString(t3d));
 		univ.getTranslateTG().getTransform(t3d);
-		out.println("translate = " + toString(t3d));
+		props.put("translate", toString(t3d));
 		univ.getRotationTG().getTransform(t3d);
-		out.println("rotate = " + toString(t3d));
+		props.put("rotate", toString(t3d));
 		univ.getZoomTG().getTransform(t3d);
-		out.println("zoom = " + toString(t3d));
+		props.put("zoom", toString(t3d));
 		univ.getAnimationTG().getTransform(t3d);
-		out.println("animate = " + toString(t3d));
-		out.println("EndView");
+		props.put("animate", toString(t3d));
+		return props;
+	}
+
+	private static void print(PrintWriter out, Map<String, String> props) {
+		for(Map.Entry<String, String> p : props.entrySet())
+			out.println(p.getKey() + " = " + p.getValue());
 	}
 
 	HashMap<String, String> readView(BufferedReader in,
@@ -324,6 +516,18 @@ public class SaveSession {
 	}
 
 	void saveContentInstant(PrintWriter out, ContentInstant c) {
+		out.println("BeginContentInstant");
+		print(out, getProperties(c));
+		if(c.getType() == Content.CUSTOM)
+			out.println("surffiles = " + getMeshString(c));
+		out.println("EndContentInstant");
+	}
+
+	/**
+	 * Returns the properties of the given instant, except for the files
+	 * of custom meshes.
+	 */
+	LinkedHashMap<String, String> getProperties(ContentInstant c) {
 		// color string
 		String col = c.color == null ? null : Integer.toString(
 			c.color.get().getRGB());
@@ -337,37 +541,36 @@ public class SaveSession {
 		c.getLocalTranslate(t);
 		String trans = toString(t);
 
-		out.println("BeginContentInstant");
-		out.println("name = "         + c.getName());
+		LinkedHashMap<String, String> props =
+			new LinkedHashMap<String, String>();
+		props.put("name",         c.getName());
 		if(col != null)
-			out.println("color = "        + col);
-		out.println("timepoint = "    + c.timepoint);
-		out.println("channels = "     + chan);
-		out.println("transparency = " + c.transparency);
-		out.println("threshold = "    + c.threshold);
-		out.println("resampling = "   + c.resamplingF);
-		out.println("type = "         + c.type);
-		out.println("locked = "       + c.isLocked());
-		out.println("shaded = "       + c.shaded);
-		out.println("visible = "      + c.isVisible());
-		out.println("coordVisible = " + c.hasCoord());
-		out.println("plVisible = "    + c.isPLVisible());
-		out.println("rotation = "     + rot);
-		out.println("translation = "  + trans);
+			props.put("color",        col);
+		props.put("timepoint",    "" + c.timepoint);
+		props.put("channels",     chan);
+		props.put("transparency", "" + c.transparency);
+		props.put("threshold",    "" + c.threshold);
+		props.put("resampling",   "" + c.resamplingF);
+		props.put("type",         "" + c.type);
+		props.put("locked",       "" + c.isLocked());
+		props.put("shaded",       "" + c.shaded);
+		props.put("visible",      "" + c.isVisible());
+		props.put("coordVisible", "" + c.hasCoord());
+		props.put("plVisible",    "" + c.isPLVisible());
+		props.put("rotation",     rot);
+		props.put("translation",  trans);
 		if(c.image != null)
-			out.println("imgfile = "      + getImageFile(c));
+			props.put("imgfile",      getImageFile(c));
 
 		int type = c.getType();
 		ContentNode cn = c.getContent();
 		if(type == Content.SURFACE_PLOT2D) {
-			out.println("surfplt = " +
+			props.put("surfplt", "" +
 				((SurfacePlotGroup)cn).getSlice());
 		} else if(type == Content.ORTHO) {
-			out.println("ortho = " + getOrthoString(cn));
-		} else if(type == Content.CUSTOM) {
-			out.println("surffiles = " + getMeshString(c));
+			props.put("ortho", getOrthoString(cn));
 		}
-		out.println("EndContentInstant");
+		return props;
 	}
 
 	public Content readContent(BufferedReader in) throws IOException {
@@ -421,6 +624,18 @@ public class SaveSession {
 			String[] keyval = line.split("=");
 			props.put(keyval[0].trim(), keyval[1].trim());
 		}
+		CustomMeshNode node = null;
+		if(i(props.get("type")) == Content.CUSTOM)
+			node = createCustomNode(props.get("surffiles"));
+		return createContentInstant(props, node);
+	}
+
+	/**
+	 * Creates an instant from the given properties; custom contents
+	 * display the given node.
+	 */
+	ContentInstant createContentInstant(HashMap<String, String> props,
+			CustomMeshNode node) {
 		String tmp;
 		String[] sp;
 
@@ -473,8 +688,7 @@ public class SaveSession {
 
 			}
 		} else {
-			tmp = props.get("surffiles");
-			c.display(createCustomNode(tmp));
+			c.display(node);
 		}
 
 		if((tmp = props.get("color")) != null)
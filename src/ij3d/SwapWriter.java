@@ -0,0 +1,143 @@
+package ij3d;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the swap files of timelapse data in the background, so that
+ * showing another timepoint does not wait for the data of the previous
+ * one to be written, see ContentInstant.swapDisplayedData().
+ *
+ * The data to write is held by a Swap until it is written. Restoring
+ * data whose swap file is still queued takes the Swap back instead of
+ * reading the file; if the file is being written, restoring waits for it.
+ * If writing fails, the Swap is kept, so that the data is not lost.
+ */
+public class SwapWriter {
+
+	/** Data which is written to a swap file */
+	public static abstract class Swap {
+		/**
+		 * Writes the data to the given file. Implementations should
+		 * write a temporary file and rename it, see replace().
+		 */
+		protected abstract void write(String file) throws IOException;
+	}
+
+	/** The swap files which are queued or being written */
+	private static final Map<String, Job> pending = new HashMap<String, Job>();
+
+	private static final ThreadPoolExecutor pool = new ThreadPoolExecutor(
+		1, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+		new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Timelapse swap writer");
+				t.setDaemon(true);
+				t.setPriority(Thread.MIN_PRIORITY);
+				return t;
+			}
+		});
+	static {
+		pool.allowCoreThreadTimeOut(true);
+	}
+
+	private SwapWriter() {}
+
+	/**
+	 * Queues the given data to be written to the given file. Data which
+	 * is still queued for the same file is discarded.
+	 */
+	public static synchronized void write(String file, Swap swap) {
+		Job old = pending.get(file);
+		if(old != null && pool.remove(old))
+			pending.remove(file);
+		else if(old != null)
+			await(old);
+		Job j = new Job(file, swap);
+		pending.put(file, j);
+		pool.execute(j);
+	}
+
+	/**
+	 * Returns the data queued for the given file and removes it from
+	 * the queue, or null if there is none. If the file is being written,
+	 * waits for it and returns null, so the file can be read, unless
+	 * writing failed; the data is returned in this case, too.
+	 */
+	public static synchronized Swap reclaim(String file) {
+		Job j = pending.get(file);
+		if(j == null)
+			return null;
+		if(!pool.remove(j)) {
+			await(j);
+			if(!j.failed)
+				return null;
+		}
+		pending.remove(file);
+		return j.swap;
+	}
+
+	/**
+	 * Replaces the given file by the given, completely written one.
+	 * Data which is still memory-mapped from the old file stays valid
+	 * where mapped files can be deleted; on Windows, the old file can
+	 * not be replaced until its mappings are released.
+	 */
+	public static void replace(File part, File file) throws IOException {
+		if(file.exists() && !file.delete() || !part.renameTo(file))
+			throw new IOException("Could not replace " + file);
+	}
+
+	/**
+	 * Waits for the given job to finish, even if interrupted, because
+	 * its file can not be read before.
+	 */
+	private static void await(Job j) {
+		boolean interrupted = false;
+		while(!j.done) {
+			try {
+				SwapWriter.class.wait();
+			} catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private static class Job implements Runnable {
+		final String file;
+		final Swap swap;
+		boolean done = false;
+		/** If set, the job stays pending so its data can be reclaimed */
+		boolean failed = false;
+
+		Job(String file, Swap swap) {
+			this.file = file;
+			this.swap = swap;
+		}
+
+		public void run() {
+			try {
+				swap.write(file);
+			} catch(Exception e) {
+				System.out.println("Cannot write " + file);
+				e.printStackTrace();
+				failed = true;
+			} finally {
+				synchronized(SwapWriter.class) {
+					done = true;
+					if(!failed && pending.get(file) == this)
+						pending.remove(file);
+					SwapWriter.class.notifyAll();
+				}
+			}
+		}
+	}
+}
@@ -30,6 +30,29 @@ public class UniverseSettings {
 	public static boolean showScalebar = false;
 	public static boolean showSelectionBox = true;
 	public static Color3f defaultBackground = new Color3f();
+	public static int meshingThreads = Runtime.getRuntime()
+			.availableProcessors();
+	/** Memory (in MB) for the recent meshes of each surface content */
+	public static int meshCacheMB = 128;
+	/** Memory (in MB) for the textures of each volume rendering */
+	public static int textureMemoryMB = 1024;
+
+	public static final int TEXTURE_SIZE_AUTO = 0;
+	public static final int TEXTURE_SIZE_POWER_OF_TWO = 1;
+	public static final int TEXTURE_SIZE_EXACT = 2;
+	/**
+	 * Whether volume textures are padded to a power of two; with
+	 * TEXTURE_SIZE_AUTO, exact sizes are used if the graphics card
+	 * supports them. Applies to volumes created afterwards.
+	 */
+	public static int textureSize = TEXTURE_SIZE_AUTO;
+	/** Memory (in MB) for recently used bricks of large volumes */
+	public static int octreeCacheMB = 512;
+	/**
+	 * Whether sessions are saved in the binary format, which contains
+	 * the data of all meshes and loads much faster than the text format.
+	 */
+	public static boolean binarySessions = false;
 
 	public static void save() {
 		// Properties properties = new Properties();
@@ -94,6 +117,18 @@ public class UniverseSettings {
 				showGlobalCoordinateSystem);
 		// gd.addCheckbox("Use current color as default backround", false);
 		gd.addCheckbox("Show scalebar", showScalebar);
+		gd.addNumericField("Threads for surface meshing",
+				meshingThreads, 0);
+		gd.addNumericField("Mesh cache per surface (MB)",
+				meshCacheMB, 0);
+		gd.addNumericField("Texture memory per volume (MB)",
+				textureMemoryMB, 0);
+		String[] sizes = new String[] {
+			"Automatic", "Power of two", "Exact" };
+		gd.addChoice("Texture size", sizes, sizes[textureSize]);
+		gd.addNumericField("Brick cache for large volumes (MB)",
+				octreeCacheMB, 0);
+		gd.addCheckbox("Save sessions in binary format", binarySessions);
 		// gd.addCheckbox("Apply changes now", true);
 
 //		gd.addMessage("The following options are applied immediately:");
@@ -113,6 +148,12 @@ public class UniverseSettings {
 		// if(gd.getNextBoolean() && univ != null)
 		// ((ImageCanvas3D)univ.getCanvas()).getBG().getColor(defaultBackground);
 		showScalebar = gd.getNextBoolean();
+		meshingThreads = Math.max(1, (int)gd.getNextNumber());
+		meshCacheMB = Math.max(0, (int)gd.getNextNumber());
+		textureMemoryMB = Math.max(0, (int)gd.getNextNumber());
+		textureSize = gd.getNextChoiceIndex();
+		octreeCacheMB = Math.max(0, (int)gd.getNextNumber());
+		binarySessions = gd.getNextBoolean();
 		// boolean apply = gd.getNextBoolean();
 
 //		showLocalCoordinateSystemsByDefault = gd.getNextBoolean();
@@ -1,11 +1,19 @@
 package ij3d;
 
-import ij.IJ;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
 
+import java.awt.image.ColorModel;
 import java.awt.image.IndexColorModel;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 
 import javax.vecmath.Point3d;
 
@@ -108,6 +116,17 @@ public class Volume {
 		setImage(imp, ch);
 	}
 
+	/**
+	 * Initializes this Volume with the specified memory-mapped image,
+	 * without loading it into an ImagePlus.
+	 * @param ch A boolean[] array of length three, which indicates whether
+	 * the red, blue and green channel should be read. This has only an
+	 * effect when reading color images.
+	 */
+	public Volume(MappedImage img, boolean[] ch) {
+		setImage(img, ch);
+	}
+
 	private void setLUTsFromImage(ImagePlus imp) {
 		switch(imp.getType()) {
 			case ImagePlus.GRAY8:
@@ -147,11 +166,30 @@ public class Volume {
 				throw new IllegalArgumentException("Unsupported image type");
 		}
 		setLUTsFromImage(this.imp);
+		setDimensions(imp.getWidth(), imp.getHeight(),
+			imp.getStackSize(), imp.getCalibration());
+	}
+
+	/**
+	 * Uses the given memory-mapped image. getImagePlus() returns null
+	 * in this case; the default LUTs are used.
+	 */
+	public void setImage(MappedImage img, boolean[] ch) {
+		this.imp = null;
+		this.channels = ch;
+		this.image = img;
+		for(int i = 0; i < 256; i++) {
+			rLUT[i] = gLUT[i] = bLUT[i] = i;
+			aLUT[i] = Math.min(254, i);
+		}
+		setDimensions(img.getWidth(), img.getHeight(),
+			img.getStackSize(), img.getCalibration());
+	}
 
-		xDim = imp.getWidth();
-		yDim = imp.getHeight();
-		zDim = imp.getStackSize();
-		Calibration c = imp.getCalibration();
+	private void setDimensions(int w, int h, int d, Calibration c) {
+		xDim = w;
+		yDim = h;
+		zDim = d;
 		pw = c.pixelWidth;
 		ph = c.pixelHeight;
 		pd = c.pixelDepth;
@@ -183,15 +221,182 @@ public class Volume {
 		loader = null;
 	}
 
+	/** The memory-mapped image while swapped, see swap() */
+	private MappedImage swappedMapped = null;
+
+	/** The image while swapped, see swap() */
+	private VolumeSwap swapped = null;
+
+	/** Extension of the swap files of volumes */
+	public static final String SWAP_EXTENSION = ".voxels";
+
+	/**
+	 * Releases the image data. Unless the image is memory-mapped, its
+	 * voxels are written to a raw swap file in the background by the
+	 * SwapWriter; the other attributes of the image stay in memory.
+	 */
 	public void swap(String path) {
-		IJ.save(imp, path + ".tif");
+		// mapped images are backed by their file already
+		if(image instanceof MappedImage)
+			swappedMapped = (MappedImage)image;
+		else {
+			swapped = new VolumeSwap(imp);
+			SwapWriter.write(path + SWAP_EXTENSION, swapped);
+		}
 		imp = null;
 		image = null;
 		loader = null;
 	}
 
 	public void restore(String path) {
-		setImage(IJ.openImage(path + ".tif"), channels);
+		if(swappedMapped != null) {
+			setImage(swappedMapped, channels);
+			swappedMapped = null;
+			return;
+		}
+		if(swapped == null)
+			throw new IllegalStateException("Image is not swapped");
+		String file = path + SWAP_EXTENSION;
+		VolumeSwap s = swapped;
+		SwapWriter.reclaim(file);
+		// the image is only released after it was written successfully
+		ImagePlus restored = s.imp;
+		if(restored == null) {
+			try {
+				restored = s.read(file);
+			} catch(IOException e) {
+				throw new IllegalArgumentException(
+					"Cannot load image from " + file, e);
+			}
+		}
+		swapped = null;
+		setImage(restored, channels);
+	}
+
+	/**
+	 * The voxels of a swapped image, which are written to a raw file:
+	 * MAGIC, VERSION, the number of bytes per voxel, width, height and
+	 * depth, followed by the slices, all little-endian. The attributes of
+	 * the image are kept in memory.
+	 */
+	private static class VolumeSwap extends SwapWriter.Swap {
+		private static final int MAGIC = 0x56443349; // "I3DV"
+		private static final int VERSION = 1;
+		private static final int HEADER = 24;
+
+		/** The image, until its voxels are written */
+		volatile ImagePlus imp;
+		final ImagePlus attributes;
+		final ColorModel cm;
+		final String[] labels;
+		final int w, h, d, bytesPerVoxel;
+
+		VolumeSwap(ImagePlus imp) {
+			this.imp = imp;
+			attributes = imp.createImagePlus();
+			attributes.setTitle(imp.getTitle());
+			ImageStack stack = imp.getStack();
+			cm = stack.getColorModel();
+			w = imp.getWidth();
+			h = imp.getHeight();
+			d = imp.getStackSize();
+			labels = new String[d];
+			for(int z = 0; z < d; z++)
+				labels[z] = stack.getSliceLabel(z + 1);
+			bytesPerVoxel = imp.getType() == ImagePlus.COLOR_RGB ? 4 : 1;
+		}
+
+		protected void write(String file) throws IOException {
+			ImageStack stack = imp.getStack();
+			File part = new File(file + ".part");
+			FileOutputStream out = new FileOutputStream(part);
+			try {
+				FileChannel fc = out.getChannel();
+				ByteBuffer buf = ByteBuffer.allocate(HEADER)
+					.order(ByteOrder.LITTLE_ENDIAN);
+				buf.putInt(MAGIC).putInt(VERSION).putInt(bytesPerVoxel)
+					.putInt(w).putInt(h).putInt(d);
+				buf.flip();
+				writeFully(fc, buf);
+				if(bytesPerVoxel == 4)
+					buf = ByteBuffer.allocate(4 * w * h)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				for(int z = 1; z <= d; z++) {
+					Object pixels = stack.getPixels(z);
+					if(bytesPerVoxel == 1) {
+						writeFully(fc, ByteBuffer.wrap((byte[])pixels));
+					} else {
+						buf.clear();
+						buf.asIntBuffer().put((int[])pixels);
+						writeFully(fc, buf);
+					}
+				}
+			} finally {
+				out.close();
+			}
+			SwapWriter.replace(part, new File(file));
+			imp = null;
+		}
+
+		ImagePlus read(String file) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel fc = raf.getChannel();
+				ByteBuffer buf = ByteBuffer.allocate(HEADER)
+					.order(ByteOrder.LITTLE_ENDIAN);
+				readFully(fc, buf, 0);
+				if(buf.getInt(0) != MAGIC || buf.getInt(4) != VERSION
+						|| buf.getInt(8) != bytesPerVoxel
+						|| buf.getInt(12) != w || buf.getInt(16) != h
+						|| buf.getInt(20) != d)
+					throw new IOException("Not a valid swap file");
+				if(bytesPerVoxel == 4)
+					buf = ByteBuffer.allocate(4 * w * h)
+						.order(ByteOrder.LITTLE_ENDIAN);
+				ImageStack stack = new ImageStack(w, h, cm);
+				long pos = HEADER;
+				for(int z = 0; z < d; z++) {
+					if(bytesPerVoxel == 1) {
+						byte[] pixels = new byte[w * h];
+						readFully(fc, ByteBuffer.wrap(pixels), pos);
+						stack.addSlice(labels[z], pixels);
+					} else {
+						int[] pixels = new int[w * h];
+						readFully(fc, buf, pos);
+						buf.asIntBuffer().get(pixels);
+						stack.addSlice(labels[z], pixels);
+					}
+					pos += (long)bytesPerVoxel * w * h;
+				}
+				attributes.setStack(attributes.getTitle(), stack);
+				return attributes;
+			} finally {
+				raf.close();
+			}
+		}
+
+		private static void writeFully(FileChannel fc, ByteBuffer buf)
+				throws IOException {
+			while(buf.hasRemaining())
+				fc.write(buf);
+		}
+
+		/** Fills buf, from the given position of the channel. */
+		private static void readFully(FileChannel fc, ByteBuffer buf,
+				long pos) throws IOException {
+			buf.clear();
+			while(buf.hasRemaining())
+				if(fc.read(buf, pos + buf.position()) < 0)
+					throw new EOFException();
+			buf.flip();
+		}
+	}
+
+	/**
+	 * Returns whether the image data is memory-mapped, see MappedImage.
+	 */
+	public boolean isMapped() {
+		return image instanceof MappedImage || swappedMapped != null;
 	}
 
 	/**
@@ -356,7 +561,7 @@ public class Volume {
 			return;
 		}
 		int channel = 0;
-		if(image instanceof IntImage) {
+		if(!isGray()) {
 			for(int i = 0; i < 3; i++)
 				if(channels[i])
 					channel = i;
@@ -374,7 +579,7 @@ public class Volume {
 		if(image == null)
 			throw new RuntimeException("No image. Maybe it is swapped?");
 		int noChannels = 0;
-		if(image instanceof ByteImage) {
+		if(isGray()) {
 			noChannels = 1;
 		} else {
 			for(int i = 0; i < 3; i++)
@@ -391,6 +596,29 @@ public class Volume {
 		return tmp != dataType;
 	}
 
+	/**
+	 * Returns the slices of an 8-bit image held in memory, or null for
+	 * other images. Allows subclasses to read the data directly.
+	 */
+	protected byte[][] getByteSlices() {
+		return image instanceof ByteImage ? ((ByteImage)image).fData : null;
+	}
+
+	/**
+	 * Returns the slices of an RGB image held in memory, or null for
+	 * other images.
+	 */
+	protected int[][] getIntSlices() {
+		return image instanceof IntImage ? ((IntImage)image).fData : null;
+	}
+
+	/** Whether the image has a single (8-bit) channel */
+	protected boolean isGray() {
+		if(image instanceof MappedImage)
+			return !((MappedImage)image).isRGB();
+		return image instanceof ByteImage;
+	}
+
 	public void setNoCheck(int x, int y, int z, int v) {
 		try {
 			loader.setNoCheck(x, y, z, v);
@@ -458,6 +686,12 @@ public class Volume {
 	protected interface Loader {
 		int load(int x, int y, int z);
 		int loadWithLUT(int x, int y, int z);
+		/**
+		 * Returns the value of loadWithLUT() for a pixel with the
+		 * given color components (which are all equal for 8-bit
+		 * images). Safe for concurrent use.
+		 */
+		int applyLUT(int r, int g, int b);
 		void set(int x, int y, int z, int v);
 		void setNoCheck(int x, int y, int z, int v);
 	}
@@ -552,13 +786,17 @@ public class Volume {
 		}
 
 		protected int[] color = new int[3];
-		public int loadWithLUT(int x, int y, int z) {
+		public final int loadWithLUT(int x, int y, int z) {
 			image.get(x, y, z, color);
+			return applyLUT(color[0], color[1], color[2]);
+		}
+
+		public int applyLUT(int red, int green, int blue) {
 			int sum = 0, av = 0, v = 0;
 			
-			if(channels[0]) { int r = rLUT[color[0]]; sum++; av += color[0]; v += (r << 16); }
-			if(channels[1]) { int g = gLUT[color[1]]; sum++; av += color[1]; v += (g << 8); }
-			if(channels[2]) { int b = bLUT[color[2]]; sum++; av += color[2]; v += b; }
+			if(channels[0]) { int r = rLUT[red]; sum++; av += red; v += (r << 16); }
+			if(channels[1]) { int g = gLUT[green]; sum++; av += green; v += (g << 8); }
+			if(channels[2]) { int b = bLUT[blue]; sum++; av += blue; v += b; }
 			av /= sum;
 			int a = aLUT[av];
 			return (a << 24) + v;
@@ -583,13 +821,11 @@ public class Volume {
 		}
 		
 		@Override
-		public final int loadWithLUT(int x, int y, int z) {
-			image.get(x, y, z, color);
-			
+		public final int applyLUT(int red, int green, int blue) {
 			int sum = 0, av = 0, r = 0, g = 0, b = 0;
-			if(channels[0]) { r = rLUT[color[0]]; sum++; av += color[0]; }
-			if(channels[1]) { g = gLUT[color[1]]; sum++; av += color[1]; }
-			if(channels[2]) { b = bLUT[color[2]]; sum++; av += color[2]; }
+			if(channels[0]) { r = rLUT[red]; sum++; av += red; }
+			if(channels[1]) { g = gLUT[green]; sum++; av += green; }
+			if(channels[2]) { b = bLUT[blue]; sum++; av += blue; }
 
 			av /= sum;
 			
@@ -624,6 +860,10 @@ public class Volume {
 			return color[channel];
 		}
 
+		public int applyLUT(int r, int g, int b) {
+			return channel == 0 ? r : channel == 1 ? g : b;
+		}
+
 		public void setNoCheck(int x, int y, int z, int v) {
 			image.set(x, y, z, v);
 		}
@@ -643,17 +883,23 @@ public class Volume {
 		}
 
 		private int[] color = new int[3];
+		// does not use the shared color array, so that several
+		// threads can load concurrently (e.g. for meshing)
 		public final int load(int x, int y, int z) {
-			image.get(x, y, z, color);
-			return (color[0] + color[1] + color[2]) / 3;
+			return image.getAverage(x, y, z) & 0xff;
 		}
 
 		public final int loadWithLUT(int x, int y, int z) {
 			image.get(x, y, z, color);
+			return applyLUT(color[0], color[1], color[2]);
+		}
+
+		@Override
+		public final int applyLUT(int r, int g, int b) {
 			int sum = 0, av = 0;
-			if(channels[0]) { av += rLUT[color[0]]; sum++; }
-			if(channels[1]) { av += gLUT[color[1]]; sum++; }
-			if(channels[2]) { av += bLUT[color[2]]; sum++; }
+			if(channels[0]) { av += rLUT[r]; sum++; }
+			if(channels[1]) { av += gLUT[g]; sum++; }
+			if(channels[2]) { av += bLUT[b]; sum++; }
 			av /= sum;
 			return av;
 		}
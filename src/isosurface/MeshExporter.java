@@ -25,11 +25,15 @@ import java.util.List;
 import javax.vecmath.Color3f;
 import javax.vecmath.Point3f;
 
+import customnode.CustomIndexedTriangleMesh;
 import customnode.CustomMesh;
 import customnode.CustomMeshNode;
 import customnode.CustomMultiMesh;
 import customnode.CustomQuadMesh;
 import customnode.CustomTriangleMesh;
+import customnode.OrderedTextWriter;
+import customnode.TextBuffer;
+import customnode.TupleBuffer;
 import customnode.WavefrontExporter;
 
 
@@ -129,26 +133,48 @@ public class MeshExporter {
 	}
 
 	static public void writeDXF(final Collection contents, final Writer w) throws IOException {
-		w.write("0\nSECTION\n2\nENTITIES\n");   //header of file
-		for (Iterator it = contents.iterator(); it.hasNext(); ) {
-			Content ob = (Content)it.next();
-
-			CustomMesh cmesh=null;
+		writeDXF(contents, w, Runtime.getRuntime().availableProcessors());
+	}
 
-			if (ob.getContent() instanceof CustomMeshNode) {
-				CustomMeshNode cmeshnode = (CustomMeshNode) ob.getContent();
-				cmesh = cmeshnode.getMesh();
-			} else if (ob.getContent() instanceof MeshGroup) {
-				MeshGroup mg = (MeshGroup)ob.getContent();
-				cmesh = mg.getMesh();
-			} else
-				continue;
+	/**
+	 * Writes the given contents as DXF, formatting the triangles with the
+	 * given number of threads. Triangles are streamed to the writer in
+	 * blocks, so that only a bounded amount of text is held in memory.
+	 */
+	static public void writeDXF(final Collection contents, final Writer w, final int nThreads) throws IOException {
+		w.write("0\nSECTION\n2\nENTITIES\n");   //header of file
+		OrderedTextWriter out = new OrderedTextWriter(w, nThreads);
+		try {
+			for (Iterator it = contents.iterator(); it.hasNext(); ) {
+				Content ob = (Content)it.next();
+
+				CustomMesh cmesh=null;
+
+				if (ob.getContent() instanceof CustomMeshNode) {
+					CustomMeshNode cmeshnode = (CustomMeshNode) ob.getContent();
+					cmesh = cmeshnode.getMesh();
+				} else if (ob.getContent() instanceof MeshGroup) {
+					MeshGroup mg = (MeshGroup)ob.getContent();
+					cmesh = mg.getMesh();
+				} else
+					continue;
+				if (cmesh instanceof CustomIndexedTriangleMesh) {
+					IJ.log("Indexed meshes are unsupported, can't save "
+							+ ob.getName() + " as DXF");
+					continue;
+				}
 
-			final List triangles = cmesh.getMesh();
+				TupleBuffer coords = cmesh.getCoordinates();
+				if (null == coords)
+					coords = new TupleBuffer(cmesh.getMesh(), false);
 
-			String title = ob.getName().replaceAll(" ", "_").replaceAll("#", "--");
-			Mtl mat = new Mtl(1 - ob.getTransparency(), cmesh.getColor());
-			writeTrianglesDXF(w, triangles, title, "" + mat.getAsSingle());
+				String title = ob.getName().replaceAll(" ", "_").replaceAll("#", "--");
+				Mtl mat = new Mtl(1 - ob.getTransparency(), cmesh.getColor());
+				writeTrianglesDXF(out, coords, title, "" + mat.getAsSingle());
+			}
+			out.finish();
+		} finally {
+			out.cancel();
 		}
 		w.append("0\nENDSEC\n0\nEOF\n");         //TRAILER of the file
 	}
@@ -233,21 +259,29 @@ public class MeshExporter {
 		}
 		//count all the triangles and add them to a list
 		int triangles = 0;
-		ArrayList<List<Point3f>> surfaces = new ArrayList<List<Point3f>>();
+		ArrayList<TupleBuffer> surfaces = new ArrayList<TupleBuffer>();
+		// the vertex indices of indexed meshes, or null
+		ArrayList<int[]> surfaceFaces = new ArrayList<int[]>();
 		for (String name : meshes.keySet()) {
 			CustomMesh cmesh = meshes.get(name);
 			if (cmesh.getClass() == CustomQuadMesh.class) {
 				IJ.log("Quad meshes are unsupported, can't save " + name
 						+ " as STL");
 				continue;
-			} else if (cmesh.getClass() != CustomTriangleMesh.class) {
+			} else if (cmesh.getClass() != CustomTriangleMesh.class
+					&& cmesh.getClass() != CustomIndexedTriangleMesh.class) {
 				IJ.log("Unsupported content type, can't save " + name
 						+ " as STL");
 				continue;
 			}
-			List<Point3f> vertices = cmesh.getMesh();
-			triangles += vertices.size() / 3;
-			surfaces.add(vertices);
+			// avoid switching buffer-backed meshes to list storage
+			TupleBuffer coords = cmesh.getCoordinates();
+			if (coords == null)
+				coords = new TupleBuffer(cmesh.getMesh(), false);
+			int[] faces = getFaces(cmesh);
+			triangles += (faces == null ? coords.size() : faces.length) / 3;
+			surfaces.add(coords);
+			surfaceFaces.add(faces);
 		}
 		
 		String header = "Binary STL created by ImageJ 3D Viewer.";
@@ -260,36 +294,66 @@ public class MeshExporter {
 			out.writeByte((triangles >> 8) & 0xFF);
 			out.writeByte((triangles >> 16) & 0xFF);
 			out.writeByte((triangles >> 24) & 0xFF);
-			for (List<Point3f> vertices : surfaces){
-				for (int i = 0; i < vertices.size(); i+=3){
-					Point3f p0 = vertices.get(i);
-					Point3f p1 = vertices.get(i+1);
-					Point3f p2 = vertices.get(i+2);
-					Point3f n = unitNormal(p0, p1, p2);
-					ByteBuffer bb = ByteBuffer.allocate(50);
-					bb.order(ByteOrder.LITTLE_ENDIAN);
-					bb.putFloat(n.x);
-					bb.putFloat(n.y);
-					bb.putFloat(n.z);
-					bb.putFloat(p0.x);
-					bb.putFloat(p0.y);
-					bb.putFloat(p0.z);
-					bb.putFloat(p1.x);
-					bb.putFloat(p1.y);
-					bb.putFloat(p1.z);
-					bb.putFloat(p2.x);
-					bb.putFloat(p2.y);
-					bb.putFloat(p2.z);
+			// triangles are written in chunks of STL_CHUNK
+			ByteBuffer bb = ByteBuffer.allocate(50 * STL_CHUNK);
+			bb.order(ByteOrder.LITTLE_ENDIAN);
+			float[] v = new float[9];
+			for (int s = 0; s < surfaces.size(); s++){
+				TupleBuffer coords = surfaces.get(s);
+				int[] faces = surfaceFaces.get(s);
+				int n = (faces == null ? coords.size() : faces.length) / 3 * 3;
+				for (int i = 0; i < n; i+=3){
+					for (int c = 0; c < 3; c++) {
+						int p = 3 * (faces == null ? i + c : faces[i + c]);
+						for (int k = 0; k < 3; k++)
+							v[3 * c + k] = coords.get(p + k);
+					}
+					putUnitNormal(bb, v);
+					for (int k = 0; k < 9; k++)
+						bb.putFloat(v[k]);
 					bb.putShort((short)0);
-					out.write(bb.array());
+					if (!bb.hasRemaining()) {
+						out.write(bb.array(), 0, bb.position());
+						bb.clear();
+					}
 				}
 			}
+			out.write(bb.array(), 0, bb.position());
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
 
 	}
 
+	private static final int STL_CHUNK = 1 << 14;
+
+	/**
+	 * Returns the vertex indices of an indexed mesh, three per triangle,
+	 * or null for meshes which list the corners of each triangle.
+	 */
+	private static int[] getFaces(CustomMesh cmesh) {
+		if (cmesh instanceof CustomIndexedTriangleMesh)
+			return ((CustomIndexedTriangleMesh)cmesh).getFaces();
+		return null;
+	}
+
+	/**
+	 * Puts the unit normal of the triangle with the given interleaved
+	 * corner coordinates into the buffer, as calculated by unitNormal().
+	 */
+	private static void putUnitNormal(ByteBuffer bb, float[] v) {
+		float ax = v[3] - v[0], ay = v[4] - v[1], az = v[5] - v[2];
+		float bx = v[6] - v[0], by = v[7] - v[1], bz = v[8] - v[2];
+		float nx = ay * bz - az * by;
+		float ny = az * bx - ax * bz;
+		float nz = ax * by - ay * bx;
+
+		float length = (float)Math.sqrt(nx * nx + ny * ny + nz* nz);
+		bb.putFloat(nx / length);
+		bb.putFloat(ny / length);
+		bb.putFloat(nz / length);
+	}
+
 	private static Point3f unitNormal(Point3f p0, Point3f p1, Point3f p2) {
 		float nx = (p1.y-p0.y) * (p2.z-p0.z) - (p1.z-p0.z) * (p2.y-p0.y);
 		float ny = (p1.z-p0.z) * (p2.x-p0.x) - (p1.x-p0.x) * (p2.z-p0.z);
@@ -343,17 +407,19 @@ public class MeshExporter {
 					IJ.log("Quad meshes are unsupported, can't save " + name
 							+ " as STL");
 					continue;
-				} else if (cmesh.getClass() != CustomTriangleMesh.class) {
+				} else if (cmesh.getClass() != CustomTriangleMesh.class
+						&& cmesh.getClass() != CustomIndexedTriangleMesh.class) {
 					IJ.log("Unsupported content type, can't save " + name
 							+ " as STL");
 					continue;
 				}
 				List<Point3f> vertices = cmesh.getMesh();
-				final int nPoints = vertices.size();
+				final int[] faces = getFaces(cmesh);
+				final int nPoints = faces == null ? vertices.size() : faces.length;
 				for (int p = 0; p < nPoints; p += 3) {
-					Point3f p0 = vertices.get(p);
-					Point3f p1 = vertices.get(p+1);
-					Point3f p2 = vertices.get(p+2);
+					Point3f p0 = vertices.get(faces == null ? p : faces[p]);
+					Point3f p1 = vertices.get(faces == null ? p+1 : faces[p+1]);
+					Point3f p2 = vertices.get(faces == null ? p+2 : faces[p+2]);
 					Point3f n = unitNormal(p0, p1, p2);
 
 					final String e = "%E"; //Scientific format -3.141569E+03
@@ -398,50 +464,58 @@ public class MeshExporter {
 	static public void writeTrianglesDXF(final StringBuffer sb, final List triangles, final String the_group, final String the_color) {
 		try {
 			StringWriter sw = new StringWriter();
-			writeTrianglesDXF(sw, triangles, the_group, the_color);
+			TupleBuffer coords = new TupleBuffer(triangles.size(), false);
+			for (Object p : triangles)
+				coords.add((Point3f)p);
+			OrderedTextWriter out = new OrderedTextWriter(sw, 1);
+			writeTrianglesDXF(out, coords, the_group, the_color);
+			out.finish();
 			sb.append(sw.getBuffer());
 		} catch (IOException ioe) {
 			ioe.printStackTrace();
 		}
 	}
 
-	static private void writeTrianglesDXF(final Writer w, final List triangles, final String the_group, final String the_color) throws IOException {
-
-		final char L = '\n';
-		final String s10 = "10\n"; final String s11 = "11\n"; final String s12 = "12\n"; final String s13 = "13\n";
-		final String s20 = "20\n"; final String s21 = "21\n"; final String s22 = "22\n"; final String s23 = "23\n";
-		final String s30 = "30\n"; final String s31 = "31\n"; final String s32 = "32\n"; final String s33 = "33\n";
-		final String triangle_header = "0\n3DFACE\n8\n" + the_group + "\n6\nCONTINUOUS\n62\n" + the_color + L;
+	/** Number of triangles formatted per block */
+	private static final int DXF_BLOCK = 1 << 12;
 
-		final int len = triangles.size();
-		final Point3f[] vert = new Point3f[len];
-		triangles.toArray(vert);
-
-		final StringBuffer sb = new StringBuffer(150);
-
-		for (int i=0; i<len; i+=3) {
-
-			w.write(triangle_header);
-
-			sb
-			.append(s10).append(vert[i].x).append(L)
-			.append(s20).append(vert[i].y).append(L)
-			.append(s30).append(vert[i].z).append(L)
-
-			.append(s11).append(vert[i+1].x).append(L)
-			.append(s21).append(vert[i+1].y).append(L)
-			.append(s31).append(vert[i+1].z).append(L)
+	static private void writeTrianglesDXF(final OrderedTextWriter out, final TupleBuffer coords, final String the_group, final String the_color) throws IOException {
+		final String triangle_header = "0\n3DFACE\n8\n" + the_group + "\n6\nCONTINUOUS\n62\n" + the_color + '\n';
+		final int nTriangles = coords.size() / 3;
+		for (int t = 0; t < nTriangles; t += DXF_BLOCK)
+			out.write(new TrianglesDXF(coords, triangle_header, t, Math.min(DXF_BLOCK, nTriangles - t)));
+	}
 
-			.append(s12).append(vert[i+2].x).append(L)
-			.append(s22).append(vert[i+2].y).append(L)
-			.append(s32).append(vert[i+2].z).append(L)
+	/** Formats a range of triangles as 3DFACE entities */
+	static private final class TrianglesDXF extends OrderedTextWriter.Block {
+		private final TupleBuffer coords;
+		private final String triangle_header;
+		private final int start, count;
+
+		TrianglesDXF(final TupleBuffer coords, final String triangle_header, final int start, final int count) {
+			this.coords = coords;
+			this.triangle_header = triangle_header;
+			this.start = start;
+			this.count = count;
+		}
 
-			.append(s13).append(vert[i+2].x).append(L) // repeated point
-			.append(s23).append(vert[i+2].y).append(L)
-			.append(s33).append(vert[i+2].z).append(L);
+		@Override
+		protected void format(final TextBuffer buf) {
+			for (int t=start; t<start+count; t++) {
+				buf.append(triangle_header);
+				final int p = 9 * t;
+				appendPoint(buf, '0', p);
+				appendPoint(buf, '1', p + 3);
+				appendPoint(buf, '2', p + 6);
+				appendPoint(buf, '3', p + 6); // repeated point
+			}
+		}
 
-			w.write(sb.toString());
-			sb.setLength(0);
+		/** Appends the group codes 1c, 2c and 3c and the point at index p */
+		private void appendPoint(final TextBuffer buf, final char c, final int p) {
+			buf.append('1').append(c).append('\n').append(coords.get(p)).append('\n')
+			   .append('2').append(c).append('\n').append(coords.get(p + 1)).append('\n')
+			   .append('3').append(c).append('\n').append(coords.get(p + 2)).append('\n');
 		}
 	}
 
@@ -4,8 +4,12 @@ import ij.IJ;
 import ij3d.Content;
 import ij3d.ContentInstant;
 import ij3d.ContentNode;
+import ij3d.UniverseSettings;
 
 import java.awt.Color;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 
 import javax.media.j3d.View;
@@ -15,6 +19,7 @@ import javax.vecmath.Tuple3d;
 
 import marchingcubes.MCTriangulator;
 import customnode.CustomTriangleMesh;
+import customnode.TupleBuffer;
 
 public class MeshGroup extends ContentNode {
 
@@ -23,6 +28,26 @@ public class MeshGroup extends ContentNode {
 	private ContentInstant c;
 	private Point3f min, max, center;
 
+	/*
+	 * Recently calculated meshes, as vertex coordinates, in the order
+	 * of their last use.
+	 */
+	private final LinkedHashMap<MeshKey, float[]> cache =
+		new LinkedHashMap<MeshKey, float[]>(16, 0.75f, true);
+	private long cachedBytes = 0;
+
+	/*
+	 * The background re-meshing: the most recently requested mesh,
+	 * the one which still needs to be started, the thread working on
+	 * the requests, and whether it is currently meshing (only then it
+	 * is interrupted by a newer request).
+	 */
+	private final Object lock = new Object();
+	private MeshKey wanted;
+	private MeshKey pending;
+	private Thread remesher;
+	private boolean meshing = false;
+
 	public MeshGroup (Content c) {
 		this(c.getCurrent());
 	}
@@ -31,20 +56,28 @@ public class MeshGroup extends ContentNode {
 		super();
 		this.c = c;
 		Color3f color = c.getColor();
-		List tri = triangulator.getTriangles(c.getImage(),
-			c.getThreshold(), c.getChannels(),
-			c.getResamplingFactor());
+		MeshKey key = new MeshKey(c);
+		List<Point3f> tri = triangulator.getTriangles(c.getImage(),
+			key.threshold, key.channels, key.resamplingF);
+		float[] coords = cache(key, tri);
+		wanted = key;
 		if(color == null) {
 			int value = c.getImage().getProcessor().
 				getColorModel().getRGB(c.getThreshold());
 			color = new Color3f(new Color(value));
 		}
-		mesh = new CustomTriangleMesh(tri, color, c.getTransparency());
+		mesh = new CustomTriangleMesh(new TupleBuffer(coords, true),
+			color, c.getTransparency());
 		calculateMinMaxCenterPoint();
 		addChild(mesh);
 	}
 
+	/**
+	 * Returns the mesh, after waiting for requested meshes, see
+	 * waitForMesh().
+	 */
 	public CustomTriangleMesh getMesh() {
+		waitForMesh();
 		return mesh;
 	}
 
@@ -70,10 +103,7 @@ public class MeshGroup extends ContentNode {
 				"image. Can't change threshold");
 			return;
 		}
-		List tri = triangulator.getTriangles(c.getImage(),
-				c.getThreshold(), c.getChannels(),
-				c.getResamplingFactor());
-		mesh.setMesh(tri);
+		remesh();
 	}
 
 	public void lutUpdated(int[] r, int[] g, int[] b, int[] a) {
@@ -86,10 +116,174 @@ public class MeshGroup extends ContentNode {
 				"image. Can't change channels");
 			return;
 		}
-		List tri = triangulator.getTriangles(c.getImage(),
-			c.getThreshold(), c.getChannels(),
-			c.getResamplingFactor());
-		mesh.setMesh(tri);
+		remesh();
+	}
+
+	/**
+	 * Replaces the mesh by the one of the current threshold, channels
+	 * and resampling factor of the content. Recently used meshes are
+	 * taken from the cache; others are calculated in the background,
+	 * while the current mesh stays visible. A calculation which is
+	 * superseded by a newer request is cancelled.
+	 */
+	public void remesh() {
+		MeshKey key = new MeshKey(c);
+		synchronized(lock) {
+			wanted = key;
+			float[] coords = cache.get(key);
+			if(coords != null) {
+				// drop a calculation which is no longer wanted
+				pending = null;
+				if(meshing)
+					remesher.interrupt();
+				setMesh(coords);
+				return;
+			}
+			pending = key;
+			if(meshing)
+				remesher.interrupt();
+			if(remesher == null) {
+				remesher = new Thread("Remeshing " + c.getName()) {
+					public void run() {
+						remeshPending();
+					}
+				};
+				remesher.setDaemon(true);
+				remesher.start();
+			}
+		}
+	}
+
+	/**
+	 * Waits until all requested meshes were calculated, e.g. before a
+	 * script accesses the mesh after changing the threshold. Called by
+	 * getMesh() and the methods which read or release the mesh, so that
+	 * they do not work on the previous one.
+	 */
+	public void waitForMesh() {
+		Thread t;
+		synchronized(lock) {
+			t = remesher;
+		}
+		if(t == null || t == Thread.currentThread())
+			return;
+		boolean interrupted = false;
+		while(t.isAlive()) {
+			try {
+				t.join();
+			} catch(InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private void remeshPending() {
+		while(true) {
+			MeshKey key;
+			synchronized(lock) {
+				key = pending;
+				pending = null;
+				if(key == null) {
+					remesher = null;
+					return;
+				}
+				meshing = true;
+			}
+			List<Point3f> tri = null;
+			try {
+				tri = triangulator.getTriangles(c.getImage(),
+					key.threshold, key.channels,
+					key.resamplingF);
+			} catch(RuntimeException e) {
+				IJ.handleException(e);
+			}
+			boolean cancelled;
+			synchronized(lock) {
+				meshing = false;
+				// no more interrupts from here on
+				cancelled = Thread.interrupted();
+			}
+			if(tri == null || cancelled)
+				continue;
+			float[] coords = cache(key, tri);
+			synchronized(lock) {
+				if(key.equals(wanted))
+					setMesh(coords);
+			}
+		}
+	}
+
+	/**
+	 * Displays the given coordinates, which are shared with the cache;
+	 * the mesh copies them only if it is modified.
+	 */
+	private void setMesh(float[] coords) {
+		mesh.setMesh(new TupleBuffer(coords, true));
+	}
+
+	/**
+	 * Stores the given triangles in the cache and returns their
+	 * coordinates. The least recently used meshes are removed when
+	 * the cache exceeds UniverseSettings.meshCacheMB.
+	 */
+	private float[] cache(MeshKey key, List<Point3f> tri) {
+		float[] coords = new float[3 * tri.size()];
+		for(int i = 0; i < tri.size(); i++) {
+			Point3f p = tri.get(i);
+			coords[3 * i] = p.x;
+			coords[3 * i + 1] = p.y;
+			coords[3 * i + 2] = p.z;
+		}
+		long limit = UniverseSettings.meshCacheMB * (1L << 20);
+		long bytes = 4L * coords.length;
+		synchronized(lock) {
+			float[] old = cache.remove(key);
+			if(old != null)
+				cachedBytes -= 4L * old.length;
+			if(bytes > limit)
+				return coords;
+			Iterator<float[]> it = cache.values().iterator();
+			while(cachedBytes + bytes > limit && it.hasNext()) {
+				cachedBytes -= 4L * it.next().length;
+				it.remove();
+			}
+			cache.put(key, coords);
+			cachedBytes += bytes;
+		}
+		return coords;
+	}
+
+	/**
+	 * The parameters a mesh is calculated from.
+	 */
+	private static final class MeshKey {
+		final int threshold;
+		final int resamplingF;
+		final boolean[] channels;
+
+		MeshKey(ContentInstant c) {
+			threshold = c.getThreshold();
+			resamplingF = c.getResamplingFactor();
+			channels = c.getChannels().clone();
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof MeshKey))
+				return false;
+			MeshKey k = (MeshKey)o;
+			return threshold == k.threshold
+				&& resamplingF == k.resamplingF
+				&& Arrays.equals(channels, k.channels);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * (31 * threshold + resamplingF)
+				+ Arrays.hashCode(channels);
+		}
 	}
 
 	public void calculateMinMaxCenterPoint() {
@@ -101,6 +295,7 @@ public class MeshGroup extends ContentNode {
 	}
 
 	public float getVolume() {
+		waitForMesh();
 		if(mesh == null)
 			return -1;
 		return mesh.getVolume();
@@ -128,10 +323,12 @@ public class MeshGroup extends ContentNode {
 	}
 
 	public void clearDisplayedData() {
+		waitForMesh();
 		mesh.clearDisplayedData();
 	}
 
 	public void swapDisplayedData(String path, String name) {
+		waitForMesh();
 		mesh.swapDisplayedData(path, name);
 	}
 }
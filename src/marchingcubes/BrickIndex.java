@@ -0,0 +1,157 @@
+package marchingcubes;
+
+import ij3d.ImgLibVolume;
+import ij3d.Volume;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Minimum and maximum intensity of bricks of marching cubes in a Volume.
+ *
+ * MCCube scans the cubes with -1 <= x <= w, -1 <= y <= h, -1 <= z <= d,
+ * assuming zero outside the volume. A brick of n^3 cubes spans (n + 1)^3
+ * voxels; a cube can only produce triangles if its brick contains
+ * values both above and not above the threshold. For sparse volumes
+ * this allows to skip most of the cubes, and the index is independent
+ * of the threshold, so it can be reused when the threshold changes.
+ *
+ * The index must be rebuilt if the data of the volume changes.
+ */
+public final class BrickIndex {
+
+	public static final int DEFAULT_BRICK_SIZE = 8;
+
+	private final Volume volume;
+	private final int w, h, d;
+	private final int brickSize;
+	private final int nx, ny, nz;
+	private final int[] min, max;
+
+	/**
+	 * Creates the index for the given volume with the default brick
+	 * size, using a single thread.
+	 */
+	public BrickIndex(Volume volume) {
+		this(volume, DEFAULT_BRICK_SIZE, 1);
+	}
+
+	/**
+	 * Creates the index for the given volume, using up to nThreads
+	 * threads. The volume is read via Volume.load(), so it should be
+	 * configured (e.g. setAverage()) as it will be for meshing.
+	 * ImgLibVolumes are always indexed on the calling thread.
+	 */
+	public BrickIndex(Volume volume, int brickSize, int nThreads) {
+		if(brickSize < 1)
+			throw new IllegalArgumentException(
+				"Brick size must be positive");
+		this.volume = volume;
+		this.w = volume.xDim;
+		this.h = volume.yDim;
+		this.d = volume.zDim;
+		this.brickSize = brickSize;
+		// cubes range from -1 to w inclusive
+		this.nx = (w + 2 + brickSize - 1) / brickSize;
+		this.ny = (h + 2 + brickSize - 1) / brickSize;
+		this.nz = (d + 2 + brickSize - 1) / brickSize;
+		this.min = new int[nx * ny * nz];
+		this.max = new int[nx * ny * nz];
+
+		if(nThreads < 2 || nz < 2 || volume instanceof ImgLibVolume) {
+			for(int bz = 0; bz < nz; bz++)
+				index(bz);
+			return;
+		}
+		ForkJoinPool pool = new ForkJoinPool(nThreads);
+		try {
+			LayerTask[] tasks = new LayerTask[nz];
+			for(int bz = 0; bz < nz; bz++) {
+				tasks[bz] = new LayerTask(bz);
+				pool.execute(tasks[bz]);
+			}
+			for(int bz = 0; bz < nz; bz++)
+				tasks[bz].join();
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	public Volume getVolume() {
+		return volume;
+	}
+
+	public int getBrickSize() {
+		return brickSize;
+	}
+
+	/**
+	 * Returns whether the brick containing the cube at (x, y, z) may
+	 * produce triangles for the given threshold, i.e. whether it
+	 * contains values <= threshold and values > threshold.
+	 */
+	public boolean intersects(int x, int y, int z, int threshold) {
+		int i = brick(x) + nx * (brick(y) + ny * brick(z));
+		return min[i] <= threshold && max[i] > threshold;
+	}
+
+	/**
+	 * Returns the first cube coordinate after the given one which lies
+	 * in the next brick (along any axis).
+	 */
+	public int nextBrick(int c) {
+		return (brick(c) + 1) * brickSize - 1;
+	}
+
+	private int brick(int c) {
+		return (c + 1) / brickSize;
+	}
+
+	/** Calculates minimum and maximum of all bricks of a z layer. */
+	private void index(int bz) {
+		int z0 = bz * brickSize - 1, z1 = z0 + brickSize;
+		for(int by = 0; by < ny; by++) {
+			int y0 = by * brickSize - 1, y1 = y0 + brickSize;
+			for(int bx = 0; bx < nx; bx++) {
+				int x0 = bx * brickSize - 1, x1 = x0 + brickSize;
+				int i = bx + nx * (by + ny * bz);
+				// voxels outside the volume are zero
+				boolean outside = x0 < 0 || y0 < 0 || z0 < 0
+					|| x1 >= w || y1 >= h || z1 >= d;
+				int mi = outside ? 0 : Integer.MAX_VALUE;
+				int ma = outside ? 0 : Integer.MIN_VALUE;
+				int xe = Math.min(x1, w - 1);
+				int ye = Math.min(y1, h - 1);
+				int ze = Math.min(z1, d - 1);
+				for(int z = Math.max(z0, 0); z <= ze; z++) {
+					for(int y = Math.max(y0, 0); y <= ye; y++) {
+						for(int x = Math.max(x0, 0); x <= xe; x++) {
+							int v = volume.load(x, y, z);
+							if(v < mi)
+								mi = v;
+							if(v > ma)
+								ma = v;
+						}
+					}
+				}
+				min[i] = mi;
+				max[i] = ma;
+			}
+		}
+	}
+
+	private final class LayerTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final int bz;
+
+		LayerTask(int bz) {
+			this.bz = bz;
+		}
+
+		@Override
+		protected void compute() {
+			index(bz);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package marchingcubes;
+
+import javax.vecmath.Point3f;
+
+/**
+ * A triangle mesh with shared vertices, as created by
+ * MCCube.getIndexedTriangles().
+ *
+ * The vertex coordinates are stored interleaved (x, y, z) in a float
+ * array, three subsequent entries of the face array specify the vertex
+ * indices of one triangle.
+ */
+public class IndexedMesh {
+
+	/** The vertex coordinates, x, y and z interleaved. */
+	public final float[] vertices;
+
+	/** The vertex indices, three per triangle. */
+	public final int[] faces;
+
+	public IndexedMesh(float[] vertices, int[] faces) {
+		this.vertices = vertices;
+		this.faces = faces;
+	}
+
+	public int getVertexCount() {
+		return vertices.length / 3;
+	}
+
+	public int getTriangleCount() {
+		return faces.length / 3;
+	}
+
+	/**
+	 * Returns the vertices as Point3f array.
+	 */
+	public Point3f[] getVertexPoints() {
+		Point3f[] p = new Point3f[getVertexCount()];
+		for(int i = 0, j = 0; i < p.length; i++, j += 3)
+			p[i] = new Point3f(vertices[j],
+				vertices[j + 1], vertices[j + 2]);
+		return p;
+	}
+}
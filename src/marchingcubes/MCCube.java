@@ -10,8 +10,12 @@ import java.awt.Shape;
 import java.awt.geom.Area;
 import java.awt.geom.PathIterator;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.vecmath.Point3f;
 
@@ -148,6 +152,29 @@ public final class MCCube {
 		}
 	}
 
+	/**
+	 * Adds the triangles of this cube, which is located at (x, y) in
+	 * the current slice pair of the given slab, as vertex indices.
+	 * Vertices on edges which were already visited by a neighbouring
+	 * cube are reused.
+	 */
+	private void getIndexedTriangles(IndexedSlab slab, int x, int y,
+			final Carrier car) {
+		int offset = caseNumber(car) * 15;
+		if(faces[offset] == -1)
+			return;
+		computeEdges(car);
+		for(int index = 0; index < 5; index++){
+			if (faces[offset] != -1) {
+				slab.addFace(
+					slab.vertex(faces[offset+0], x, y, e),
+					slab.vertex(faces[offset+1], x, y, e),
+					slab.vertex(faces[offset+2], x, y, e));
+			}
+			offset += 3;
+		}
+	}
+
 	/**
 	 * computes the case number of the cube
 	 * @return the number of the case corresponding to the cube
@@ -171,12 +198,63 @@ public final class MCCube {
 		Volume volume;
 		float threshold;
 
+		// optional, to skip bricks without triangles
+		BrickIndex index;
+		int intThreshold;
+
+		// the thread which requested the triangles
+		Thread caller;
+
+		/**
+		 * Returns whether the calling thread was interrupted, in which
+		 * case meshing stops early.
+		 */
+		final boolean cancelled() {
+			return caller.isInterrupted();
+		}
+
 		final int intensity(final Point3f p) {
 			if(p.x < 0 || p.y < 0 || p.z < 0
 				|| p.x >= w || p.y >= h || p.z >= d)
 				return 0;
 			return volume.load((int)p.x, (int)p.y, (int)p.z);
 		}
+
+		/**
+		 * Returns the end (exclusive) of the run of cubes along y
+		 * which starts at y and lies in a single brick.
+		 */
+		final int runEnd(final int y) {
+			if(index == null)
+				return h + 1;
+			return Math.min(h + 1, index.nextBrick(y));
+		}
+
+		/**
+		 * Returns whether the brick of the cube at (x, y, z) does
+		 * not produce any triangles.
+		 */
+		final boolean skip(final int x, final int y, final int z) {
+			return index != null &&
+				!index.intersects(x, y, z, intThreshold);
+		}
+	}
+
+	private static Carrier createCarrier(Volume volume, int thresh,
+			BrickIndex index) {
+		if(index != null && index.getVolume() != volume)
+			throw new IllegalArgumentException(
+				"The index was not created for this volume");
+		Carrier car = new Carrier();
+		car.w = volume.xDim;
+		car.h = volume.yDim;
+		car.d = volume.zDim;
+		car.threshold = thresh + 0.5f;
+		car.intThreshold = thresh;
+		car.volume = volume;
+		car.index = index;
+		car.caller = Thread.currentThread();
+		return car;
 	}
 
 	/**
@@ -187,28 +265,52 @@ public final class MCCube {
 	 * @return
 	 */
 	public static final List<Point3f> getTriangles(Volume volume, int thresh){
+		return getTriangles(volume, thresh, 1);
+	}
+
+	/**
+	 * Create a list of triangles from the specified image data and the
+	 * given isovalue, using up to nThreads threads.
+	 *
+	 * The z range is split into slabs, which are meshed concurrently,
+	 * each with its own MCCube. The triangles of the slabs are
+	 * concatenated in z order, so the result is identical to the one
+	 * obtained with a single thread.
+	 *
+	 * ImgLibVolumes are not safe for concurrent reading and are
+	 * always meshed on the calling thread.
+	 *
+	 * If the calling thread is interrupted, meshing stops after the
+	 * current slice and the returned triangles are incomplete; callers
+	 * which interrupt need to check Thread.interrupted() afterwards.
+	 * @param volume
+	 * @param thresh
+	 * @param nThreads the number of threads to use.
+	 * @return
+	 */
+	public static final List<Point3f> getTriangles(Volume volume,
+			int thresh, int nThreads) {
+		return getTriangles(volume, thresh, nThreads, null);
+	}
+
+	/**
+	 * Same as getTriangles(Volume, int, int), but skips all bricks
+	 * of the given index which cannot contain triangles. The result is
+	 * the same, but only cubes close to the surface are visited.
+	 * @param index a BrickIndex of the volume, or null.
+	 */
+	public static final List<Point3f> getTriangles(Volume volume,
+			int thresh, int nThreads, BrickIndex index) {
 		List<Point3f> tri = new ArrayList<Point3f>();
-		final Carrier car = new Carrier();
-		car.w = volume.xDim;
-		car.h = volume.yDim;
-		car.d = volume.zDim;
-		car.threshold = thresh + 0.5f;
-		car.volume = volume;
+		final Carrier car = createCarrier(volume, thresh, index);
 
 		if (volume instanceof ImgLibVolume && ((ImgLibVolume)volume).getImage().getContainer() instanceof ShapeList) {
 			getShapeListImageTriangles((ImgLibVolume)volume, car, tri);
+		} else if (nThreads < 2 || volume instanceof ImgLibVolume) {
+			getSlabTriangles(car, -1, car.d + 1, tri,
+				new AtomicInteger(-1));
 		} else {
-			MCCube cube = new MCCube();
-			for(int z = -1; z < car.d+1; z+=1){
-				for(int x = -1; x < car.w+1; x+=1){
-					for(int y = -1; y < car.h+1; y+=1){
-						cube.init(x, y, z);
-						cube.computeEdges(car);
-						cube.getTriangles(tri, car);
-					}
-				}
-				IJ.showProgress(z, car.d-2);
-			}
+			tri = getTrianglesParallel(car, nThreads);
 		}
 
 		// convert pixel coordinates
@@ -221,6 +323,442 @@ public final class MCCube {
 		return tri;
 	}
 
+	/**
+	 * Scans all cubes with zStart <= z < zEnd (including one pixel
+	 * padding in x and y) and adds their triangles to the given list.
+	 */
+	private static final void getSlabTriangles(final Carrier car,
+			final int zStart, final int zEnd,
+			final List<Point3f> tri, final AtomicInteger progress) {
+		MCCube cube = new MCCube();
+		for(int z = zStart; z < zEnd; z+=1){
+			if(car.cancelled())
+				return;
+			for(int x = -1; x < car.w+1; x+=1){
+				for(int y = -1; y < car.h+1; ){
+					int yEnd = car.runEnd(y);
+					if(car.skip(x, y, z)) {
+						y = yEnd;
+						continue;
+					}
+					for(; y < yEnd; y++) {
+						cube.init(x, y, z);
+						cube.computeEdges(car);
+						cube.getTriangles(tri, car);
+					}
+				}
+			}
+			IJ.showProgress(progress.getAndIncrement(), car.d-2);
+		}
+	}
+
+	/**
+	 * The number of slabs per thread; more than one slab per thread
+	 * balances the load between empty and densely populated regions.
+	 */
+	private static final int SLABS_PER_THREAD = 4;
+
+	/**
+	 * Splits the z range into slabs, meshes them on a fork-join pool
+	 * and concatenates the resulting triangles in z order.
+	 */
+	private static final List<Point3f> getTrianglesParallel(
+			final Carrier car, final int nThreads) {
+		final int zMin = -1, zMax = car.d + 1;
+		final int nSlabs = Math.min(zMax - zMin,
+				nThreads * SLABS_PER_THREAD);
+		final AtomicInteger progress = new AtomicInteger(-1);
+		final SlabTask[] slabs = new SlabTask[nSlabs];
+		for(int i = 0; i < nSlabs; i++) {
+			int zStart = zMin + (zMax - zMin) * i / nSlabs;
+			int zEnd = zMin + (zMax - zMin) * (i + 1) / nSlabs;
+			slabs[i] = new SlabTask(car, zStart, zEnd, progress);
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(nThreads);
+		try {
+			for(int i = 0; i < nSlabs; i++)
+				pool.execute(slabs[i]);
+			int n = 0;
+			for(int i = 0; i < nSlabs; i++)
+				n += slabs[i].join().size();
+			List<Point3f> tri = new ArrayList<Point3f>(n);
+			for(int i = 0; i < nSlabs; i++)
+				tri.addAll(slabs[i].getRawResult());
+			return tri;
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Meshes a range of z slices. The Carrier is only read and
+	 * therefore shared between the tasks.
+	 */
+	private static final class SlabTask
+			extends RecursiveTask<List<Point3f>> {
+		private static final long serialVersionUID = 1L;
+
+		private final Carrier car;
+		private final int zStart, zEnd;
+		private final AtomicInteger progress;
+
+		SlabTask(Carrier car, int zStart, int zEnd,
+				AtomicInteger progress) {
+			this.car = car;
+			this.zStart = zStart;
+			this.zEnd = zEnd;
+			this.progress = progress;
+		}
+
+		@Override
+		protected List<Point3f> compute() {
+			List<Point3f> tri = new ArrayList<Point3f>();
+			getSlabTriangles(car, zStart, zEnd, tri, progress);
+			return tri;
+		}
+	}
+
+	/**
+	 * Create a mesh with shared vertices from the specified image data
+	 * and the given isovalue, using up to nThreads threads.
+	 *
+	 * The triangles and their vertex positions are the same as the ones
+	 * returned by getTriangles(), but each vertex is created only once:
+	 * the vertex indices of the cube edges are cached for the current
+	 * pair of slices.
+	 *
+	 * Slabs of slices are meshed concurrently, as in getTriangles(),
+	 * and the vertices on the boundary planes between slabs are merged
+	 * when the slabs are stitched together, so the result does not
+	 * depend on the number of threads.
+	 * @param volume
+	 * @param thresh
+	 * @param nThreads the number of threads to use.
+	 * @return
+	 */
+	public static final IndexedMesh getIndexedTriangles(Volume volume,
+			int thresh, int nThreads) {
+		return getIndexedTriangles(volume, thresh, nThreads, null);
+	}
+
+	/**
+	 * Same as getIndexedTriangles(Volume, int, int), but skips all
+	 * bricks of the given index which cannot contain triangles.
+	 * @param index a BrickIndex of the volume, or null.
+	 */
+	public static final IndexedMesh getIndexedTriangles(Volume volume,
+			int thresh, int nThreads, BrickIndex index) {
+		final Carrier car = createCarrier(volume, thresh, index);
+
+		final int zMin = -1, zMax = car.d + 1;
+		final AtomicInteger progress = new AtomicInteger(-1);
+		IndexedSlab[] slabs;
+		if(nThreads < 2 || volume instanceof ImgLibVolume) {
+			slabs = new IndexedSlab[] {
+				new IndexedSlab(car, zMin, zMax) };
+			slabs[0].mesh(progress);
+		} else {
+			final int nSlabs = Math.min(zMax - zMin,
+					nThreads * SLABS_PER_THREAD);
+			final IndexedSlabTask[] tasks =
+					new IndexedSlabTask[nSlabs];
+			for(int i = 0; i < nSlabs; i++) {
+				int zStart = zMin + (zMax - zMin) * i / nSlabs;
+				int zEnd = zMin + (zMax - zMin) * (i + 1) / nSlabs;
+				tasks[i] = new IndexedSlabTask(new IndexedSlab(
+					car, zStart, zEnd), progress);
+			}
+			ForkJoinPool pool = new ForkJoinPool(nThreads);
+			try {
+				for(int i = 0; i < nSlabs; i++)
+					pool.execute(tasks[i]);
+				slabs = new IndexedSlab[nSlabs];
+				for(int i = 0; i < nSlabs; i++)
+					slabs[i] = tasks[i].join();
+			} finally {
+				pool.shutdown();
+			}
+		}
+
+		IndexedMesh mesh = stitch(slabs);
+
+		// convert pixel coordinates
+		float[] v = mesh.vertices;
+		for(int i = 0; i < v.length; i += 3) {
+			v[i]     = (float) (v[i]     * volume.pw + volume.minCoord.x);
+			v[i + 1] = (float) (v[i + 1] * volume.ph + volume.minCoord.y);
+			v[i + 2] = (float) (v[i + 2] * volume.pd + volume.minCoord.z);
+		}
+		return mesh;
+	}
+
+	/**
+	 * Concatenates the given slabs in z order. Vertices on the plane
+	 * between two subsequent slabs, which were created by both of them,
+	 * are merged.
+	 */
+	private static final IndexedMesh stitch(final IndexedSlab[] slabs) {
+		int nVertices = 0, nFaces = 0;
+		for(int i = 0; i < slabs.length; i++) {
+			nVertices += slabs[i].nVertices;
+			nFaces += slabs[i].nFaces;
+		}
+		float[] vertices = new float[3 * nVertices];
+		int[] faces = new int[nFaces];
+
+		int vIndex = 0, fIndex = 0;
+		IndexedSlab prev = null;
+		for(int s = 0; s < slabs.length; s++) {
+			IndexedSlab slab = slabs[s];
+			int[] global = new int[slab.nVertices];
+			Arrays.fill(global, -1);
+			if(prev != null) {
+				mergeShared(prev.xHigh, slab.xFirst,
+						prev.global, global);
+				mergeShared(prev.yHigh, slab.yFirst,
+						prev.global, global);
+			}
+			for(int v = 0; v < slab.nVertices; v++) {
+				if(global[v] != -1)
+					continue;
+				System.arraycopy(slab.vertices, 3 * v,
+						vertices, 3 * vIndex, 3);
+				global[v] = vIndex++;
+			}
+			for(int f = 0; f < slab.nFaces; f++)
+				faces[fIndex++] = global[slab.faces[f]];
+
+			// the upper plane and the mapping is all that is
+			// needed from the previous slab
+			slab.global = global;
+			slab.vertices = null;
+			slab.faces = null;
+			if(prev != null)
+				prev.global = null;
+			prev = slab;
+		}
+		if(vIndex < nVertices)
+			vertices = Arrays.copyOf(vertices, 3 * vIndex);
+		return new IndexedMesh(vertices, faces);
+	}
+
+	/**
+	 * Maps the vertices of the lower slab's first slice to the global
+	 * indices of the corresponding vertices of the upper slab's last
+	 * slice. Both planes are given as sorted (grid index, vertex index)
+	 * pairs, see IndexedSlab.compact().
+	 */
+	private static final void mergeShared(int[] upper, int[] lower,
+			int[] upperGlobal, int[] lowerGlobal) {
+		int u = 0, l = 0;
+		while(u < upper.length && l < lower.length) {
+			if(upper[u] < lower[l]) {
+				u += 2;
+			} else if(upper[u] > lower[l]) {
+				l += 2;
+			} else {
+				lowerGlobal[lower[l + 1]] =
+					upperGlobal[upper[u + 1]];
+				u += 2;
+				l += 2;
+			}
+		}
+	}
+
+	/** For each cube edge, the direction: 0 = x, 1 = y, 2 = z */
+	private static final int[] EDGE_DIR =
+		{0, 1, 0, 1, 0, 1, 0, 1, 2, 2, 2, 2};
+
+	/** For each cube edge, whether it lies in the upper slice */
+	private static final boolean[] EDGE_UPPER =
+		{false, false, false, false, true, true, true, true,
+		 false, false, false, false};
+
+	/** For each cube edge, the x offset of its lower end point */
+	private static final int[] EDGE_DX =
+		{0, 1, 0, 0, 0, 1, 0, 0, 0, 1, 0, 1};
+
+	/** For each cube edge, the y offset of its lower end point */
+	private static final int[] EDGE_DY =
+		{0, 0, 1, 0, 0, 0, 1, 0, 0, 0, 1, 1};
+
+	/**
+	 * Holds the vertices and faces of a range of z slices, together
+	 * with the vertex indices of the cube edges of the current slice
+	 * pair. The edge caches are indexed by the position of the edge's
+	 * lower end point in the grid, which is padded by one pixel on
+	 * the lower and two pixels on the upper side.
+	 */
+	private static final class IndexedSlab {
+		final Carrier car;
+		final int zStart, zEnd;
+		final int gw, gh;
+
+		// edges along x and y in the lower and upper slice,
+		// and edges along z in between
+		int[] xLow, yLow, xHigh, yHigh, zMid;
+
+		// edges along x and y of the first slice, for stitching;
+		// xHigh and yHigh are kept as well after meshing
+		int[] xFirst, yFirst;
+
+		float[] vertices = new float[3 * 1024];
+		int nVertices = 0;
+
+		int[] faces = new int[3 * 1024];
+		int nFaces = 0;
+
+		// the indices of the vertices in the stitched mesh
+		int[] global;
+
+		IndexedSlab(Carrier car, int zStart, int zEnd) {
+			this.car = car;
+			this.zStart = zStart;
+			this.zEnd = zEnd;
+			this.gw = car.w + 3;
+			this.gh = car.h + 3;
+		}
+
+		void mesh(final AtomicInteger progress) {
+			int n = gw * gh;
+			xLow = newCache(n); yLow = newCache(n);
+			xHigh = newCache(n); yHigh = newCache(n);
+			zMid = newCache(n);
+
+			MCCube cube = new MCCube();
+			for(int z = zStart; z < zEnd; z++) {
+				if(car.cancelled())
+					break;
+				if(z > zStart)
+					nextSlice();
+				for(int x = -1; x < car.w+1; x+=1){
+					for(int y = -1; y < car.h+1; ){
+						int yEnd = car.runEnd(y);
+						if(car.skip(x, y, z)) {
+							y = yEnd;
+							continue;
+						}
+						for(; y < yEnd; y++) {
+							cube.init(x, y, z);
+							cube.getIndexedTriangles(
+								this, x, y, car);
+						}
+					}
+				}
+				IJ.showProgress(progress.getAndIncrement(),
+						car.d-2);
+			}
+			if(xFirst == null) {
+				xFirst = xLow;
+				yFirst = yLow;
+			}
+			xLow = yLow = zMid = null;
+			// only keep the occupied entries of the boundary
+			// planes, the full grids would add up to a lot of
+			// memory for many slabs
+			xFirst = compact(xFirst); yFirst = compact(yFirst);
+			xHigh = compact(xHigh); yHigh = compact(yHigh);
+		}
+
+		/**
+		 * Returns the occupied entries of the given edge cache as
+		 * (grid index, vertex index) pairs, ordered by grid index.
+		 */
+		private static int[] compact(int[] cache) {
+			int n = 0;
+			for(int i = 0; i < cache.length; i++)
+				if(cache[i] != -1)
+					n++;
+			int[] c = new int[2 * n];
+			for(int i = 0, j = 0; i < cache.length; i++) {
+				if(cache[i] != -1) {
+					c[j++] = i;
+					c[j++] = cache[i];
+				}
+			}
+			return c;
+		}
+
+		/** Moves the upper slice down and clears the caches. */
+		private void nextSlice() {
+			int[] tmpX = xLow, tmpY = yLow;
+			if(xFirst == null) {
+				xFirst = xLow;
+				yFirst = yLow;
+				tmpX = newCache(xLow.length);
+				tmpY = newCache(yLow.length);
+			} else {
+				Arrays.fill(tmpX, -1);
+				Arrays.fill(tmpY, -1);
+			}
+			xLow = xHigh;
+			yLow = yHigh;
+			xHigh = tmpX;
+			yHigh = tmpY;
+			Arrays.fill(zMid, -1);
+		}
+
+		private static int[] newCache(int n) {
+			int[] c = new int[n];
+			Arrays.fill(c, -1);
+			return c;
+		}
+
+		/**
+		 * Returns the index of the vertex on the given edge of the
+		 * cube at (x, y), creating it from the interpolated edge
+		 * point if necessary.
+		 */
+		int vertex(int edge, int x, int y, Point3f[] e) {
+			int[] cache;
+			switch(EDGE_DIR[edge]) {
+				case 0: cache = EDGE_UPPER[edge] ? xHigh : xLow; break;
+				case 1: cache = EDGE_UPPER[edge] ? yHigh : yLow; break;
+				default: cache = zMid; break;
+			}
+			int i = (y + 1 + EDGE_DY[edge]) * gw + x + 1 + EDGE_DX[edge];
+			if(cache[i] == -1) {
+				if(3 * nVertices + 3 > vertices.length)
+					vertices = Arrays.copyOf(vertices,
+						2 * vertices.length);
+				Point3f p = e[edge];
+				vertices[3 * nVertices]     = p.x;
+				vertices[3 * nVertices + 1] = p.y;
+				vertices[3 * nVertices + 2] = p.z;
+				cache[i] = nVertices++;
+			}
+			return cache[i];
+		}
+
+		void addFace(int v1, int v2, int v3) {
+			if(nFaces + 3 > faces.length)
+				faces = Arrays.copyOf(faces, 2 * faces.length);
+			faces[nFaces++] = v1;
+			faces[nFaces++] = v2;
+			faces[nFaces++] = v3;
+		}
+	}
+
+	private static final class IndexedSlabTask
+			extends RecursiveTask<IndexedSlab> {
+		private static final long serialVersionUID = 1L;
+
+		private final IndexedSlab slab;
+		private final AtomicInteger progress;
+
+		IndexedSlabTask(IndexedSlab slab, AtomicInteger progress) {
+			this.slab = slab;
+			this.progress = progress;
+		}
+
+		@Override
+		protected IndexedSlab compute() {
+			slab.mesh(progress);
+			return slab;
+		}
+	}
+
 	/** Identical to getTriangles, but iterates only the minimal necessary bounding box, by asking the shapes objects. */
 	private static final void getShapeListImageTriangles(final ImgLibVolume volume, final Carrier car, final List<Point3f> tri) {
 		final ShapeList sli = (ShapeList) volume.getImage().getContainer();
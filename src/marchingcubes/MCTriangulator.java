@@ -1,5 +1,6 @@
 package marchingcubes;
 
+import ij.ImageListener;
 import ij.ImagePlus;
 import ij.ImageStack;
 import ij.measure.Calibration;
@@ -7,9 +8,13 @@ import ij.process.ByteProcessor;
 import ij.process.ColorProcessor;
 import ij.process.ImageProcessor;
 import ij3d.ImgLibVolume;
+import ij3d.UniverseSettings;
 import ij3d.Volume;
 import isosurface.Triangulator;
 
+import java.awt.EventQueue;
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
 import java.util.List;
 
 import javax.vecmath.Point3f;
@@ -20,9 +25,208 @@ import vib.NaiveResampler;
 
 public class MCTriangulator implements Triangulator {
 
-	public List getTriangles(ImagePlus image, int threshold, 
+	private int nThreads;
+
+	/*
+	 * The volume of the last call and its brick index, which is
+	 * created when the same volume is meshed again, e.g. at a
+	 * different threshold. Volumes of images are only kept while the
+	 * image is displayed, since ImageJ notifies the volumeListener of
+	 * modifications of displayed images only.
+	 */
+	private Volume volume;
+	private ImagePlus volumeImage;
+	private ImageStack volumeStack;
+	private boolean[] volumeChannels;
+	private int volumeResamplingF;
+	private boolean volumeMeshed;
+	private BrickIndex brickIndex;
+	private VolumeListener volumeListener;
+	private volatile boolean volumeModified;
+
+	/**
+	 * Creates a triangulator which uses the number of threads
+	 * specified in UniverseSettings.meshingThreads.
+	 */
+	public MCTriangulator() {
+		this(UniverseSettings.meshingThreads);
+	}
+
+	/**
+	 * Creates a triangulator which uses the specified number of
+	 * threads for the marching cubes.
+	 */
+	public MCTriangulator(int nThreads) {
+		setNumThreads(nThreads);
+	}
+
+	public void setNumThreads(int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	public int getNumThreads() {
+		return nThreads;
+	}
+
+	public List<Point3f> getTriangles(ImagePlus image, int threshold, 
 					boolean[] channels, int resamplingF) {
 
+		Volume volume = getVolume(image, channels, resamplingF);
+
+		// get triangles
+		List<Point3f> l = MCCube.getTriangles(volume, threshold, nThreads,
+				getCachedBrickIndex(volume));
+		return l;
+	}
+
+	/**
+	 * Same as getTriangles(), but returns a mesh with shared vertices,
+	 * which can be displayed as a CustomIndexedTriangleMesh.
+	 */
+	public IndexedMesh getIndexedTriangles(ImagePlus image, int threshold,
+					boolean[] channels, int resamplingF) {
+
+		Volume volume = getVolume(image, channels, resamplingF);
+		return MCCube.getIndexedTriangles(volume, threshold, nThreads,
+				getCachedBrickIndex(volume));
+	}
+
+	/**
+	 * Calculates the triangles of an existing volume, e.g. one backed
+	 * by a MappedImage. The channels of the volume are averaged.
+	 */
+	public List<Point3f> getTriangles(Volume volume, int threshold) {
+		volume.setAverage(true);
+		return MCCube.getTriangles(volume, threshold, nThreads,
+				getBrickIndex(volume));
+	}
+
+	/**
+	 * Same as getTriangles(Volume, int), but returns a mesh with shared
+	 * vertices.
+	 */
+	public IndexedMesh getIndexedTriangles(Volume volume, int threshold) {
+		volume.setAverage(true);
+		return MCCube.getIndexedTriangles(volume, threshold, nThreads,
+				getBrickIndex(volume));
+	}
+
+	/**
+	 * Forgets the volume of the last call and its brick index. Must be
+	 * called if the pixels of a volume were modified in place; changes
+	 * of images are detected.
+	 */
+	public void clearCache() {
+		if(volumeListener != null)
+			ImagePlus.removeImageListener(volumeListener);
+		volumeListener = null;
+		volumeModified = false;
+		volume = null;
+		volumeImage = null;
+		volumeStack = null;
+		volumeChannels = null;
+		volumeMeshed = false;
+		brickIndex = null;
+	}
+
+	/**
+	 * Returns the volume of the last call if it was created from the
+	 * same image, stack, channels and resampling factor and the image
+	 * was not modified since, or creates a new one.
+	 */
+	private Volume getVolume(ImagePlus image, boolean[] channels,
+			int resamplingF) {
+		if(volume != null && image == volumeImage
+				&& !volumeModified
+				&& image.getWindow() != null
+				&& image.getStack() == volumeStack
+				&& Arrays.equals(channels, volumeChannels)
+				&& resamplingF == volumeResamplingF)
+			return volume;
+		clearCache();
+		volume = createVolume(image, channels, resamplingF);
+		if(image.getWindow() == null) {
+			// modifications would go unnoticed
+			Volume v = volume;
+			volume = null;
+			return v;
+		}
+		volumeListener = new VolumeListener(this, image);
+		ImagePlus.addImageListener(volumeListener);
+		volumeImage = image;
+		volumeStack = image.getStack();
+		volumeChannels = channels.clone();
+		volumeResamplingF = resamplingF;
+		return volume;
+	}
+
+	/**
+	 * Returns the brick index of the given volume. Building the index
+	 * takes one pass over the volume, which only pays off if a volume
+	 * is meshed more than once, so null is returned for a volume which
+	 * is meshed for the first time.
+	 */
+	private BrickIndex getBrickIndex(Volume volume) {
+		if(volume != this.volume) {
+			clearCache();
+			this.volume = volume;
+		}
+		if(!volumeMeshed) {
+			volumeMeshed = true;
+			return null;
+		}
+		if(brickIndex == null)
+			brickIndex = new BrickIndex(volume,
+				BrickIndex.DEFAULT_BRICK_SIZE, nThreads);
+		return brickIndex;
+	}
+
+	/**
+	 * Like getBrickIndex(), but returns null for volumes of images which
+	 * are not cached by getVolume().
+	 */
+	private BrickIndex getCachedBrickIndex(Volume volume) {
+		return volume == this.volume ? getBrickIndex(volume) : null;
+	}
+
+	/**
+	 * Marks the cached volume as modified when its image is updated or
+	 * closed. Refers to the triangulator weakly, and removes itself once
+	 * the triangulator was collected.
+	 */
+	private static class VolumeListener implements ImageListener {
+		private final WeakReference<MCTriangulator> triangulator;
+		private final WeakReference<ImagePlus> image;
+
+		VolumeListener(MCTriangulator triangulator, ImagePlus image) {
+			this.triangulator =
+				new WeakReference<MCTriangulator>(triangulator);
+			this.image = new WeakReference<ImagePlus>(image);
+		}
+
+		public void imageOpened(ImagePlus imp) {}
+
+		public void imageClosed(ImagePlus imp) {
+			imageUpdated(imp);
+		}
+
+		public void imageUpdated(ImagePlus imp) {
+			MCTriangulator t = triangulator.get();
+			if(t == null)
+				// not while ImageJ iterates over the listeners
+				EventQueue.invokeLater(new Runnable() {
+					public void run() {
+						ImagePlus.removeImageListener(
+							VolumeListener.this);
+					}
+				});
+			else if(imp == image.get())
+				t.volumeModified = true;
+		}
+	}
+
+	private static Volume createVolume(ImagePlus image,
+				boolean[] channels, int resamplingF) {
 		if(resamplingF != 1)
 			image = NaiveResampler.resample(image, resamplingF);
 		// There is no need to zero pad any more. MCCube automatically
@@ -32,10 +236,7 @@ public class MCTriangulator implements Triangulator {
 		// create Volume
 		Volume volume = new Volume(image, channels);
 		volume.setAverage(true);
-
-		// get triangles
-		List l = MCCube.getTriangles(volume, threshold);
-		return l;
+		return volume;
 	}
 
 	/**
@@ -44,7 +245,8 @@ public class MCTriangulator implements Triangulator {
 	 * @param origin The translation of the origin, in 3D.
 	 */
 	public<T extends RealType<T>> List<Point3f> getTriangles(Image<T> img, int threshold, float[] origin) throws Exception {
-		return MCCube.getTriangles(new ImgLibVolume(img, origin), threshold);
+		return MCCube.getTriangles(new ImgLibVolume(img, origin),
+				threshold, nThreads);
 	}
 
 	static public void zeroPad(final ImagePlus imp) {
@@ -0,0 +1,199 @@
+package octree;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Caches the slices of recently displayed bricks of a VolumeOctree, up to
+ * a given number of bytes, and prefetches bricks which are likely to be
+ * displayed next with a small pool of I/O threads. Bricks are identified
+ * as in BrickStore, e.g. "z/0_0_0_4".
+ *
+ * The least recently used bricks are evicted first. The images of a
+ * brick are never modified once loaded, so evicted bricks may still be
+ * displayed safely.
+ */
+class BrickCache {
+
+	private static final int SIZE = VolumeOctree.SIZE;
+	private static final int BRICK_BYTES = SIZE * SIZE * SIZE;
+	private static final int IO_THREADS = 2;
+
+	private final BrickStore store;
+	private final long maxBytes;
+	private long bytes = 0;
+
+	/** The cached bricks, the least recently used one first */
+	private final LinkedHashMap<String, BufferedImage[]> cache =
+		new LinkedHashMap<String, BufferedImage[]>(16, 0.75f, true);
+
+	/** The bricks which are queued or being read by the I/O threads */
+	private final Map<String, Load> loading = new HashMap<String, Load>();
+
+	private final ThreadPoolExecutor pool;
+
+	/**
+	 * @param store the store to read the bricks from.
+	 * @param maxBytes the maximum number of bytes of cached slices.
+	 */
+	public BrickCache(BrickStore store, long maxBytes) {
+		this.store = store;
+		this.maxBytes = maxBytes;
+		pool = new ThreadPoolExecutor(IO_THREADS, IO_THREADS,
+			10, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(),
+			new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "Octree brick loader");
+					t.setDaemon(true);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}
+			});
+		pool.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Returns the slices of the given brick, reading them if they are
+	 * neither cached nor being prefetched.
+	 */
+	public BufferedImage[] get(String brick) throws IOException {
+		synchronized(this) {
+			BufferedImage[] images = cache.get(brick);
+			if(images != null)
+				return images;
+			Load l = loading.get(brick);
+			// still queued: read it right away instead
+			if(l != null && pool.remove(l))
+				loading.remove(brick);
+			else if(l != null) {
+				while(!l.done) {
+					try {
+						wait();
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+						break;
+					}
+				}
+				if(l.result != null)
+					return l.result;
+			}
+		}
+		BufferedImage[] images = read(brick, null);
+		synchronized(this) {
+			put(brick, images);
+		}
+		return images;
+	}
+
+	/**
+	 * Reads the given brick in the background, unless it is cached or
+	 * already being read. Bricks with a lower priority value are read
+	 * first.
+	 */
+	public synchronized void prefetch(String brick, double priority) {
+		if(maxBytes < BRICK_BYTES || cache.containsKey(brick)
+				|| loading.containsKey(brick))
+			return;
+		Load l = new Load(brick, priority);
+		loading.put(brick, l);
+		pool.execute(l);
+	}
+
+	/**
+	 * Cancels all prefetches, e.g. because the view changed. Bricks
+	 * which are currently read are discarded.
+	 */
+	public synchronized void cancelPrefetches() {
+		List<Runnable> queued = new ArrayList<Runnable>();
+		pool.getQueue().drainTo(queued);
+		for(Runnable r : queued)
+			loading.remove(((Load)r).brick);
+		for(Load l : loading.values())
+			l.cancelled = true;
+	}
+
+	/** Returns the number of bytes of the cached slices. */
+	public synchronized long getCachedBytes() {
+		return bytes;
+	}
+
+	private void put(String brick, BufferedImage[] images) {
+		if(maxBytes < BRICK_BYTES || cache.containsKey(brick))
+			return;
+		cache.put(brick, images);
+		bytes += BRICK_BYTES;
+		Iterator<BufferedImage[]> it = cache.values().iterator();
+		while(bytes > maxBytes && it.hasNext()) {
+			it.next();
+			it.remove();
+			bytes -= BRICK_BYTES;
+		}
+	}
+
+	/**
+	 * Reads the slices of a brick directly into the buffers of the
+	 * images. Returns null if the given load was cancelled meanwhile.
+	 */
+	private BufferedImage[] read(String brick, Load load)
+			throws IOException {
+		if(load != null && load.cancelled)
+			return null;
+		BufferedImage[] images = new BufferedImage[SIZE];
+		byte[][] pixels = new byte[SIZE][];
+		for(int i = 0; i < SIZE; i++) {
+			images[i] = new BufferedImage(SIZE, SIZE,
+				BufferedImage.TYPE_BYTE_GRAY);
+			pixels[i] = ((DataBufferByte)images[i]
+				.getRaster().getDataBuffer()).getData();
+		}
+		store.read(brick, pixels);
+		return load != null && load.cancelled ? null : images;
+	}
+
+	/** Prefetches a single brick */
+	private final class Load implements Runnable, Comparable<Load> {
+		final String brick;
+		final double priority;
+		volatile boolean cancelled = false;
+		boolean done = false;
+		BufferedImage[] result;
+
+		Load(String brick, double priority) {
+			this.brick = brick;
+			this.priority = priority;
+		}
+
+		public void run() {
+			BufferedImage[] images = null;
+			try {
+				images = read(brick, this);
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+			synchronized(BrickCache.this) {
+				if(loading.get(brick) == this)
+					loading.remove(brick);
+				if(images != null)
+					put(brick, images);
+				result = images;
+				done = true;
+				BrickCache.this.notifyAll();
+			}
+		}
+
+		public int compareTo(Load o) {
+			return Double.compare(priority, o.priority);
+		}
+	}
+}
@@ -0,0 +1,223 @@
+package octree;
+
+import ij.IJ;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+
+/**
+ * Converts the bricks of an octree directory, as created by FilePreparer,
+ * from one file per brick and axis into one file per level, plus an
+ * index with the offset of each brick. VolumeOctree memory-maps the
+ * packed files, if present.
+ *
+ * For each brick, its x, y and z data are stored one after the other,
+ * or, if compression is requested, only its z data, delta-coded along x
+ * and deflated; see BrickStore. Compression avoids storing each voxel
+ * three times and typically reduces the size of the pyramid by another
+ * factor of two or more for microscopy data.
+ *
+ * The bricks of a level are sorted by z, y and x, so that neighbouring
+ * bricks are close to each other in the file. The props.txt and .info
+ * files are left untouched. The index is written last, so the octree
+ * remains readable from the original files until packing is complete.
+ */
+public class BrickPacker {
+
+	private static final int BRICK_BYTES = BrickStore.BRICK_BYTES;
+
+	private BrickPacker() {
+	}
+
+	/**
+	 * Packs the bricks of the octree in the given directory without
+	 * compression. Does nothing if the directory is packed already.
+	 *
+	 * @param removeFiles whether to delete the per-brick files afterwards.
+	 */
+	public static void pack(String dir, boolean removeFiles)
+			throws IOException {
+		pack(dir, false, removeFiles);
+	}
+
+	/**
+	 * Packs the bricks of the octree in the given directory. Does nothing
+	 * if the directory is packed already.
+	 *
+	 * @param compress whether to store the bricks compressed.
+	 * @param removeFiles whether to delete the per-brick files afterwards.
+	 */
+	public static void pack(String dir, boolean compress,
+			boolean removeFiles) throws IOException {
+		File d = new File(dir);
+		if(new File(d, BrickStore.INDEX).exists())
+			return;
+		String[] infos = d.list();
+		if(infos == null)
+			throw new IOException("Not a directory: " + dir);
+
+		Map<Integer, List<int[]>> levels =
+			new TreeMap<Integer, List<int[]>>();
+		int total = 0;
+		for(String f : infos) {
+			if(!f.endsWith(".info"))
+				continue;
+			String[] p = f.substring(0, f.length() - 5).split("_");
+			if(p.length != 4)
+				continue;
+			int[] b = new int[4];
+			for(int i = 0; i < 4; i++)
+				b[i] = Integer.parseInt(p[i]);
+			List<int[]> bricks = levels.get(b[3]);
+			if(bricks == null) {
+				bricks = new ArrayList<int[]>();
+				levels.put(b[3], bricks);
+			}
+			bricks.add(b);
+			total++;
+		}
+
+		List<String> names = new ArrayList<String>(total);
+		List<Long> offsets = new ArrayList<Long>(total);
+		List<Integer> lengths = new ArrayList<Integer>(total);
+		byte[] buf = new byte[BRICK_BYTES];
+		byte[] deflated = new byte[BRICK_BYTES + BRICK_BYTES / 100 + 64];
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+		int done = 0;
+		for(Map.Entry<Integer, List<int[]>> e : levels.entrySet()) {
+			List<int[]> bricks = e.getValue();
+			Collections.sort(bricks, new Comparator<int[]>() {
+				public int compare(int[] a, int[] b) {
+					for(int i = 2; i >= 0; i--)
+						if(a[i] != b[i])
+							return a[i] < b[i] ? -1 : 1;
+					return 0;
+				}
+			});
+			File pack = new File(d, BrickStore.getPackFile(e.getKey()));
+			File part = new File(d, pack.getName() + ".part");
+			FileOutputStream out = new FileOutputStream(part);
+			try {
+				long offset = 0;
+				for(int[] b : bricks) {
+					String name = b[0] + "_" + b[1] + "_" + b[2]
+						+ "_" + b[3];
+					int length;
+					if(compress) {
+						readFully(new File(d, "z/" + name), buf);
+						BrickStore.encodeDelta(buf);
+						deflater.reset();
+						deflater.setInput(buf);
+						deflater.finish();
+						length = 0;
+						while(!deflater.finished())
+							length += deflater.deflate(deflated, length,
+								deflated.length - length);
+						// records must not cross a mapped chunk
+						long chunk = BrickStore.Packed.CHUNK_BYTES;
+						if(offset / chunk != (offset + length - 1) / chunk) {
+							long pad = chunk - offset % chunk;
+							out.write(new byte[(int)pad]);
+							offset += pad;
+						}
+						out.write(deflated, 0, length);
+					} else {
+						// in the order of the axis constants
+						for(String axis : new String[] {"x", "y", "z"}) {
+							readFully(new File(d, axis + "/" + name), buf);
+							out.write(buf);
+						}
+						length = (int)BrickStore.RECORD_BYTES;
+					}
+					names.add(name);
+					offsets.add(offset);
+					lengths.add(length);
+					offset += length;
+					IJ.showProgress(++done, total);
+				}
+			} finally {
+				out.close();
+			}
+			rename(part, pack);
+		}
+		deflater.end();
+
+		File index = new File(d, BrickStore.INDEX);
+		File part = new File(d, BrickStore.INDEX + ".part");
+		DataOutputStream out = new DataOutputStream(
+			new BufferedOutputStream(new FileOutputStream(part)));
+		try {
+			out.writeInt(BrickStore.MAGIC);
+			out.writeInt(BrickStore.VERSION);
+			out.writeInt(compress ? BrickStore.CODEC_DEFLATE
+				: BrickStore.CODEC_NONE);
+			out.writeInt(names.size());
+			for(int i = 0; i < names.size(); i++) {
+				out.writeUTF(names.get(i));
+				out.writeLong(offsets.get(i));
+				out.writeInt(lengths.get(i));
+			}
+		} finally {
+			out.close();
+		}
+		rename(part, index);
+		IJ.showProgress(1.0);
+
+		if(!removeFiles)
+			return;
+		for(String axis : new String[] {"x", "y", "z"}) {
+			File sub = new File(d, axis);
+			for(String name : names)
+				new File(sub, name).delete();
+			sub.delete();
+		}
+	}
+
+	private static void readFully(File f, byte[] data) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(f, "r");
+		try {
+			if(in.length() != data.length)
+				throw new IOException("Unexpected size of " + f);
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static void rename(File from, File to) throws IOException {
+		if(to.exists() && !to.delete() || !from.renameTo(to))
+			throw new IOException("Cannot write " + to);
+	}
+
+	public static void main(String[] args) throws IOException {
+		String dir = null;
+		boolean compress = false, remove = false, usage = false;
+		for(String arg : args) {
+			if(arg.equals("--compress"))
+				compress = true;
+			else if(arg.equals("--remove"))
+				remove = true;
+			else if(dir == null)
+				dir = arg;
+			else
+				usage = true;
+		}
+		if(dir == null || usage) {
+			System.err.println("Usage: BrickPacker <octree dir> "
+				+ "[--compress] [--remove]");
+			System.exit(1);
+		}
+		pack(dir, compress, remove);
+	}
+}
@@ -0,0 +1,286 @@
+package octree;
+
+import ij3d.AxisConstants;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the slices of the bricks of a VolumeOctree.
+ *
+ * Bricks are identified by the axis and the name of their cube, e.g.
+ * "z/0_0_0_4". By default, each brick is stored in a file of its own,
+ * in the x, y and z subdirectories of the octree directory. If the
+ * directory contains a brick index as written by BrickPacker, the
+ * bricks of each level are instead read from a single, memory-mapped
+ * file, which avoids opening a file per brick and copies the data only
+ * once, directly from the mapped pages into the slices.
+ *
+ * Packed bricks may be compressed: then only the z slices of a brick are
+ * stored, with the differences of neighbouring voxels along x deflated,
+ * and the slices along x and y are derived from them after inflating.
+ * BrickCache reads prefetched bricks on its I/O threads, so this work is
+ * done in the background for most bricks.
+ */
+abstract class BrickStore implements AxisConstants {
+
+	static final int SIZE = VolumeOctree.SIZE;
+	static final int BRICK_BYTES = SIZE * SIZE * SIZE;
+
+	/** Bytes of a packed brick, i.e. of its x, y and z data */
+	static final long RECORD_BYTES = 3L * BRICK_BYTES;
+
+	static final String INDEX = "bricks.index";
+	static final int MAGIC = 0x4f435042; // "OCPB"
+	static final int VERSION = 2;
+
+	/** The x, y and z data of each brick, uncompressed */
+	static final int CODEC_NONE = 0;
+	/** The z data of each brick, delta-coded along x and deflated */
+	static final int CODEC_DEFLATE = 1;
+
+	/**
+	 * Returns the store for the octree in the given directory.
+	 */
+	static BrickStore open(String dir) throws IOException {
+		if(new File(dir, INDEX).exists())
+			return new Packed(dir);
+		return new Files(dir);
+	}
+
+	/**
+	 * Reads the slices of the given brick into the given arrays, which
+	 * hold SIZE * SIZE bytes each.
+	 */
+	abstract void read(String brick, byte[][] slices) throws IOException;
+
+	static String getPackFile(int level) {
+		return "bricks_" + level + ".pack";
+	}
+
+	static int getLevel(String name) {
+		return Integer.parseInt(name.substring(name.lastIndexOf('_') + 1));
+	}
+
+	static int getAxis(String brick) {
+		switch(brick.charAt(0)) {
+			case 'x': return X_AXIS;
+			case 'y': return Y_AXIS;
+			default: return Z_AXIS;
+		}
+	}
+
+	/**
+	 * Replaces each voxel of the given z slices by its difference to its
+	 * left neighbour, which makes smooth images compress much better.
+	 */
+	static void encodeDelta(byte[] brick) {
+		for(int row = 0; row < brick.length; row += SIZE)
+			for(int x = SIZE - 1; x > 0; x--)
+				brick[row + x] -= brick[row + x - 1];
+	}
+
+	/** Reverts encodeDelta() */
+	static void decodeDelta(byte[] brick) {
+		for(int row = 0; row < brick.length; row += SIZE)
+			for(int x = 1; x < SIZE; x++)
+				brick[row + x] += brick[row + x - 1];
+	}
+
+	/**
+	 * Copies the slices along the given axis out of a brick given in z
+	 * order (x fastest, then y, then z). Slices along y have x running
+	 * fastest, then z; slices along x have y running fastest, then z.
+	 */
+	static void reslice(byte[] brick, int axis, byte[][] slices) {
+		switch(axis) {
+		case X_AXIS:
+			for(int x = 0; x < SIZE; x++) {
+				byte[] slice = slices[x];
+				for(int z = 0; z < SIZE; z++)
+					for(int y = 0; y < SIZE; y++)
+						slice[z * SIZE + y] =
+							brick[z * SIZE * SIZE + y * SIZE + x];
+			}
+			break;
+		case Y_AXIS:
+			for(int y = 0; y < SIZE; y++)
+				for(int z = 0; z < SIZE; z++)
+					System.arraycopy(brick, z * SIZE * SIZE + y * SIZE,
+						slices[y], z * SIZE, SIZE);
+			break;
+		default:
+			for(int z = 0; z < SIZE; z++)
+				System.arraycopy(brick, z * SIZE * SIZE,
+					slices[z], 0, SIZE * SIZE);
+			break;
+		}
+	}
+
+	/** One file per brick and axis */
+	static final class Files extends BrickStore {
+		private final String dir;
+
+		Files(String dir) {
+			this.dir = dir;
+		}
+
+		@Override
+		void read(String brick, byte[][] slices) throws IOException {
+			DataInputStream is = new DataInputStream(
+				new FileInputStream(new File(dir, brick)));
+			try {
+				for(int i = 0; i < SIZE; i++)
+					is.readFully(slices[i]);
+			} finally {
+				is.close();
+			}
+		}
+	}
+
+	/** The bricks of each level in a single, memory-mapped file */
+	static final class Packed extends BrickStore {
+
+		/**
+		 * Bytes per mapped chunk, which must stay below 2 GB. Records
+		 * never cross the border of a chunk.
+		 */
+		static final long CHUNK_BYTES =
+			(Integer.MAX_VALUE / RECORD_BYTES) * RECORD_BYTES;
+
+		private final String dir;
+		private final int codec;
+
+		/** The offset and length of each brick in the file of its level */
+		private final Map<String, long[]> records =
+			new HashMap<String, long[]>();
+
+		/** The mapped chunks of the file of each level, created lazily */
+		private final Map<Integer, MappedByteBuffer[]> chunks =
+			new HashMap<Integer, MappedByteBuffer[]>();
+
+		Packed(String dir) throws IOException {
+			this.dir = dir;
+			DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(
+					new File(dir, INDEX))));
+			try {
+				if(in.readInt() != MAGIC)
+					throw new IOException("Invalid brick index in "
+						+ dir);
+				int version = in.readInt();
+				if(version < 1 || version > VERSION)
+					throw new IOException("Unsupported brick index "
+						+ "version " + version + " in " + dir);
+				codec = version == 1 ? CODEC_NONE : in.readInt();
+				if(codec != CODEC_NONE && codec != CODEC_DEFLATE)
+					throw new IOException("Unsupported brick codec "
+						+ codec + " in " + dir);
+				int n = in.readInt();
+				for(int i = 0; i < n; i++) {
+					String name = in.readUTF();
+					long offset = in.readLong();
+					long length = version == 1
+						? RECORD_BYTES : in.readInt();
+					records.put(name, new long[] {offset, length});
+				}
+			} finally {
+				in.close();
+			}
+		}
+
+		@Override
+		void read(String brick, byte[][] slices) throws IOException {
+			int axis = getAxis(brick);
+			String name = brick.substring(2);
+			long[] record = records.get(name);
+			if(record == null)
+				throw new IOException("No brick " + name + " in " + dir);
+			ByteBuffer buf = getChunk(getLevel(name),
+				(int)(record[0] / CHUNK_BYTES)).duplicate();
+			buf.position((int)(record[0] % CHUNK_BYTES));
+			if(codec == CODEC_NONE) {
+				buf.position(buf.position() + axis * BRICK_BYTES);
+				for(int i = 0; i < SIZE; i++)
+					buf.get(slices[i]);
+				return;
+			}
+
+			byte[] in = new byte[(int)record[1]];
+			buf.get(in);
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(in);
+				if(axis == Z_AXIS) {
+					for(int i = 0; i < SIZE; i++) {
+						inflate(inflater, slices[i], name);
+						decodeDelta(slices[i]);
+					}
+				} else {
+					byte[] z = new byte[BRICK_BYTES];
+					inflate(inflater, z, name);
+					decodeDelta(z);
+					reslice(z, axis, slices);
+				}
+			} finally {
+				inflater.end();
+			}
+		}
+
+		private void inflate(Inflater inflater, byte[] dst, String name)
+				throws IOException {
+			try {
+				int n = 0;
+				while(n < dst.length && !inflater.finished()
+						&& !inflater.needsInput())
+					n += inflater.inflate(dst, n, dst.length - n);
+				if(n < dst.length)
+					throw new IOException("Truncated brick " + name
+						+ " in " + dir);
+			} catch(DataFormatException e) {
+				throw new IOException("Corrupt brick " + name
+					+ " in " + dir, e);
+			}
+		}
+
+		private synchronized MappedByteBuffer getChunk(int level, int c)
+				throws IOException {
+			MappedByteBuffer[] mapped = chunks.get(level);
+			if(mapped == null) {
+				mapped = map(new File(dir, getPackFile(level)));
+				chunks.put(level, mapped);
+			}
+			return mapped[c];
+		}
+
+		private static MappedByteBuffer[] map(File file) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+				long length = channel.size();
+				int n = (int)((length + CHUNK_BYTES - 1) / CHUNK_BYTES);
+				MappedByteBuffer[] mapped = new MappedByteBuffer[n];
+				for(int c = 0; c < n; c++) {
+					long start = c * CHUNK_BYTES;
+					mapped[c] = channel.map(FileChannel.MapMode.READ_ONLY,
+						start, Math.min(CHUNK_BYTES, length - start));
+				}
+				return mapped;
+			} finally {
+				// the mappings stay valid
+				raf.close();
+			}
+		}
+	}
+}
@@ -3,7 +3,9 @@ package octree;
 import ij3d.AxisConstants;
 
 import java.io.File;
+import java.util.Comparator;
 import java.util.List;
+import java.util.PriorityQueue;
 
 import javax.media.j3d.Canvas3D;
 import javax.media.j3d.Transform3D;
@@ -34,6 +36,18 @@ public class Cube implements AxisConstants, Comparable<Cube> {
 	final VolumeOctree octree;
 	private double distSqFromEye;
 
+	/* The result of checkResolution() and the priority, during update() */
+	private int resolution;
+	private double priority;
+
+	/** Orders cubes by decreasing priority */
+	private static final Comparator<Cube> BY_PRIORITY =
+			new Comparator<Cube>() {
+		public int compare(Cube c1, Cube c2) {
+			return Double.compare(c2.priority, c1.priority);
+		}
+	};
+
 	public Cube(VolumeOctree oct, String dir, int x, int y, int z, int l) {
 		this.dir = dir + "/";
 		this.octree = oct;
@@ -100,8 +114,9 @@ public class Cube implements AxisConstants, Comparable<Cube> {
 		}
 	}
 
-	private void calcDistSqFromEye(Point3d eyePosInLocal) {
+	double calcDistSqFromEye(Point3d eyePosInLocal) {
 		distSqFromEye =  eyePosInLocal.distanceSquared(midp);
+		return distSqFromEye;
 	}
 
 	/**
@@ -144,30 +159,88 @@ public class Cube implements AxisConstants, Comparable<Cube> {
 		}
 	}
 
-	public void update(Canvas3D canvas, Transform3D volToIP) {
-		if(octree.stopUpdating)
-			return;
+	/**
+	 * Shows this cube or, if its resolution is insufficient, its
+	 * children. The children of shown cubes are prefetched, since they
+	 * are needed when zooming in.
+	 *
+	 * Cubes are refined in the order of their priority, i.e. the ones
+	 * covering most of the canvas, close to its centre, first, so that
+	 * the most visible detail appears first. The update stops before
+	 * loading the next brick once the octree is told to stop, and pauses
+	 * regularly to let the renderer display the bricks shown so far.
+	 */
+	public void update(Canvas3D canvas, Transform3D volToIP,
+			Point3d eyePosInLocal) {
+		PriorityQueue<Cube> queue =
+			new PriorityQueue<Cube>(64, BY_PRIORITY);
+		enqueue(queue, canvas, volToIP);
+		long pauseAt = System.currentTimeMillis()
+			+ VolumeOctree.UPDATE_BUDGET;
+		while(!queue.isEmpty()) {
+			if(octree.stopUpdating)
+				return;
+			Cube cube = queue.poll();
+			if(cube.resolution == RESOLUTION_UNSUFFICIENT
+					&& cube.children != null) {
+				cube.subtreeVisible = true;
+				cube.hideSelf();
+				for(Cube c : cube.children)
+					if(c != null)
+						c.enqueue(queue, canvas, volToIP);
+				continue;
+			}
+			cube.hideSubtree();
+			cube.showSelf();
+			if(cube.children != null)
+				for(Cube c : cube.children)
+					if(c != null)
+						octree.prefetch(c, eyePosInLocal);
+			if(System.currentTimeMillis() > pauseAt) {
+				octree.pauseUpdate();
+				pauseAt = System.currentTimeMillis()
+					+ VolumeOctree.UPDATE_BUDGET;
+			}
+		}
+	}
 
-		// give the renderer a chance
-// 		try {
-// 			Thread.sleep(50);
-// 		} catch(InterruptedException e) {}
-		int i = checkResolution(canvas, volToIP);
-		if (i == OUTSIDE_CANVAS) {
+	/**
+	 * Checks the resolution of this cube and adds it to the given queue,
+	 * or hides it if it is outside the canvas.
+	 */
+	private void enqueue(PriorityQueue<Cube> queue, Canvas3D canvas,
+			Transform3D volToIP) {
+		resolution = checkResolution(canvas, volToIP);
+		if(resolution == OUTSIDE_CANVAS) {
 			hideSelf();
 			hideSubtree();
 			return;
 		}
-		if ((i == RESOLUTION_UNSUFFICIENT) && (this.children != null)) {
-			this.subtreeVisible = true;
-			hideSelf();
-			for (Cube localCube : this.children)
-				if (localCube != null)
-					localCube.update(canvas, volToIP);
-		} else {
-			hideSubtree();
-			showSelf();
+		priority = calcPriority(canvas);
+		queue.add(this);
+	}
+
+	/**
+	 * Returns the visible area of the bounding box of this cube on the
+	 * canvas, in pixels, lowered with the distance of its centre from
+	 * the centre of the canvas. Requires the corners in the canvas to be
+	 * up to date.
+	 */
+	private double calcPriority(Canvas3D canvas) {
+		double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE;
+		double x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+		for(Point2d p : cornersInCanvas) {
+			if(p.x < x0) x0 = p.x;
+			if(p.x > x1) x1 = p.x;
+			if(p.y < y0) y0 = p.y;
+			if(p.y > y1) y1 = p.y;
 		}
+		int cw = canvas.getWidth(), ch = canvas.getHeight();
+		double area = Math.max(0, Math.min(x1, cw) - Math.max(x0, 0))
+			* Math.max(0, Math.min(y1, ch) - Math.max(y0, 0));
+		double dx = (x0 + x1 - cw) / 2, dy = (y0 + y1 - ch) / 2;
+		double dist = Math.sqrt((dx * dx + dy * dy) / (cw * cw + ch * ch));
+		return area / (1 + 2 * dist);
 	}
 
 	public int checkResolution(Canvas3D canvas, Transform3D volToIP) {
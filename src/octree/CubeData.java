@@ -3,7 +3,6 @@ package octree;
 import ij3d.AxisConstants;
 
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
@@ -15,7 +14,6 @@ import javax.vecmath.Vector4f;
 public class CubeData implements AxisConstants {
 
 	private static final int SIZE = VolumeOctree.SIZE;
-	private static final int B_IMG_TYPE = BufferedImage.TYPE_BYTE_GRAY;
 
 	final float[] cal = new float[3];
 	final float[] min = new float[3];
@@ -94,10 +92,18 @@ public class CubeData implements AxisConstants {
 	}
 
 	private void createData() throws IOException {
+		BufferedImage[] cached = cube.octree.cache.get(getBrick());
+		System.arraycopy(cached, 0, images, 0, SIZE);
+	}
+
+	/**
+	 * Returns the brick for the current axis, as identified by BrickStore.
+	 */
+	String getBrick() {
 		switch(axis) {
-			case X_AXIS: createImages(cube.dir + "/x/" + cube.name); break;
-			case Y_AXIS: createImages(cube.dir + "/y/" + cube.name); break;
-			case Z_AXIS: createImages(cube.dir + "/z/" + cube.name); break;
+			case X_AXIS: return "x/" + cube.name;
+			case Y_AXIS: return "y/" + cube.name;
+			default: return "z/" + cube.name;
 		}
 	}
 
@@ -126,15 +132,4 @@ public class CubeData implements AxisConstants {
 		}
 		return ret;
 	}
-
-	private void createImages(String path) throws IOException {
-		DataInputStream is = new DataInputStream(new FileInputStream(path));
-		for(int i = 0; i < SIZE; i++) {
-			images[i] = new BufferedImage(SIZE, SIZE, B_IMG_TYPE);
-			byte[] pixels = ((DataBufferByte) images[i].getRaster().getDataBuffer()).getData();
-			is.readFully(pixels);
-		}
-		is.close();
-	}
 }
-
@@ -0,0 +1,439 @@
+package octree;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.ImageProcessor;
+import ij3d.MappedImage;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import vib.NaiveResampler;
+
+/**
+ * Creates the directory structure read by VolumeOctree from an image:
+ * props.txt, and for each brick a .info file with its calibration and
+ * its slices along x, y and z in the x/, y/ and z/ subdirectories.
+ *
+ * A brick of level l covers SIZE * l voxels of the image along each axis,
+ * downsampled by l. The bricks of level 1 are read from the image, one
+ * slab of SIZE slices at a time; each coarser level is calculated from
+ * the z files of the previous one, combining 2 x 2 x 2 voxels with the
+ * accumulators of NaiveResampler. Bricks are processed in parallel, and
+ * apart from the current slab of an ImagePlus with a virtual stack, only
+ * a few bricks per thread are held in memory. Memory-mapped images are
+ * read brick by brick.
+ *
+ * The .info file of a brick is written last, so an interrupted run can
+ * be resumed by calling createFiles() again on the same directory;
+ * complete bricks are skipped.
+ */
+public class FilePreparer {
+
+	private static final int SIZE = VolumeOctree.SIZE;
+	private static final int BRICK_BYTES = SIZE * SIZE * SIZE;
+
+	private final ImagePlus image;
+	private final MappedImage mapped;
+	private final File dir;
+	private final int w, h, d;
+	private final Calibration cal;
+	private final boolean colorLut;
+	private int nThreads = Runtime.getRuntime().availableProcessors();
+
+	/** The slices of the current slab of an ImagePlus */
+	private byte[][] slab;
+	private int slabStart;
+
+	private final AtomicInteger bricksDone = new AtomicInteger();
+	private int bricksTotal;
+
+	/**
+	 * Prepares the files for the given image, which may be of any type
+	 * and have a virtual stack. Images which are not 8-bit are converted
+	 * slice by slice, RGB images by averaging the channels.
+	 */
+	public FilePreparer(ImagePlus image, String dir) {
+		this(image, null, dir);
+	}
+
+	/**
+	 * Prepares the files for the given memory-mapped image.
+	 */
+	public FilePreparer(MappedImage image, String dir) {
+		this(null, image, dir);
+	}
+
+	/**
+	 * Prepares the files for the image at the given path. Uncompressed
+	 * TIFF and NRRD files are memory-mapped, other files are opened
+	 * with ImageJ.
+	 */
+	public FilePreparer(String path, String dir) throws IOException {
+		this(open(path), dir);
+	}
+
+	private FilePreparer(Object image, String dir) {
+		this(image instanceof MappedImage ? null : (ImagePlus)image,
+			image instanceof MappedImage ? (MappedImage)image : null,
+			dir);
+	}
+
+	private FilePreparer(ImagePlus imp, MappedImage mi, String dir) {
+		this.image = imp;
+		this.mapped = mi;
+		this.dir = new File(dir);
+		this.w = imp != null ? imp.getWidth() : mi.getWidth();
+		this.h = imp != null ? imp.getHeight() : mi.getHeight();
+		this.d = imp != null ? imp.getStackSize() : mi.getStackSize();
+		this.cal = imp != null ? imp.getCalibration()
+			: mi.getCalibration();
+		this.colorLut = imp != null
+			&& imp.getType() == ImagePlus.COLOR_256;
+	}
+
+	private static Object open(String path) throws IOException {
+		try {
+			return MappedImage.open(path);
+		} catch(IOException e) {
+			ImagePlus imp = IJ.openImage(path);
+			if(imp == null)
+				throw new IOException("Cannot open " + path);
+			return imp;
+		}
+	}
+
+	/** Sets the number of bricks which are created in parallel. */
+	public void setThreads(int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+	}
+
+	/**
+	 * Returns the level of the root brick, i.e. the smallest power of
+	 * two l for which one brick covers the whole image.
+	 */
+	public int getMaxLevel() {
+		int max = Math.max(w, Math.max(h, d));
+		int l = 1;
+		while(SIZE * (long)l < max)
+			l *= 2;
+		return l;
+	}
+
+	/**
+	 * Creates all missing files.
+	 */
+	public void createFiles() throws IOException {
+		for(String sub : new String[] {"x", "y", "z"}) {
+			File f = new File(dir, sub);
+			if(!f.isDirectory() && !f.mkdirs())
+				throw new IOException("Cannot create " + f);
+		}
+		int maxLevel = getMaxLevel();
+		bricksTotal = 0;
+		for(int l = 1; l <= maxLevel; l *= 2)
+			bricksTotal += nBricks(w, l) * nBricks(h, l) * nBricks(d, l);
+		bricksDone.set(0);
+
+		int nz = nBricks(d, 1);
+		for(int bz = 0; bz < nz; bz++) {
+			final int z = bz * SIZE;
+			List<int[]> bricks = new ArrayList<int[]>();
+			for(int y = 0; y < h; y += SIZE)
+				for(int x = 0; x < w; x += SIZE)
+					bricks.add(new int[] {x, y, z});
+			if(!needsWork(bricks, 1))
+				continue;
+			loadSlab(z);
+			try {
+				process(bricks, 1);
+			} finally {
+				slab = null;
+			}
+		}
+
+		for(int l = 2; l <= maxLevel; l *= 2) {
+			List<int[]> bricks = new ArrayList<int[]>();
+			int step = SIZE * l;
+			for(int z = 0; z < d; z += step)
+				for(int y = 0; y < h; y += step)
+					for(int x = 0; x < w; x += step)
+						bricks.add(new int[] {x, y, z});
+			process(bricks, l);
+		}
+		writeProperties(maxLevel);
+		IJ.showProgress(1.0);
+	}
+
+	private static int nBricks(int dim, int level) {
+		long step = (long)SIZE * level;
+		return (int)((dim + step - 1) / step);
+	}
+
+	private String name(int x, int y, int z, int level) {
+		return x + "_" + y + "_" + z + "_" + level;
+	}
+
+	private boolean isComplete(int x, int y, int z, int level) {
+		return new File(dir, name(x, y, z, level) + ".info").exists();
+	}
+
+	private boolean needsWork(List<int[]> bricks, int level) {
+		for(int[] b : bricks)
+			if(!isComplete(b[0], b[1], b[2], level))
+				return true;
+		bricksDone.addAndGet(bricks.size());
+		return false;
+	}
+
+	/**
+	 * Creates the given bricks of the given level in parallel, skipping
+	 * the complete ones.
+	 */
+	private void process(final List<int[]> bricks, final int level)
+			throws IOException {
+		final AtomicInteger next = new AtomicInteger();
+		Callable<Object> worker = new Callable<Object>() {
+			public Object call() throws IOException {
+				byte[] brick = new byte[BRICK_BYTES];
+				byte[] tmp = new byte[BRICK_BYTES];
+				NaiveResampler.Accumulator accu = colorLut
+					? new NaiveResampler.MaxLikelihood()
+					: new NaiveResampler.Averager();
+				int i;
+				while((i = next.getAndIncrement()) < bricks.size()) {
+					int[] b = bricks.get(i);
+					if(!isComplete(b[0], b[1], b[2], level)) {
+						if(level == 1)
+							readBrick(b[0], b[1], b[2], brick);
+						else
+							downsample(b[0], b[1], b[2], level,
+								brick, tmp, accu);
+						writeBrick(b[0], b[1], b[2], level,
+							brick, tmp);
+					}
+					IJ.showProgress(bricksDone.incrementAndGet(),
+						bricksTotal);
+				}
+				return null;
+			}
+		};
+		int n = Math.min(nThreads, bricks.size());
+		if(n < 2) {
+			try {
+				worker.call();
+			} catch(IOException e) {
+				throw e;
+			} catch(Exception e) {
+				throw new RuntimeException(e);
+			}
+			return;
+		}
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(n);
+		for(int t = 0; t < n; t++)
+			tasks.add(worker);
+		ExecutorService pool = Executors.newFixedThreadPool(n);
+		try {
+			for(Future<Object> f : pool.invokeAll(tasks))
+				f.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted");
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof IOException)
+				throw (IOException)e.getCause();
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/**
+	 * Loads the 8-bit slices of the slab starting at z from the
+	 * ImagePlus; does nothing for memory-mapped images.
+	 */
+	private void loadSlab(int z) {
+		if(image == null)
+			return;
+		int n = Math.min(SIZE, d - z);
+		ImageStack stack = image.getStack();
+		slab = new byte[n][];
+		slabStart = z;
+		for(int i = 0; i < n; i++) {
+			ImageProcessor ip = stack.getProcessor(z + i + 1);
+			if(!(ip.getPixels() instanceof byte[])) {
+				ip.setMinAndMax(image.getDisplayRangeMin(),
+					image.getDisplayRangeMax());
+				ip = ip.convertToByte(true);
+			}
+			slab[i] = (byte[])ip.getPixels();
+		}
+	}
+
+	/**
+	 * Reads the level 1 brick at the given position; voxels outside the
+	 * image are 0.
+	 */
+	private void readBrick(int x0, int y0, int z0, byte[] brick) {
+		int nx = Math.min(SIZE, w - x0);
+		int ny = Math.min(SIZE, h - y0);
+		int nz = Math.min(SIZE, d - z0);
+		Arrays.fill(brick, (byte)0);
+		for(int z = 0; z < nz; z++) {
+			for(int y = 0; y < ny; y++) {
+				int o = z * SIZE * SIZE + y * SIZE;
+				if(slab != null) {
+					System.arraycopy(slab[z0 + z - slabStart],
+						(y0 + y) * w + x0, brick, o, nx);
+				} else {
+					for(int x = 0; x < nx; x++)
+						brick[o + x] = mapped.getAverage(
+							x0 + x, y0 + y, z0 + z);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Calculates the brick of the given level at the given position
+	 * from the z files of its (up to 8) children.
+	 */
+	private void downsample(int x0, int y0, int z0, int level,
+			byte[] brick, byte[] child,
+			NaiveResampler.Accumulator accu) throws IOException {
+		Arrays.fill(brick, (byte)0);
+		int cl = level / 2;
+		int half = SIZE / 2;
+		// the size of the image at the level of the children
+		int cw = (w + cl - 1) / cl;
+		int ch = (h + cl - 1) / cl;
+		int cd = (d + cl - 1) / cl;
+		for(int c = 0; c < 8; c++) {
+			int ox = (c & 1) * half;
+			int oy = ((c >> 1) & 1) * half;
+			int oz = ((c >> 2) & 1) * half;
+			int cx0 = x0 + 2 * ox * cl;
+			int cy0 = y0 + 2 * oy * cl;
+			int cz0 = z0 + 2 * oz * cl;
+			if(cx0 >= w || cy0 >= h || cz0 >= d)
+				continue;
+			readFully(new File(dir, "z/" + name(cx0, cy0, cz0, cl)),
+				child);
+			// the number of valid voxels of the child
+			int nx = Math.min(SIZE, cw - cx0 / cl);
+			int ny = Math.min(SIZE, ch - cy0 / cl);
+			int nz = Math.min(SIZE, cd - cz0 / cl);
+			for(int z = 0; 2 * z < nz; z++) {
+				for(int y = 0; 2 * y < ny; y++) {
+					for(int x = 0; 2 * x < nx; x++) {
+						accu.reset();
+						for(int k = 2 * z; k < Math.min(2 * z + 2, nz); k++)
+							for(int j = 2 * y; j < Math.min(2 * y + 2, ny); j++)
+								for(int i = 2 * x; i < Math.min(2 * x + 2, nx); i++)
+									accu.add(child[k * SIZE * SIZE
+										+ j * SIZE + i] & 0xff);
+						brick[(oz + z) * SIZE * SIZE
+							+ (oy + y) * SIZE + ox + x] =
+							(byte)accu.get();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes the x, y and z files and the .info file of a brick, which
+	 * is given in z order (x fastest, then y, then z).
+	 */
+	private void writeBrick(int x0, int y0, int z0, int level,
+			byte[] brick, byte[] tmp) throws IOException {
+		String name = name(x0, y0, z0, level);
+		write(new File(dir, "z/" + name), brick);
+
+		// y slices: x fastest, then z
+		for(int y = 0; y < SIZE; y++)
+			for(int z = 0; z < SIZE; z++)
+				System.arraycopy(brick, z * SIZE * SIZE + y * SIZE,
+					tmp, y * SIZE * SIZE + z * SIZE, SIZE);
+		write(new File(dir, "y/" + name), tmp);
+
+		// x slices: y fastest, then z
+		for(int x = 0; x < SIZE; x++)
+			for(int z = 0; z < SIZE; z++)
+				for(int y = 0; y < SIZE; y++)
+					tmp[x * SIZE * SIZE + z * SIZE + y] =
+						brick[z * SIZE * SIZE + y * SIZE + x];
+		write(new File(dir, "x/" + name), tmp);
+
+		File info = new File(dir, name + ".info");
+		File part = new File(dir, name + ".info.part");
+		DataOutputStream out = new DataOutputStream(
+			new FileOutputStream(part));
+		try {
+			out.writeFloat((float)(cal.pixelWidth * level));
+			out.writeFloat((float)(cal.pixelHeight * level));
+			out.writeFloat((float)(cal.pixelDepth * level));
+		} finally {
+			out.close();
+		}
+		rename(part, info);
+	}
+
+	private static void write(File f, byte[] data) throws IOException {
+		File part = new File(f.getPath() + ".part");
+		FileOutputStream out = new FileOutputStream(part);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+		rename(part, f);
+	}
+
+	private static void rename(File from, File to) throws IOException {
+		if(to.exists() && !to.delete() || !from.renameTo(to))
+			throw new IOException("Cannot write " + to);
+	}
+
+	private static void readFully(File f, byte[] data) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(f, "r");
+		try {
+			in.readFully(data);
+		} finally {
+			in.close();
+		}
+	}
+
+	private void writeProperties(int maxLevel) throws IOException {
+		Properties props = new Properties();
+		props.setProperty("width", Integer.toString(w));
+		props.setProperty("height", Integer.toString(h));
+		props.setProperty("depth", Integer.toString(d));
+		props.setProperty("level", Integer.toString(maxLevel));
+		props.setProperty("pixelWidth", Double.toString(cal.pixelWidth));
+		props.setProperty("pixelHeight", Double.toString(cal.pixelHeight));
+		props.setProperty("pixelDepth", Double.toString(cal.pixelDepth));
+		FileOutputStream out = new FileOutputStream(
+			new File(dir, "props.txt"));
+		try {
+			props.store(out, "VolumeOctree");
+		} finally {
+			out.close();
+		}
+	}
+}
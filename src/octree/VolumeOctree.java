@@ -2,6 +2,7 @@ package octree;
 
 import ij3d.AxisConstants;
 import ij3d.Content;
+import ij3d.UniverseSettings;
 import ij3d.UniverseListener;
 
 import java.io.File;
@@ -29,6 +30,13 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 
 	static final int DETAIL_AXIS = 6;
 
+	/**
+	 * Milliseconds of showing bricks after which an update pauses for
+	 * PAUSE milliseconds, to let the renderer display them.
+	 */
+	static final long UPDATE_BUDGET = 40;
+	static final long PAUSE = 10;
+
 	private static final int[][] axisIndex = new int[3][2];
 
 	private int[][] sortingIndices;
@@ -41,6 +49,9 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 	private final BranchGroup rootBranchGroup;
 	private final UpdaterThread updater;
 
+	/** The slices of recently displayed and prefetched bricks */
+	final BrickCache cache;
+
 	int curAxis = Z_AXIS;
 	int curDir = BACK;
 
@@ -92,6 +103,9 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 			ph = Float.parseFloat(props.getProperty("pixelHeight"));
 			pd = Float.parseFloat(props.getProperty("pixelDepth"));
 
+			cache = new BrickCache(BrickStore.open(imageDir),
+				UniverseSettings.octreeCacheMB * (1L << 20));
+
 			rootCube = new Cube(this, imageDir, 0, 0, 0, maxLevel);
 			rootCube.createChildren();
 
@@ -234,6 +248,23 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 		updater.submit(volToIP, eyePosInLocal, axisChanged);
 	}
 
+	/**
+	 * Reads the data of the given cube for the current axis in the
+	 * background, with priority by distance from the eye.
+	 */
+	final void prefetch(Cube cube, Point3d eyePosInLocal) {
+		cache.prefetch(cube.cdata.getBrick(),
+			cube.calcDistSqFromEye(eyePosInLocal));
+	}
+
+	/**
+	 * Pauses the running update to let the renderer catch up, unless or
+	 * until a new update is submitted.
+	 */
+	final void pauseUpdate() {
+		updater.pause();
+	}
+
 	private BitSet bitset = new BitSet(6);
 	final void setCombinedWhichChild(int child) {
 		axisSwitch.setWhichChild(Switch.CHILD_MASK);
@@ -387,9 +418,20 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 			nextEyePosInLocal.set(eyePosInLocal);
 			available = true;
 			stopUpdating = true;
+			cache.cancelPrefetches();
 			notify();
 		}
 
+		public synchronized void pause() {
+			if(available)
+				return;
+			try {
+				wait(PAUSE);
+			} catch(InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
 		private synchronized void fetchNext() {
 			if(!available) {
 				try {
@@ -416,7 +458,8 @@ public class VolumeOctree implements UniverseListener, AxisConstants {
 						}
 						System.out.println("updateCubes");
 						stopUpdating = false;
-						rootCube.update(canvas, runningT);
+						rootCube.update(canvas, runningT,
+							runningEyePosInLocal);
 						setWhichChild(DETAIL_AXIS);
 						System.out.println("updateCubes finished");
 					}
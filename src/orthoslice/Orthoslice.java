@@ -77,6 +77,23 @@ public class Orthoslice extends VolumeRenderer {
 		loadAxis(axis, i, front, back);
 	} 
 
+	/**
+	 * All axes are displayed at once, so they are loaded together.
+	 */
+	@Override
+	protected boolean isLoadedOnDemand() {
+		return false;
+	}
+
+	/**
+	 * Only some slices are displayed, so their textures are created
+	 * when they are loaded.
+	 */
+	@Override
+	protected boolean createTextures(int axis) {
+		return true;
+	}
+
 	/**
 	 * Override eyePtChanged() in VolumeRenderer to always show all
 	 * slices.
@@ -7,129 +7,503 @@ import ij.ImagePlus;
 import ij.ImageStack;
 import ij.process.FloatProcessor;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Convolves 8-bit, 16-bit and 32-bit stacks with 3D kernels. The result
+ * is always a 32-bit stack; voxels outside the image are treated as 0.
+ *
+ * Separable kernels are applied as three 1D passes along x, y and z,
+ * which work on whole rows of primitive slice arrays: each row (or
+ * plane) is copied once into a zero-padded buffer, so that the kernel
+ * loops need no bounds checks. The passes are parallelized over slices
+ * (x, y) and rows (z), either on a thread pool which is created for
+ * each call, or on a given ExecutorService.
+ *
+ * The static methods are kept for compatibility and use a new instance
+ * with one thread per processor.
+ */
 public class Convolve3d {
 
+	private final int nThreads;
+	private final ExecutorService pool;
+
+	/** Whether the passes show their progress in the status bar */
+	private boolean showProgress = true;
+
+	/**
+	 * Receives the slices of a streaming convolution, see
+	 * filter(ImagePlus, float[], float[], float[], SliceWriter).
+	 */
+	public interface SliceWriter {
+		/**
+		 * Called for each output slice, in ascending order. The
+		 * array is reused for the next slice, so it must be copied
+		 * or converted if needed after this call.
+		 */
+		public void write(int z, float[] slice);
+	}
+
+	/**
+	 * Creates a convolution engine using one thread per processor.
+	 */
+	public Convolve3d() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public Convolve3d(int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+		this.pool = null;
+	}
+
+	/**
+	 * Creates a convolution engine which runs its tasks on the given
+	 * pool; the pool is not shut down by this class.
+	 * @param nThreads the number of tasks to submit per pass, usually
+	 *                 the number of threads of the pool.
+	 */
+	public Convolve3d(ExecutorService pool, int nThreads) {
+		this.nThreads = Math.max(1, nThreads);
+		this.pool = pool;
+	}
+
 	public static ImagePlus convolve(ImagePlus image,
 					float[] H_x, float[] H_y, float[] H_z) {
-		ImagePlus tmp1 = convolveX(image, H_x);
-		ImagePlus tmp2 = convolveY(tmp1, H_y);
-		return convolveZ(tmp2, H_z);
+		return new Convolve3d().filter(image, H_x, H_y, H_z);
 	}
 
 	public static ImagePlus convolveX(ImagePlus image, float[] H_x) {
-		float[][][] H = new float[1][1][H_x.length];
-		for(int i = 0; i < H_x.length; i++) {
-			H[0][0][i] = H_x[i];
-		}
-		return convolve(image, H);
+		return new Convolve3d().filterX(image, H_x);
 	}
 
 	public static ImagePlus convolveY(ImagePlus image, float[] H_y) {
-		float[][][] H = new float[1][H_y.length][1];
-		for(int i = 0; i < H_y.length; i++) {
-			H[0][i][0] = H_y[i];
-		}
-		return convolve(image, H);
+		return new Convolve3d().filterY(image, H_y);
 	}
 
 	public static ImagePlus convolveZ(ImagePlus image, float[] H_z) {
-		float[][][] H = new float[H_z.length][1][1];
-		for(int i = 0; i < H_z.length; i++) {
-			H[i][0][0] = H_z[i];
+		return new Convolve3d().filterZ(image, H_z);
+	}
+
+	public static ImagePlus convolve(ImagePlus image, float[][][] kernel) {
+		return new Convolve3d().filter(image, kernel);
+	}
+
+	/**
+	 * Convolves the image with the separable kernel given by its
+	 * x, y and z components.
+	 */
+	public ImagePlus filter(ImagePlus image,
+					float[] H_x, float[] H_y, float[] H_z) {
+		float[][] slices = convolveX(getSlices(image),
+				image.getWidth(), image.getHeight(), H_x);
+		convolveY(slices, image.getWidth(), image.getHeight(), H_y);
+		convolveZ(slices, image.getWidth(), image.getHeight(), H_z);
+		return createImage(slices, image);
+	}
+
+	/**
+	 * Convolves the image with the separable kernel given by its
+	 * x, y and z components, streaming along z: the x and y passes are
+	 * applied to individual slices, which are kept in a sliding window
+	 * of H_z.length (plus one per thread) slices for the z pass. The
+	 * result is passed slice by slice to the given writer, so that the
+	 * memory needed, apart from the input and whatever the writer
+	 * keeps, is bounded by the kernel depth times the slice size. The
+	 * input slices are requested from the stack one at a time, so this
+	 * also works with virtual stacks.
+	 *
+	 * The results are identical to filter(image, H_x, H_y, H_z).
+	 */
+	public void filter(ImagePlus image, float[] H_x, float[] H_y,
+			final float[] H_z, SliceWriter writer) {
+		final int w = image.getWidth(), h = image.getHeight();
+		final int d = image.getStackSize();
+		ImageStack stack = image.getStack();
+		int batch = Math.min(nThreads, d);
+		final int r = H_z.length / 2;
+		final float[][] window = new float[H_z.length + batch - 1][];
+		final float[] out = new float[w * h];
+
+		// use one pool for all passes
+		ExecutorService exec = pool;
+		if(exec == null && nThreads > 1)
+			exec = Executors.newFixedThreadPool(nThreads);
+		Convolve3d engine = exec == null ? new Convolve3d(1)
+				: new Convolve3d(exec, nThreads);
+		engine.showProgress = false;
+		try {
+			int next = 0;
+			for(int z = 0; z < d; z++) {
+				IJ.showProgress(z, d);
+				// filter the slices needed for z in x and y
+				int last = Math.min(d - 1, z + H_z.length - 1 - r);
+				while(next <= last) {
+					int n = Math.min(batch, d - next);
+					Object[] in = new Object[n];
+					for(int i = 0; i < n; i++)
+						in[i] = stack.getPixels(next + i + 1);
+					float[][] f = engine.convolveX(in, w, h, H_x);
+					engine.convolveY(f, w, h, H_y);
+					for(int i = 0; i < n; i++)
+						window[(next + i) % window.length] = f[i];
+					next += n;
+				}
+				// the z pass
+				final int zOut = z;
+				engine.run(h, new Pass() {
+					@Override
+					public float[] createBuffer() {
+						return null;
+					}
+
+					@Override
+					public void process(int y, float[] buffer) {
+						int offs = y * w;
+						for(int x = 0; x < w; x++)
+							out[offs + x] = 0f;
+						for(int k = 0; k < H_z.length; k++) {
+							int zIn = zOut + k - r;
+							if(zIn < 0 || zIn >= d)
+								continue;
+							float[] slice = window[
+								zIn % window.length];
+							float f = H_z[k];
+							for(int x = 0; x < w; x++)
+								out[offs + x] +=
+									slice[offs + x] * f;
+						}
+					}
+				});
+				writer.write(z, out);
+			}
+			IJ.showProgress(1.0);
+		} finally {
+			if(exec != pool)
+				exec.shutdown();
 		}
-		return convolve(image, H);
 	}
 
-	private static int w, h, d;
-	private static int r_x, r_y, r_z;
-	private static Object[] slices_in;
-	private static boolean isByte, isShort, isFloat;
-	private static float[][][] H;
+	public ImagePlus filterX(ImagePlus image, float[] H_x) {
+		return createImage(convolveX(getSlices(image),
+			image.getWidth(), image.getHeight(), H_x), image);
+	}
 
-	public static ImagePlus convolve(ImagePlus image, float[][][] kernel) {
-		H = kernel;
-		// Determine dimensions of the filter
-		r_z = H.length;
-		r_y = H[0].length;
-		r_x = H[0][0].length;
-
-		// Determine dimensions of the image
-		w = image.getWidth(); h = image.getHeight();
-		d = image.getStackSize();
-
-		// Adjust minimum and maximum indices (because of filter size)
-		int min_x = r_x/2, max_x = w - r_x/2;
-		int min_y = r_y/2, max_y = h - r_y/2;
-		int min_z = r_z/2, max_z = d - r_z/2;
-
-		// initialize slices_in and slices_out
-		slices_in = new Object[d];
-		float[][] slices_out = new float[d][];
-		for(int i = 0; i < d; i++) {
-			slices_in[i] = image.getStack().
-						getProcessor(i+1).getPixels();
-			slices_out[i] = new float[w*h];
+	public ImagePlus filterY(ImagePlus image, float[] H_y) {
+		float[][] slices = toFloat(getSlices(image),
+				image.getWidth(), image.getHeight());
+		convolveY(slices, image.getWidth(), image.getHeight(), H_y);
+		return createImage(slices, image);
+	}
+
+	public ImagePlus filterZ(ImagePlus image, float[] H_z) {
+		float[][] slices = toFloat(getSlices(image),
+				image.getWidth(), image.getHeight());
+		convolveZ(slices, image.getWidth(), image.getHeight(), H_z);
+		return createImage(slices, image);
+	}
+
+	/**
+	 * Convolves the image with the given kernel, indexed [z][y][x].
+	 * Kernels which extend along only one axis are applied with the
+	 * corresponding 1D pass.
+	 */
+	public ImagePlus filter(ImagePlus image, float[][][] H) {
+		int r_z = H.length, r_y = H[0].length, r_x = H[0][0].length;
+		if(r_y == 1 && r_z == 1)
+			return filterX(image, H[0][0]);
+		if(r_x == 1 && r_z == 1) {
+			float[] H_y = new float[r_y];
+			for(int i = 0; i < r_y; i++)
+				H_y[i] = H[0][i][0];
+			return filterY(image, H_y);
+		}
+		if(r_x == 1 && r_y == 1) {
+			float[] H_z = new float[r_z];
+			for(int i = 0; i < r_z; i++)
+				H_z[i] = H[i][0][0];
+			return filterZ(image, H_z);
 		}
+		return createImage(convolve3d(getSlices(image),
+			image.getWidth(), image.getHeight(), H), image);
+	}
+
+	/**
+	 * Convolves the rows of the given slices, which may be byte[],
+	 * short[] or float[] arrays, and returns the result as new float
+	 * arrays.
+	 */
+	public float[][] convolveX(final Object[] slices_in,
+			final int w, final int h, final float[] H) {
+		final float[][] slices_out = new float[slices_in.length][];
+		final int r = H.length / 2;
+		run(slices_in.length, new Pass() {
+			@Override
+			public float[] createBuffer() {
+				return new float[w + H.length - 1];
+			}
 
-		// determine image type
-		isByte = slices_in[0] instanceof byte[];
-		isShort = slices_in[0] instanceof short[];
-		isFloat = slices_in[0] instanceof float[];
-
-		// convolve
-// 		for(int z = min_z; z < max_z; z++) {
-// 			IJ.showProgress(z, max_z);
-// 			for(int y = min_y; y < max_y; y++) {
-// 				for(int x = min_x; x < max_x; x++) {
-		for(int z = 0; z < d; z++) {
-			IJ.showProgress(z, d);
-			for(int y = 0; y < h; y++) {
-				for(int x = 0; x < w; x++) {
-					slices_out[z][y*w+x] =
-						convolvePoint(z,y,x);
+			@Override
+			public void process(int z, float[] row) {
+				float[] out = new float[w * h];
+				for(int y = 0; y < h; y++) {
+					toFloat(slices_in[z], y * w, row, r, w);
+					int offs = y * w;
+					for(int x = 0; x < w; x++) {
+						float sum = 0f;
+						for(int i = 0; i < H.length; i++)
+							sum += row[x + i] * H[i];
+						out[offs + x] = sum;
+					}
 				}
+				slices_out[z] = out;
 			}
+		});
+		return slices_out;
+	}
+
+	/**
+	 * Convolves the columns of the given slices in place.
+	 */
+	public void convolveY(final float[][] slices, final int w, final int h,
+			final float[] H) {
+		final int r = H.length / 2;
+		run(slices.length, new Pass() {
+			@Override
+			public float[] createBuffer() {
+				return new float[(h + H.length - 1) * w];
+			}
+
+			@Override
+			public void process(int z, float[] plane) {
+				float[] slice = slices[z];
+				System.arraycopy(slice, 0, plane, r * w, w * h);
+				for(int y = 0; y < h; y++) {
+					int offs = y * w;
+					for(int x = 0; x < w; x++)
+						slice[offs + x] = 0f;
+					for(int j = 0; j < H.length; j++) {
+						int o = (y + j) * w;
+						float f = H[j];
+						for(int x = 0; x < w; x++)
+							slice[offs + x] +=
+								plane[o + x] * f;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Convolves the given slices along z in place.
+	 */
+	public void convolveZ(final float[][] slices, final int w, final int h,
+			final float[] H) {
+		final int d = slices.length;
+		final int r = H.length / 2;
+		run(h, new Pass() {
+			@Override
+			public float[] createBuffer() {
+				return new float[(d + H.length - 1) * w];
+			}
+
+			@Override
+			public void process(int y, float[] rows) {
+				int offs = y * w;
+				for(int z = 0; z < d; z++)
+					System.arraycopy(slices[z], offs,
+						rows, (z + r) * w, w);
+				for(int z = 0; z < d; z++) {
+					float[] slice = slices[z];
+					for(int x = 0; x < w; x++)
+						slice[offs + x] = 0f;
+					for(int k = 0; k < H.length; k++) {
+						int o = (z + k) * w;
+						float f = H[k];
+						for(int x = 0; x < w; x++)
+							slice[offs + x] +=
+								rows[o + x] * f;
+					}
+				}
+			}
+		});
+	}
+
+	/**
+	 * Convolves with a general (non-separable) kernel. The input is
+	 * converted to zero-padded float slices first.
+	 */
+	private float[][] convolve3d(final Object[] slices_in,
+			final int w, final int h, final float[][][] H) {
+		final int d = slices_in.length;
+		final int r_z = H.length, r_y = H[0].length, r_x = H[0][0].length;
+		final int pw = w + r_x - 1, ph = h + r_y - 1;
+		final float[][] padded = new float[d + r_z - 1][];
+		final float[] zeros = new float[pw * ph];
+		for(int z = 0; z < padded.length; z++)
+			padded[z] = zeros;
+		run(d, new Pass() {
+			@Override
+			public float[] createBuffer() {
+				return null;
+			}
+
+			@Override
+			public void process(int z, float[] buffer) {
+				float[] p = new float[pw * ph];
+				for(int y = 0; y < h; y++)
+					toFloat(slices_in[z], y * w, p,
+						(y + r_y / 2) * pw + r_x / 2, w);
+				padded[z + r_z / 2] = p;
+			}
+		});
+
+		final float[][] slices_out = new float[d][];
+		run(d, new Pass() {
+			@Override
+			public float[] createBuffer() {
+				return null;
+			}
+
+			@Override
+			public void process(int z, float[] buffer) {
+				float[] out = new float[w * h];
+				for(int y = 0; y < h; y++) {
+					for(int x = 0; x < w; x++) {
+						float sum = 0f;
+						for(int k = 0; k < r_z; k++) {
+							float[] p = padded[z + k];
+							for(int j = 0; j < r_y; j++) {
+								int o = (y + j) * pw + x;
+								float[] H_kj = H[k][j];
+								for(int i = 0; i < r_x; i++)
+									sum += p[o + i] * H_kj[i];
+							}
+						}
+						out[y * w + x] = sum;
+					}
+				}
+				slices_out[z] = out;
+			}
+		});
+		return slices_out;
+	}
+
+	/**
+	 * Converts the given slices to float; float slices are copied.
+	 */
+	private float[][] toFloat(final Object[] slices_in,
+			final int w, final int h) {
+		final float[][] slices_out = new float[slices_in.length][];
+		run(slices_in.length, new Pass() {
+			@Override
+			public float[] createBuffer() {
+				return null;
+			}
+
+			@Override
+			public void process(int z, float[] buffer) {
+				float[] out = new float[w * h];
+				toFloat(slices_in[z], 0, out, 0, w * h);
+				slices_out[z] = out;
+			}
+		});
+		return slices_out;
+	}
+
+	/**
+	 * Copies n pixels starting at offset from of the given byte[],
+	 * short[] or float[] array into dst, starting at dstOffset.
+	 */
+	private static void toFloat(Object pixels, int from,
+			float[] dst, int dstOffset, int n) {
+		if(pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			for(int i = 0; i < n; i++)
+				dst[dstOffset + i] = p[from + i] & 0xff;
+		} else if(pixels instanceof short[]) {
+			short[] p = (short[])pixels;
+			for(int i = 0; i < n; i++)
+				dst[dstOffset + i] = p[from + i] & 0xffff;
+		} else if(pixels instanceof float[]) {
+			System.arraycopy(pixels, from, dst, dstOffset, n);
+		} else {
+			throw new IllegalArgumentException(
+				"Only 8-bit, 16-bit and 32-bit images are supported");
 		}
+	}
+
+	private static Object[] getSlices(ImagePlus image) {
+		ImageStack stack = image.getStack();
+		Object[] slices = new Object[stack.getSize()];
+		for(int z = 0; z < slices.length; z++)
+			slices[z] = stack.getPixels(z + 1);
+		return slices;
+	}
 
-		// create output image
+	private static ImagePlus createImage(float[][] slices, ImagePlus image) {
+		int w = image.getWidth(), h = image.getHeight();
 		ImageStack stack = new ImageStack(w, h);
-		for(int z = 0; z < d; z++) {
-			stack.addSlice("",
-				new FloatProcessor(w, h, slices_out[z], null));
-		}
+		for(int z = 0; z < slices.length; z++)
+			stack.addSlice("", new FloatProcessor(w, h, slices[z], null));
 		ImagePlus result = new ImagePlus("", stack);
 		result.setCalibration(image.getCalibration());
 		return result;
 	}
 
-	private static float convolvePoint(int z, int y, int x) {
-		float sum = 0f;
-		for(int k=-r_z/2; k<=+r_z/2; k++) {
-			for(int j=-r_y/2; j<=+r_y/2; j++) {
-				for(int i=-r_x/2; i<=+r_x/2; i++) {
-					sum += getValue(x+i, y+j, z+k) *
-						H[k+r_z/2][j+r_y/2][i+r_x/2];
+	/**
+	 * One pass of a convolution, processing items (slices or rows)
+	 * independently. Each thread allocates one buffer.
+	 */
+	private static abstract class Pass {
+		public abstract float[] createBuffer();
+		public abstract void process(int i, float[] buffer);
+	}
+
+	/**
+	 * Processes the items 0 to n - 1 of the given pass in parallel.
+	 */
+	private void run(final int n, final Pass pass) {
+		final AtomicInteger next = new AtomicInteger(0);
+		final AtomicInteger done = new AtomicInteger(0);
+		Runnable worker = new Runnable() {
+			public void run() {
+				float[] buffer = pass.createBuffer();
+				for(int i = next.getAndIncrement(); i < n;
+						i = next.getAndIncrement()) {
+					pass.process(i, buffer);
+					if(showProgress)
+						IJ.showProgress(done.incrementAndGet(), n);
 				}
 			}
+		};
+		int nTasks = Math.min(nThreads, n);
+		if(nTasks < 2) {
+			worker.run();
+			return;
+		}
+		List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+		for(int t = 0; t < nTasks; t++)
+			tasks.add(Executors.callable(worker));
+		ExecutorService exec = pool != null ? pool
+				: Executors.newFixedThreadPool(nTasks);
+		try {
+			for(Future<Object> f : exec.invokeAll(tasks))
+				f.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Convolution interrupted", e);
+		} catch(ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			if(pool == null)
+				exec.shutdown();
 		}
-		return sum;
-	}
-
-	private static float getValue(int x, int y, int z) {
-		if(x < 0) return 0f;
-		if(x > w-1) return 0f;
-		if(y < 0) return 0f;
-		if(y > h-1) return 0f;
-		if(z < 0) return 0f;
-		if(z > d-1) return 0f;
-		int index = y * w + x;
-		if(isByte)
-			return ((byte[])slices_in[z])[index] & 0xff;
-		else if(isShort)
-			return ((short[])slices_in[z])[index];
-		else if(isFloat)
-			return ((float[])slices_in[z])[index];
-		IJ.error("Neither byte nor float image");
-		return -1f;
 	}
 }
@@ -17,7 +17,7 @@ public class Smooth {
 	public static ImagePlus smooth(ImagePlus image, boolean useGaussian,
 					float sigma, boolean useCalibration) {
 
-		int type = image.getType();
+		final int type = image.getType();
 
 		Calibration calib = image.getCalibration();
 
@@ -33,36 +33,30 @@ public class Smooth {
 					: (float)Math.abs(calib.pixelDepth);
 		float[] H_z = createKernel(sigma, pixelW, useGaussian);
 
-		ImageStack stack = Convolve3d.
-					convolve(image,H_x,H_y,H_z).getStack();
-
-		if(image.getType() == ImagePlus.GRAY32) {
-			ImagePlus result = new ImagePlus("Smoothed", stack);
-			result.setCalibration(image.getCalibration());
-			return result;
-		}
-		// convert the result to an image that matches the type of the
-		// original (currently 8 bit or 16 bit)
-
-		ImageStack stack2 = new ImageStack(
-				stack.getWidth(), stack.getHeight());
-		for(int z = 0; z < stack.getSize(); z++) {
-			float[] f = (float[])stack.
-					getProcessor(z+1).getPixels();
-			if (type == ImagePlus.GRAY8) {
-				byte[] b = new byte[f.length];
-				for(int i = 0; i < b.length; i++) {
-					b[i] = (byte)Math.round(f[i]);
+		// stream the result slice by slice into the output type, so
+		// that no intermediate float stack is needed
+		final ImageStack stack2 = new ImageStack(
+				image.getWidth(), image.getHeight());
+		new Convolve3d().filter(image, H_x, H_y, H_z,
+				new Convolve3d.SliceWriter() {
+			public void write(int z, float[] f) {
+				if (type == ImagePlus.GRAY32) {
+					stack2.addSlice("", f.clone());
+				} else if (type == ImagePlus.GRAY8) {
+					byte[] b = new byte[f.length];
+					for(int i = 0; i < b.length; i++) {
+						b[i] = (byte)Math.round(f[i]);
+					}
+					stack2.addSlice("",b);
+				} else if (type == ImagePlus.GRAY16)  {
+					short[] s = new short[f.length];
+					for(int i = 0; i < s.length; i++) {
+						s[i] = (short)Math.round(f[i]);
+					}
+					stack2.addSlice("",s);
 				}
-				stack2.addSlice("",b);
-			} else if (type == ImagePlus.GRAY16)  {
-				short[] s = new short[f.length];
-				for(int i = 0; i < s.length; i++) {
-					s[i] = (short)Math.round(f[i]);
-				}
-				stack2.addSlice("",s);
 			}
-		}
+		});
 		ImagePlus result = new ImagePlus("Smoothed", stack2);
 		result.setCalibration(image.getCalibration());
 		return result;
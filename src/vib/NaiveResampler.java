@@ -14,7 +14,7 @@ public class NaiveResampler {
 		return b[index] & 0xff;
 	}
 
-	private static interface Accumulator {
+	public static interface Accumulator {
 		void reset();
 		void add(int value);
 		int get();
@@ -59,7 +59,7 @@ public class NaiveResampler {
 			histo = new int[max+1];
 			empty = new int[max+1];
 		}
-		MaxLikelihood() {
+		public MaxLikelihood() {
 			this(255);
 		}
 		public void reset() {
@@ -131,7 +131,7 @@ public class Mask extends VoltexVolume {
 			IJ.showStatus("Filling...");
 			IJ.showProgress(z, zDim);
 		}
-		updateData();
+		commitChanges();
 	}
 
 	public void subtract(Canvas3D canvas, Roi roi) {}
@@ -10,6 +10,15 @@ import ij3d.ContentInstant;
 import ij3d.ContentNode;
 
 import java.awt.Polygon;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.media.j3d.Canvas3D;
 import javax.media.j3d.Transform3D;
@@ -209,10 +218,15 @@ public class VoltexGroup extends ContentNode {
 	 * Does nothing if the given ROI is null.
 	 * Works not only on the internally created image (the resampled one),
 	 * but also on the original image.
+	 *
+	 * The projection of the volume onto the canvas is affine, so each
+	 * row of voxels projects onto a line. The voxels inside the ROI are
+	 * found as spans between the intersections of this line with the
+	 * ROI outline, and the slices are filled in parallel.
 	 * @param universe
 	 * @param fillValue
 	 */
-	public void fillRoi(Canvas3D canvas, Roi roi, byte fillValue) {
+	public void fillRoi(Canvas3D canvas, Roi roi, final byte fillValue) {
 		if(roi == null)
 			return;
 
@@ -222,23 +236,15 @@ public class VoltexGroup extends ContentNode {
 		volToIP.invert();
 		volumeToImagePlate(volToIP);
 
-		VoltexVolume vol = renderer.getVolume();
-		Point2d onCanvas = new Point2d();
-		for(int z = 0; z < vol.zDim; z++) {
-			for(int y = 0; y < vol.yDim; y++) {
-				for(int x = 0; x < vol.xDim; x++) {
-					volumePointInCanvas(canvas, volToIP,
-							x, y, z, onCanvas);
-					if(p.contains(onCanvas.x, onCanvas.y)) {
-						vol.setNoCheckNoUpdate(
-							x, y, z, fillValue);
-					}
-				}
+		final VoltexVolume vol = renderer.getVolume();
+		double[] proj = getProjection(canvas, volToIP);
+		fillSpans(p, proj, vol.xDim, vol.yDim, vol.zDim, 1,
+				new RowFiller() {
+			public void fill(int x0, int x1, int y, int z) {
+				vol.setRowNoCheckNoUpdate(x0, x1, y, z, fillValue);
 			}
-			IJ.showStatus("Filling...");
-			IJ.showProgress(z, vol.zDim);
-		}
-		vol.updateData();
+		});
+		vol.commitChanges();
 
 		// also fill the original image
 		ImagePlus image = c.getImage();
@@ -246,24 +252,165 @@ public class VoltexGroup extends ContentNode {
 		if(image == null || factor == 1)
 			return;
 
-		ij3d.Volume volu = new ij3d.Volume(image);
-		for(int z = 0; z < volu.zDim; z++) {
-			for(int y = 0; y < volu.yDim; y++) {
-				for(int x = 0; x < volu.xDim; x++) {
-					volumePointInCanvas(canvas,
-							volToIP,
-							x/factor,
-							y/factor,
-							z/factor,
-							onCanvas);
-					if(p.contains(onCanvas.x, onCanvas.y)) {
-						volu.set(x, y, z, fillValue);
+		final ij3d.Volume volu = new ij3d.Volume(image);
+		fillSpans(p, proj, volu.xDim, volu.yDim, volu.zDim, factor,
+				new RowFiller() {
+			public void fill(int x0, int x1, int y, int z) {
+				for(int x = x0; x <= x1; x++)
+					volu.setNoCheck(x, y, z, fillValue);
+			}
+		});
+	}
+
+	/** Fills the voxels x0 to x1 (inclusive) of a row. */
+	private interface RowFiller {
+		void fill(int x0, int x1, int y, int z);
+	}
+
+	/**
+	 * Returns the canvas position of voxel (0, 0, 0) and the canvas
+	 * offsets of a step along x, y and z.
+	 */
+	private double[] getProjection(Canvas3D canvas, Transform3D volToIP) {
+		Point2d o = new Point2d(), p = new Point2d();
+		volumePointInCanvas(canvas, volToIP, 0, 0, 0, o);
+		double[] proj = new double[8];
+		proj[0] = o.x;
+		proj[1] = o.y;
+		for(int axis = 0; axis < 3; axis++) {
+			volumePointInCanvas(canvas, volToIP, axis == 0 ? 1 : 0,
+				axis == 1 ? 1 : 0, axis == 2 ? 1 : 0, p);
+			proj[2 + 2 * axis] = p.x - o.x;
+			proj[3 + 2 * axis] = p.y - o.y;
+		}
+		return proj;
+	}
+
+	/**
+	 * Passes all rows of voxels of a w x h x d volume which lie inside
+	 * the given polygon to the filler, slice by slice in parallel.
+	 * Voxel (x, y, z) is projected like the voxel (x / factor,
+	 * y / factor, z / factor) of the rendered volume.
+	 */
+	private static void fillSpans(final Polygon p, final double[] proj,
+			final int w, final int h, final int d, final int factor,
+			final RowFiller filler) {
+		// calculate the bounds now, contains() is then thread-safe
+		p.getBounds();
+		final AtomicInteger next = new AtomicInteger();
+		final AtomicInteger done = new AtomicInteger();
+		IJ.showStatus("Filling...");
+		Runnable worker = new Runnable() {
+			public void run() {
+				int[] spans = new int[16];
+				int z;
+				while((z = next.getAndIncrement()) < d) {
+					int n = 0, ys = -1;
+					for(int y = 0; y < h; y++) {
+						if(y / factor != ys) {
+							ys = y / factor;
+							spans = getSpans(p, proj,
+								(w - 1) / factor, ys,
+								z / factor, spans);
+							n = spans[0];
+						}
+						for(int i = 0; i < n; i++) {
+							int x0 = spans[1 + 2 * i] * factor;
+							int x1 = spans[2 + 2 * i] * factor
+								+ factor - 1;
+							filler.fill(x0, Math.min(x1, w - 1),
+								y, z);
+						}
 					}
+					IJ.showProgress(done.incrementAndGet(), d);
+				}
+			}
+		};
+		int nThreads = Math.min(d,
+			Runtime.getRuntime().availableProcessors());
+		if(nThreads < 2) {
+			worker.run();
+			return;
+		}
+		List<Callable<Object>> tasks =
+			new ArrayList<Callable<Object>>(nThreads);
+		for(int t = 0; t < nThreads; t++)
+			tasks.add(Executors.callable(worker));
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		try {
+			for(Future<Object> f : pool.invokeAll(tasks))
+				f.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch(ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/** Tolerance (in voxels) around intersections with the outline */
+	private static final double EPS = 1e-3;
+
+	/**
+	 * Calculates the spans of the voxels x = 0 .. maxX of row (y, z)
+	 * whose projection lies inside the polygon. The number of spans is
+	 * stored at index 0 of the returned array, followed by the first and
+	 * last x of each span. The given array is reused if large enough.
+	 *
+	 * Between two intersections of the projected row with the outline,
+	 * all voxels are either inside or outside, so only one of them is
+	 * tested; voxels close to an intersection are tested individually.
+	 */
+	private static int[] getSpans(Polygon p, double[] proj, int maxX,
+			int y, int z, int[] spans) {
+		double qx = proj[0] + y * proj[4] + z * proj[6];
+		double qy = proj[1] + y * proj[5] + z * proj[7];
+		double dx = proj[2], dy = proj[3];
+
+		// the x values at which the row crosses an edge
+		double[] t = new double[p.npoints];
+		int nt = 0;
+		for(int i = 0; i < p.npoints; i++) {
+			int j = (i + 1) % p.npoints;
+			double ax = p.xpoints[i] - qx, ay = p.ypoints[i] - qy;
+			double ex = p.xpoints[j] - p.xpoints[i];
+			double ey = p.ypoints[j] - p.ypoints[i];
+			double denom = dx * ey - dy * ex;
+			if(denom == 0)
+				continue;
+			double s = (ax * dy - ay * dx) / denom;
+			if(s < -EPS || s > 1 + EPS)
+				continue;
+			t[nt++] = (ax * ey - ay * ex) / denom;
+		}
+		Arrays.sort(t, 0, nt);
+
+		int n = 0, k = 0;
+		for(int x = 0; x <= maxX; ) {
+			while(k < nt && t[k] < x - EPS)
+				k++;
+			int end = x;
+			if(k == nt || t[k] > x + EPS) {
+				end = k < nt ? (int)Math.ceil(t[k] - EPS) - 1 : maxX;
+				end = Math.min(end, maxX);
+			}
+			if(p.contains(qx + x * dx, qy + x * dy)) {
+				if(n > 0 && spans[2 * n] == x - 1) {
+					spans[2 * n] = end;
+				} else {
+					if(2 * n + 2 >= spans.length)
+						spans = Arrays.copyOf(spans,
+							2 * spans.length);
+					spans[2 * n + 1] = x;
+					spans[2 * n + 2] = end;
+					n++;
 				}
 			}
-			IJ.showStatus("Filling...");
-			IJ.showProgress(z, volu.zDim);
+			x = end + 1;
 		}
+		spans[0] = n;
+		return spans;
 	}
 
 	/**
@@ -344,7 +491,7 @@ public class VoltexGroup extends ContentNode {
 
 	@Override
 	public void swapDisplayedData(String path, String name) {
-		renderer.volume.swap(path + ".tif");
+		renderer.volume.swap(path);
 		renderer.disableTextures();
 	}
 
@@ -356,7 +503,7 @@ public class VoltexGroup extends ContentNode {
 
 	@Override
 	public void restoreDisplayedData(String path, String name) {
-		renderer.volume.restore(path + ".tif");
+		renderer.volume.restore(path);
 		renderer.enableTextures();
 	}
 }
@@ -2,6 +2,9 @@ package voltex;
 
 import ij.IJ;
 import ij.ImagePlus;
+import ij3d.AxisConstants;
+import ij3d.MappedImage;
+import ij3d.UniverseSettings;
 import ij3d.Volume;
 
 import java.awt.color.ColorSpace;
@@ -14,7 +17,17 @@ import java.awt.image.IndexColorModel;
 import java.awt.image.Raster;
 import java.awt.image.SampleModel;
 import java.awt.image.WritableRaster;
-
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.media.j3d.Canvas3D;
 import javax.media.j3d.ImageComponent;
 import javax.media.j3d.ImageComponent2D;
 import javax.vecmath.Point3d;
@@ -51,6 +64,11 @@ public class VoltexVolume extends Volume {
 
 	private ImageUpdater updater = new ImageUpdater();
 
+	/*
+	 * The texture data of the xy-, xz- and yz-slices. Slices are only
+	 * created when their ImageComponent2D is requested; the image data
+	 * of the Volume is the only complete copy.
+	 */
 	private byte[][] xy;
 	private byte[][] xz;
 	private byte[][] yz;
@@ -59,6 +77,15 @@ public class VoltexVolume extends Volume {
 	private ImageComponent2D[] xzComp;
 	private ImageComponent2D[] yzComp;
 
+	/** The number of bytes of all created slices */
+	private long textureMemory = 0;
+
+	/** For each axis, the modified regions of its created slices */
+	private final DirtyRegions[] dirty = new DirtyRegions[3];
+
+	/** Called when voxels are changed, see setChangeListener() */
+	private volatile Runnable changeListener;
+
 	/**
 	 * Initializes this Volume with the specified image.
 	 * All channels are used.
@@ -79,13 +106,31 @@ public class VoltexVolume extends Volume {
 		setImage(imp, ch);
 	}
 
+	/**
+	 * Initializes this Volume with the specified memory-mapped image.
+	 * Painting is not possible, since the image is read-only.
+	 */
+	public VoltexVolume(MappedImage img, boolean[] ch) {
+		setImage(img, ch);
+	}
+
 	public void setImage(ImagePlus imp, boolean[] ch) {
 		super.setImage(imp, ch);
+		initTextures();
+	}
+
+	public void setImage(MappedImage img, boolean[] ch) {
+		super.setImage(img, ch);
+		initTextures();
+	}
+
+	private void initTextures() {
 		// tex size is next power of two greater than max - min
-		// regarding pixels
-		xTexSize = powerOfTwo(xDim);
-		yTexSize = powerOfTwo(yDim);
-		zTexSize = powerOfTwo(zDim);
+		// regarding pixels, unless exact sizes are supported
+		boolean exact = isExactTextureSize();
+		xTexSize = exact ? xDim : powerOfTwo(xDim);
+		yTexSize = exact ? yDim : powerOfTwo(yDim);
+		zTexSize = exact ? zDim : powerOfTwo(zDim);
 
 		float xSpace = (float)pw;
 		float ySpace = (float)ph;
@@ -104,8 +149,7 @@ public class VoltexVolume extends Volume {
 
 		initDataType();
 		initVoltexLoader();
-		createImageComponents();
-		updateData();
+		releaseTextures();
 	}
 
 	public void clear() {
@@ -116,6 +160,7 @@ public class VoltexVolume extends Volume {
 		xyComp = null;
 		xzComp = null;
 		yzComp = null;
+		textureMemory = 0;
 	}
 
 	public void swap(String path) {
@@ -126,60 +171,584 @@ public class VoltexVolume extends Volume {
 		xyComp = null;
 		xzComp = null;
 		yzComp = null;
+		textureMemory = 0;
 	}
 
-	public void restore(String path) {
-		ImagePlus imp = IJ.openImage(path + ".tif");
-		try {
-			setImage(IJ.openImage(path + ".tif"), channels);
-		} catch(NullPointerException e) {
-			throw new IllegalArgumentException("Cannot load image from " + path);
-		} catch(RuntimeException e) {
-			System.out.println("Cannot load " + path);
-			throw e;
+	/**
+	 * Discards all slices; they are created again when requested.
+	 * Needs to be called when the data type changes.
+	 */
+	private synchronized void releaseTextures() {
+		xy = new byte[zDim][];
+		xz = new byte[yDim][];
+		yz = new byte[xDim][];
+		xyComp = new ImageComponent2D[zDim];
+		xzComp = new ImageComponent2D[yDim];
+		yzComp = new ImageComponent2D[xDim];
+		dirty[AxisConstants.Z_AXIS] = new DirtyRegions(zDim);
+		dirty[AxisConstants.Y_AXIS] = new DirtyRegions(yDim);
+		dirty[AxisConstants.X_AXIS] = new DirtyRegions(xDim);
+		textureMemory = 0;
+	}
+
+	/**
+	 * Discards the slices of the given axis, e.g. when they are not
+	 * displayed any more. They are created again when requested.
+	 * @param axis one of X_AXIS, Y_AXIS or Z_AXIS in AxisConstants.
+	 */
+	public synchronized void releaseTextures(int axis) {
+		if(dirty[axis] != null)
+			dirty[axis].clear();
+		switch(axis) {
+			case AxisConstants.Z_AXIS: release(xy, xyComp); break;
+			case AxisConstants.Y_AXIS: release(xz, xzComp); break;
+			case AxisConstants.X_AXIS: release(yz, yzComp); break;
+		}
+	}
+
+	private void release(byte[][] data, ImageComponent2D[] comps) {
+		if(data == null)
+			return;
+		for(int i = 0; i < data.length; i++) {
+			if(data[i] != null)
+				textureMemory -= data[i].length;
+			data[i] = null;
+			comps[i] = null;
+		}
+	}
+
+	/**
+	 * Returns the number of bytes of all currently created slices.
+	 */
+	public synchronized long getTextureMemory() {
+		return textureMemory;
+	}
+
+	/**
+	 * Returns the number of bytes needed for all slices of the given
+	 * axis.
+	 * @param axis one of X_AXIS, Y_AXIS or Z_AXIS in AxisConstants.
+	 */
+	public long getTextureMemory(int axis) {
+		long bytes = dataType == INT_DATA ? 4 : 1;
+		switch(axis) {
+			case AxisConstants.Z_AXIS:
+				return bytes * zDim * xTexSize * yTexSize;
+			case AxisConstants.Y_AXIS:
+				return bytes * yDim * xTexSize * zTexSize;
+			case AxisConstants.X_AXIS:
+				return bytes * xDim * yTexSize * zTexSize;
 		}
+		return 0;
 	}
 
-	private void createImageComponents() {
-		for(int z = 0; z < zDim; z++)
-			xyComp[z] = compCreator.createImageComponent(xy[z], xTexSize, yTexSize);
-		for(int y = 0; y < yDim; y++)
-			xzComp[y] = compCreator.createImageComponent(xz[y], xTexSize, zTexSize);
-		for(int x = 0; x < xDim; x++)
-			yzComp[x] = compCreator.createImageComponent(yz[x], yTexSize, zTexSize);
+	/**
+	 * Reloads all created slices from the image data, using several
+	 * threads. Returns false if this was cancelled, see cancelLoading().
+	 */
+	public synchronized boolean updateData() {
+		int n = 0;
+		int[][] jobs = new int[xDim + yDim + zDim][];
+		for(int axis = 0; axis < 3; axis++) {
+			ImageComponent2D[] comps = getComponents(axis);
+			for(int i = 0; i < comps.length; i++)
+				if(comps[i] != null)
+					jobs[n++] = new int[] {axis, i};
+		}
+		jobs = Arrays.copyOf(jobs, n);
+		boolean[] done = new boolean[n];
+		boolean complete = fill(jobs, done);
+		for(int j = 0; j < n; j++) {
+			if(!done[j])
+				continue;
+			int axis = jobs[j][0], i = jobs[j][1];
+			dirty[axis].clear(i);
+			getComponents(axis)[i].updateData(updater, 0, 0,
+				getTexWidth(axis), getTexHeight(axis));
+		}
+		return complete;
 	}
 
-	public void updateData() {
-		for(int z = 0; z < zDim; z++) {
-			loadZ(z, xy[z]);
-			xyComp[z].updateData(updater, 0, 0, xTexSize, yTexSize);
+	/**
+	 * Creates all missing slices of the given axis, using several
+	 * threads. Returns false if this was cancelled, see
+	 * cancelLoading(); the slices which were not finished are
+	 * discarded in this case.
+	 * @param axis one of X_AXIS, Y_AXIS or Z_AXIS in AxisConstants.
+	 */
+	public synchronized boolean createTextures(int axis) {
+		byte[][] data = getData(axis);
+		ImageComponent2D[] comps = getComponents(axis);
+		int w = getTexWidth(axis), h = getTexHeight(axis);
+		int n = 0;
+		int[][] jobs = new int[data.length][];
+		for(int i = 0; i < data.length; i++) {
+			if(comps[i] == null) {
+				data[i] = createSlice(w, h);
+				jobs[n++] = new int[] {axis, i};
+			}
 		}
-		for(int y = 0; y < yDim; y++) {
-			loadY(y, xz[y]);
-			xzComp[y].updateData(updater, 0, 0, xTexSize, zTexSize);
+		jobs = Arrays.copyOf(jobs, n);
+		boolean[] done = new boolean[n];
+		boolean complete = fill(jobs, done);
+		for(int j = 0; j < n; j++) {
+			int i = jobs[j][1];
+			if(done[j]) {
+				comps[i] = compCreator.createImageComponent(
+						data[i], w, h);
+			} else {
+				textureMemory -= data[i].length;
+				data[i] = null;
+			}
 		}
-		for(int x = 0; x < xDim; x++) {
-			loadX(x, yz[x]);
-			yzComp[x].updateData(updater, 0, 0, yTexSize, zTexSize);
+		return complete;
+	}
+
+	public synchronized ImageComponent2D getImageComponentZ(int index) {
+		return getImageComponent(AxisConstants.Z_AXIS, index);
+	}
+
+	public synchronized ImageComponent2D getImageComponentY(int index) {
+		return getImageComponent(AxisConstants.Y_AXIS, index);
+	}
+
+	public synchronized ImageComponent2D getImageComponentX(int index) {
+		return getImageComponent(AxisConstants.X_AXIS, index);
+	}
+
+	private ImageComponent2D getImageComponent(int axis, int index) {
+		ImageComponent2D[] comps = getComponents(axis);
+		if(comps[index] == null) {
+			byte[][] data = getData(axis);
+			int w = getTexWidth(axis), h = getTexHeight(axis);
+			data[index] = createSlice(w, h);
+			new TextureFiller().fill(axis, index, data[index],
+				new int[3]);
+			comps[index] = compCreator.createImageComponent(
+					data[index], w, h);
+		}
+		return comps[index];
+	}
+
+	private byte[] createSlice(int w, int h) {
+		byte[] slice = new byte[(dataType == INT_DATA ? 4 : 1) * w * h];
+		textureMemory += slice.length;
+		return slice;
+	}
+
+	private byte[][] getData(int axis) {
+		switch(axis) {
+			case AxisConstants.Z_AXIS: return xy;
+			case AxisConstants.Y_AXIS: return xz;
+			default: return yz;
+		}
+	}
+
+	private ImageComponent2D[] getComponents(int axis) {
+		switch(axis) {
+			case AxisConstants.Z_AXIS: return xyComp;
+			case AxisConstants.Y_AXIS: return xzComp;
+			default: return yzComp;
 		}
 	}
 
-	public ImageComponent2D getImageComponentZ(int index) {
-		return xyComp[index];
+	private int getTexWidth(int axis) {
+		return axis == AxisConstants.X_AXIS ? yTexSize : xTexSize;
+	}
+
+	private int getTexHeight(int axis) {
+		return axis == AxisConstants.Z_AXIS ? yTexSize : zTexSize;
+	}
+
+	/**
+	 * Returns the progress of the currently running updateData() or
+	 * createTextures(), or null.
+	 */
+	public TextureLoading getLoading() {
+		return loading;
+	}
+
+	/**
+	 * Cancels the currently running updateData() or createTextures(),
+	 * if any. May be called from any thread.
+	 */
+	public void cancelLoading() {
+		TextureLoading l = loading;
+		if(l != null)
+			l.cancel();
+	}
+
+	private volatile TextureLoading loading;
+
+	/**
+	 * The progress of filling a number of slices. Loading is also
+	 * cancelled when the user presses Escape.
+	 */
+	public static final class TextureLoading {
+		private final int total;
+		private final AtomicInteger done = new AtomicInteger();
+		private volatile boolean cancelled = false;
+
+		TextureLoading(int total) {
+			this.total = total;
+		}
+
+		public int getTotal() {
+			return total;
+		}
+
+		public int getDone() {
+			return done.get();
+		}
+
+		public void cancel() {
+			cancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return cancelled;
+		}
+	}
+
+	/**
+	 * Fills the given slices, each specified by axis and index, from
+	 * the image data, using one thread per processor. Sets done[j] for
+	 * each finished slice; returns false if cancelled.
+	 */
+	private boolean fill(final int[][] jobs, final boolean[] done) {
+		if(jobs.length == 0)
+			return true;
+		final TextureLoading l = new TextureLoading(jobs.length);
+		final TextureFiller filler = new TextureFiller();
+		final AtomicInteger next = new AtomicInteger();
+		loading = l;
+		IJ.resetEscape();
+		Runnable worker = new Runnable() {
+			public void run() {
+				int[] color = new int[3];
+				int j;
+				while((j = next.getAndIncrement()) < jobs.length) {
+					if(IJ.escapePressed())
+						l.cancel();
+					if(l.isCancelled())
+						return;
+					int axis = jobs[j][0], i = jobs[j][1];
+					filler.fill(axis, i, getData(axis)[i], color);
+					done[j] = true;
+					IJ.showProgress(l.done.incrementAndGet(),
+							l.total);
+				}
+			}
+		};
+		int nThreads = Math.min(jobs.length,
+			Runtime.getRuntime().availableProcessors());
+		try {
+			if(nThreads < 2) {
+				worker.run();
+			} else {
+				List<Callable<Object>> tasks =
+					new ArrayList<Callable<Object>>(nThreads);
+				for(int t = 0; t < nThreads; t++)
+					tasks.add(Executors.callable(worker));
+				ExecutorService pool =
+					Executors.newFixedThreadPool(nThreads);
+				try {
+					for(Future<Object> f : pool.invokeAll(tasks))
+						f.get();
+				} catch(InterruptedException e) {
+					l.cancel();
+					Thread.currentThread().interrupt();
+				} catch(ExecutionException e) {
+					throw new RuntimeException(e.getCause());
+				} finally {
+					pool.shutdownNow();
+				}
+			}
+		} finally {
+			loading = null;
+			IJ.showProgress(1.0);
+		}
+		return !l.isCancelled();
+	}
+
+	/**
+	 * Converts slices of the image data into texture data. Reads the
+	 * pixel arrays directly where possible, and uses a table for the
+	 * lookup tables of 8-bit images. Unlike the loaders, it can be used
+	 * from several threads concurrently.
+	 */
+	private final class TextureFiller {
+		private final Loader l = loader;
+		private final Img img = image;
+		private final byte[][] bytes = getByteSlices();
+		private final int[][] ints = getIntSlices();
+		private final boolean rgba = dataType == INT_DATA;
+		private final int[] table;
+
+		TextureFiller() {
+			if(isGray()) {
+				table = new int[256];
+				for(int v = 0; v < 256; v++)
+					table[v] = l.applyLUT(v, v, v);
+			} else {
+				table = null;
+			}
+		}
+
+		/**
+		 * Fills the slice with the given index along the given axis
+		 * into dst, which must be large enough. The color array is
+		 * used as temporary storage.
+		 */
+		void fill(int axis, int index, byte[] dst, int[] color) {
+			int nRows = axis == AxisConstants.Z_AXIS ? yDim : zDim;
+			int nCols = axis == AxisConstants.X_AXIS ? yDim : xDim;
+			fill(axis, index, dst, color, 0, 0, nCols - 1, nRows - 1);
+		}
+
+		/**
+		 * Fills the columns c0 to c1 of the rows r0 to r1 (inclusive)
+		 * of a slice, see fill(int, int, byte[], int[]).
+		 */
+		void fill(int axis, int index, byte[] dst, int[] color,
+				int c0, int r0, int c1, int r1) {
+			int texW = getTexWidth(axis);
+			int step = axis == AxisConstants.X_AXIS ? xDim : 1;
+			int nCols = c1 - c0 + 1;
+			for(int r = r0; r <= r1; r++) {
+				// z and the offset within the z slice of the row
+				int z, offs;
+				switch(axis) {
+					case AxisConstants.Z_AXIS:
+						z = index; offs = r * xDim; break;
+					case AxisConstants.Y_AXIS:
+						z = r; offs = index * xDim; break;
+					default:
+						z = r; offs = index; break;
+				}
+				offs += c0 * step;
+				if(rgba)
+					fillRGBA(z, offs, step, nCols, dst,
+						4 * (r * texW + c0), color);
+				else
+					fillByte(z, offs, step, nCols, dst,
+						r * texW + c0, color);
+			}
+		}
+
+		private void fillByte(int z, int offs, int step, int n,
+				byte[] dst, int d, int[] color) {
+			if(bytes != null) {
+				byte[] src = bytes[z];
+				for(int i = 0; i < n; i++, offs += step)
+					dst[d++] = (byte)table[src[offs] & 0xff];
+				return;
+			}
+			for(int i = 0; i < n; i++, offs += step)
+				dst[d++] = (byte)get(z, offs, color);
+		}
+
+		private void fillRGBA(int z, int offs, int step, int n,
+				byte[] dst, int d, int[] color) {
+			for(int i = 0; i < n; i++, offs += step) {
+				int v = bytes != null
+					? table[bytes[z][offs] & 0xff]
+					: get(z, offs, color);
+				dst[d++] = (byte)(v >> 16);
+				dst[d++] = (byte)(v >> 8);
+				dst[d++] = (byte)v;
+				dst[d++] = (byte)(v >> 24);
+			}
+		}
+
+		/** Returns loadWithLUT() of the pixel at offs in slice z. */
+		private int get(int z, int offs, int[] color) {
+			if(ints != null) {
+				int v = ints[z][offs];
+				return l.applyLUT((v & 0xff0000) >> 16,
+					(v & 0xff00) >> 8, v & 0xff);
+			}
+			img.get(offs % xDim, offs / xDim, z, color);
+			return table != null ? table[color[0]]
+				: l.applyLUT(color[0], color[1], color[2]);
+		}
 	}
 
-	public ImageComponent2D getImageComponentY(int index) {
-		return xzComp[index];
+	/**
+	 * Sets the value at the given position and updates the textures
+	 * when the changes are committed, see setChangeListener().
+	 */
+	@Override
+	public void setNoCheck(int x, int y, int z, int v) {
+		try {
+			voltexLoader.setNoCheck(x, y, z, v);
+		} catch(NullPointerException e) {
+			throw new RuntimeException("No image. Maybe it is swapped");
+		}
 	}
 
-	public ImageComponent2D getImageComponentX(int index) {
-		return yzComp[index];
+	@Override
+	public void set(int x, int y, int z, int v) {
+		try {
+			voltexLoader.set(x, y, z, v);
+		} catch(NullPointerException e) {
+			throw new RuntimeException("No image. Maybe it is swapped");
+		}
 	}
 
+	/**
+	 * Sets the value at the given position, without notifying the
+	 * change listener. Call commitChanges() afterwards to update the
+	 * textures.
+	 */
 	public void setNoCheckNoUpdate(int x, int y, int z, int v) {
 		voltexLoader.setNoCheckNoUpdate(x, y, z, v);
 	}
 
+	/**
+	 * Sets the values from x0 to x1 (inclusive) of the given row,
+	 * without notifying the change listener. Call commitChanges()
+	 * afterwards to update the textures. Rows of different slices may
+	 * be set concurrently.
+	 */
+	public void setRowNoCheckNoUpdate(int x0, int x1, int y, int z,
+			int v) {
+		for(int x = x0; x <= x1; x++)
+			loader.setNoCheck(x, y, z, v);
+		markDirty(x0, x1, y, z);
+	}
+
+	/**
+	 * Sets the listener which is notified when voxels were changed via
+	 * set() or setNoCheck(). It is called once, from the painting
+	 * thread, and again only after commitChanges(). VolumeRenderer
+	 * uses this to commit the changes at the next frame.
+	 */
+	public void setChangeListener(Runnable l) {
+		changeListener = l;
+	}
+
+	private void fireChanged() {
+		Runnable l = changeListener;
+		if(l != null)
+			l.run();
+	}
+
+	/**
+	 * Marks the voxel at the given position as modified in all created
+	 * slices containing it. Returns true if there were no uncommitted
+	 * changes before.
+	 */
+	private synchronized boolean markDirty(int x, int y, int z) {
+		if(xyComp == null)
+			return false;
+		boolean wasClean = !dirty[0].any && !dirty[1].any
+			&& !dirty[2].any;
+		if(xyComp[z] != null)
+			dirty[AxisConstants.Z_AXIS].add(z, x, y);
+		if(xzComp[y] != null)
+			dirty[AxisConstants.Y_AXIS].add(y, x, z);
+		if(yzComp[x] != null)
+			dirty[AxisConstants.X_AXIS].add(x, y, z);
+		return wasClean && (dirty[0].any || dirty[1].any
+			|| dirty[2].any);
+	}
+
+	/**
+	 * Marks the voxels from x0 to x1 (inclusive) of the given row as
+	 * modified, see markDirty(int, int, int).
+	 */
+	private synchronized void markDirty(int x0, int x1, int y, int z) {
+		if(xyComp == null)
+			return;
+		if(xyComp[z] != null) {
+			dirty[AxisConstants.Z_AXIS].add(z, x0, y);
+			dirty[AxisConstants.Z_AXIS].add(z, x1, y);
+		}
+		if(xzComp[y] != null) {
+			dirty[AxisConstants.Y_AXIS].add(y, x0, z);
+			dirty[AxisConstants.Y_AXIS].add(y, x1, z);
+		}
+		for(int x = x0; x <= x1; x++)
+			if(yzComp[x] != null)
+				dirty[AxisConstants.X_AXIS].add(x, y, z);
+	}
+
+	/**
+	 * Updates the textures of all voxels changed since the last call,
+	 * reloading only the bounding rectangle of the changes of each
+	 * modified slice, with a single update of its ImageComponent2D.
+	 */
+	public synchronized void commitChanges() {
+		if(xyComp == null)
+			return;
+		TextureFiller filler = null;
+		int[] color = new int[3];
+		for(int axis = 0; axis < 3; axis++) {
+			DirtyRegions d = dirty[axis];
+			if(!d.any)
+				continue;
+			if(filler == null)
+				filler = new TextureFiller();
+			byte[][] data = getData(axis);
+			ImageComponent2D[] comps = getComponents(axis);
+			for(int i = 0; i < comps.length; i++) {
+				if(!d.isDirty(i) || comps[i] == null)
+					continue;
+				filler.fill(axis, i, data[i], color,
+					d.c0[i], d.r0[i], d.c1[i], d.r1[i]);
+				comps[i].updateData(updater, d.c0[i], d.r0[i],
+					d.c1[i] - d.c0[i] + 1,
+					d.r1[i] - d.r0[i] + 1);
+			}
+			d.clear();
+		}
+	}
+
+	/**
+	 * The bounding rectangles of the modified voxels of the slices of
+	 * one axis, in texture columns and rows (inclusive).
+	 */
+	private static final class DirtyRegions {
+		final int[] c0, r0, c1, r1;
+		boolean any = false;
+
+		DirtyRegions(int n) {
+			c0 = new int[n];
+			r0 = new int[n];
+			c1 = new int[n];
+			r1 = new int[n];
+			Arrays.fill(c0, Integer.MAX_VALUE);
+		}
+
+		boolean isDirty(int i) {
+			return c0[i] != Integer.MAX_VALUE;
+		}
+
+		void add(int i, int c, int r) {
+			if(!isDirty(i)) {
+				c0[i] = c1[i] = c;
+				r0[i] = r1[i] = r;
+				any = true;
+				return;
+			}
+			if(c < c0[i]) c0[i] = c;
+			if(c > c1[i]) c1[i] = c;
+			if(r < r0[i]) r0[i] = r;
+			if(r > r1[i]) r1[i] = r;
+		}
+
+		void clear(int i) {
+			c0[i] = Integer.MAX_VALUE;
+		}
+
+		void clear() {
+			if(any)
+				Arrays.fill(c0, Integer.MAX_VALUE);
+			any = false;
+		}
+	}
+
 	@Override
 	public boolean setSaturatedVolumeRendering(boolean b) {
 		if(super.setSaturatedVolumeRendering(b) && dataType == INT_DATA) {
@@ -194,8 +763,7 @@ public class VoltexVolume extends Volume {
 	public boolean setAverage(boolean average) {
 		if(super.setAverage(average)) {
 			initVoltexLoader();
-			createImageComponents();
-			updateData();
+			releaseTextures();
 			return true;
 		}
 		return false;
@@ -210,8 +778,7 @@ public class VoltexVolume extends Volume {
 	public boolean setChannels(boolean[] ch) {
 		if(super.setChannels(ch)) {
 			initVoltexLoader();
-			createImageComponents();
-			updateData();
+			releaseTextures();
 			return true;
 		}
 		return false;
@@ -226,7 +793,7 @@ public class VoltexVolume extends Volume {
 		boolean ret = super.setLUTs(r, g, b, a);
 		if(ret) {
 			initVoltexLoader();
-			createImageComponents();
+			releaseTextures();
 		}
 		updateData();
 		return ret;
@@ -241,7 +808,7 @@ public class VoltexVolume extends Volume {
 		boolean ret = super.setAlphaLUTFullyOpaque();
 		if(ret) {
 			initVoltexLoader();
-			createImageComponents();
+			releaseTextures();
 		}
 		updateData();
 		return ret;
@@ -269,46 +836,49 @@ public class VoltexVolume extends Volume {
 	}
 
 	/**
-	 * Calculate the next power of two to the given value.
-	 * @param value
-	 * @return
+	 * Whether textures whose size is not a power of two are supported,
+	 * or null if no canvas was queried yet.
 	 */
-	protected static int powerOfTwo(int value) {
-		int retval = 1;
-		while (retval < value) {
-			retval *= 2;
-		}
-		return retval;
-	}
+	private static volatile Boolean nonPowerOfTwoAvailable = null;
 
 	/**
-	 * Loads a xy-slice at the given z position.
-	 * @param z
-	 * @param dst must be an byte[] array of the correct length.
-	 * (If the data type is INT_DATA, it must be 4 times as long).
+	 * Queries whether the graphics card of the given canvas supports
+	 * textures whose size is not a power of two. This is used for
+	 * volumes created afterwards, if UniverseSettings.textureSize is
+	 * TEXTURE_SIZE_AUTO.
 	 */
-	private void loadZ(int z, byte[] dst) {
-		voltexLoader.loadZ(z, dst);
+	public static void queryTextureProperties(Canvas3D canvas) {
+		Object npot = canvas.queryProperties().get(
+			"textureNonPowerOfTwoAvailable");
+		nonPowerOfTwoAvailable = Boolean.valueOf(Boolean.TRUE.equals(npot));
 	}
 
 	/**
-	 * Loads a xz-slice at the given y position.
-	 * @param y
-	 * @param dst must be an byte[] array of the correct length.
-	 * (If the data type is INT_DATA, it must be 4 times as long).
+	 * Returns whether new volumes use textures of the exact size of
+	 * the image, instead of padding them to the next power of two.
 	 */
-	private void loadY(int y, byte[] dst) {
-		voltexLoader.loadY(y, dst);
+	public static boolean isExactTextureSize() {
+		switch(UniverseSettings.textureSize) {
+			case UniverseSettings.TEXTURE_SIZE_EXACT:
+				return true;
+			case UniverseSettings.TEXTURE_SIZE_POWER_OF_TWO:
+				return false;
+			default:
+				return Boolean.TRUE.equals(nonPowerOfTwoAvailable);
+		}
 	}
 
 	/**
-	 * Loads a yz-slice at the given x position.
-	 * @param x
-	 * @param dst must be an byte[] array of the correct length.
-	 * (If the data type is INT_DATA, it must be 4 times as long).
+	 * Calculate the next power of two to the given value.
+	 * @param value
+	 * @return
 	 */
-	private void loadX(int x, byte[] dst) {
-		voltexLoader.loadX(x, dst);
+	protected static int powerOfTwo(int value) {
+		int retval = 1;
+		while (retval < value) {
+			retval *= 2;
+		}
+		return retval;
 	}
 
 	private static final ColorModel createGreyColorModel() {
@@ -345,12 +915,6 @@ public class VoltexVolume extends Volume {
 	 */
 	private abstract class ComponentCreator {
 
-		ComponentCreator() {
-			xyComp = new ImageComponent2D[zDim];
-			xzComp = new ImageComponent2D[yDim];
-			yzComp = new ImageComponent2D[xDim];
-		}
-
 		/**
 		 * Create the ImageComponent2D out of the specified pixel array,
 		 * width and height
@@ -408,25 +972,8 @@ public class VoltexVolume extends Volume {
 	 */
 	protected interface VoltexLoader extends Loader {
 		/**
-		 * Loads an xy-slice, with the given z value
-		 * (x changes fastest) and stores the data in the provided object
-		 */
-		void loadZ(int z, byte[] dst);
-
-		/**
-		 * Loads an xz-slice, with the given y value
-		 * (x changes fastest) and stores the data in the provided object
-		 */
-		void loadY(int y, byte[] dst);
-
-		/**
-		 * Loads an yz-slice, with the given x value
-		 * (y changes fastest) and stores the data in the provided object
-		 */
-		void loadX(int x, byte[] dst);
-
-		/**
-		 * Only set the values, without updating the ImageComponent2Ds.
+		 * Only set the values, without notifying the change listener;
+		 * the textures are updated by commitChanges().
 		 */
 		void setNoCheckNoUpdate(int x, int y, int z, int v);
 	}
@@ -440,9 +987,6 @@ public class VoltexVolume extends Volume {
 
 		public VoltexByteLoader(ByteLoader l) {
 			this.l = l;
-			xy = new byte[zDim][xTexSize * yTexSize];
-			xz = new byte[yDim][xTexSize * zTexSize];
-			yz = new byte[xDim][yTexSize * zTexSize];
 		}
 
 		public int load(int x, int y, int z) {
@@ -453,19 +997,19 @@ public class VoltexVolume extends Volume {
 			return l.load(x, y, z);
 		}
 
+		public int applyLUT(int r, int g, int b) {
+			return l.applyLUT(r, g, b);
+		}
+
 		public void setNoCheck(int x, int y, int z, int v) {
 			l.setNoCheck(x, y, z, v);
-			v = l.loadWithLUT(x, y, z);
-			xy[z][y * xTexSize + x] = (byte)v;
-			xz[y][z * xTexSize + x] = (byte)v;
-			yz[x][z * yTexSize + y] = (byte)v;
-			xyComp[z].updateData(updater, x, y, 1, 1);
-			xzComp[y].updateData(updater, x, z, 1, 1);
-			yzComp[x].updateData(updater, y, z, 1, 1);
+			if(markDirty(x, y, z))
+				fireChanged();
 		}
 
 		public void setNoCheckNoUpdate(int x, int y, int z, int v) {
 			l.setNoCheck(x, y, z, v);
+			markDirty(x, y, z);
 		}
 
 		public void set(int x, int y, int z, int v) {
@@ -474,30 +1018,6 @@ public class VoltexVolume extends Volume {
 				setNoCheck(x, y, z, v);
 			}
 		}
-
-		public void loadZ(int z, byte[] d) {
-			for (int y = 0; y < yDim; y++) {
-				int offs = y * xTexSize;
-				for(int x = 0; x < xDim; x++)
-					d[offs++] = (byte)l.loadWithLUT(x, y, z);
-			}
-		}
-
-		public void loadY(int y, byte[] d)  {
-			for (int z = 0; z < zDim; z++) {
-				int offs = z * xTexSize;
-				for(int x = 0; x < xDim; x++)
-					d[offs++] = (byte)l.loadWithLUT(x, y, z);
-			}
-		}
-
-		public void loadX(int x, byte[] d)  {
-			for (int z = 0; z < zDim; z++) {
-				int offs = z * yTexSize;
-				for (int y = 0; y < yDim; y++)
-					d[offs++] = (byte)l.loadWithLUT(x, y, z);
-			}
-		}
 	}
 
 	/**
@@ -509,9 +1029,6 @@ public class VoltexVolume extends Volume {
 
 		VoltexIntLoader(IntLoader l) {
 			this.l = l;
-			xy = new byte[zDim][4 * xTexSize * yTexSize];
-			xz = new byte[yDim][4 * xTexSize * zTexSize];
-			yz = new byte[xDim][4 * yTexSize * zTexSize];
 		}
 
 		public void setLoader(IntLoader l) {
@@ -526,39 +1043,19 @@ public class VoltexVolume extends Volume {
 			return l.load(x, y, z);
 		}
 
+		public int applyLUT(int r, int g, int b) {
+			return l.applyLUT(r, g, b);
+		}
+
 		public void setNoCheckNoUpdate(int x, int y, int z, int v) {
 			l.setNoCheck(x, y, z, v);
+			markDirty(x, y, z);
 		}
 
 		public void setNoCheck(int x, int y, int z, int v) {
 			l.setNoCheck(x, y, z, v);
-			v = l.loadWithLUT(x, y, z);
-
-			int a = (v & 0xff000000) >> 24;
-			int r = (v & 0xff0000) >> 16;
-			int g = (v & 0xff00) >> 8;
-			int b = (v & 0xff);
-
-			int i = 4 * (y * xTexSize + x);
-			xy[z][i++] = (byte)r;
-			xy[z][i++] = (byte)g;
-			xy[z][i++] = (byte)b;
-			xy[z][i++] = (byte)a;
-			xyComp[z].updateData(updater, x, y, 1, 1);
-
-			i = 4 * (z * xTexSize + x);
-			xz[y][i++] = (byte)r;
-			xz[y][i++] = (byte)g;
-			xz[y][i++] = (byte)b;
-			xz[y][i++] = (byte)a;
-			xzComp[y].updateData(updater, x, z, 1, 1);
-
-			i = 4 * (z * yTexSize + y);
-			yz[x][i++] = (byte)r;
-			yz[x][i++] = (byte)g;
-			yz[x][i++] = (byte)b;
-			yz[x][i++] = (byte)a;
-			yzComp[x].updateData(updater, y, z, 1, 1);
+			if(markDirty(x, y, z))
+				fireChanged();
 		}
 
 		public void set(int x, int y, int z, int v) {
@@ -567,57 +1064,5 @@ public class VoltexVolume extends Volume {
 				setNoCheck(x, y, z, v);
 			}
 		}
-
-		public void loadZ(int zValue, byte[] dst) {
-			for (int y=0; y < yDim; y++){
-				int offsDst = y * xTexSize * 4;
-				for(int x = 0; x < xDim; x++) {
-					int c = l.loadWithLUT(x, y, zValue);
-					int a = (c & 0xff000000) >> 24;
-					int r = (c & 0xff0000) >> 16;
-					int g = (c & 0xff00) >> 8;
-					int b = c & 0xff;
-					dst[offsDst++] = (byte)r;
-					dst[offsDst++] = (byte)g;
-					dst[offsDst++] = (byte)b;
-					dst[offsDst++] = (byte)a;
-				}
-			}
-		}
-
-		public void loadY(int yValue, byte[] dst)  {
-			for (int z=0; z < zDim; z++){
-				int offsDst = z * xTexSize * 4;
-				for(int x = 0; x < xDim; x++) {
-					int c = l.loadWithLUT(x, yValue, z);
-					int a = (c & 0xff000000) >> 24;
-					int r = (c & 0xff0000) >> 16;
-					int g = (c & 0xff00) >> 8;
-					int b = c & 0xff;
-					dst[offsDst++] = (byte)r;
-					dst[offsDst++] = (byte)g;
-					dst[offsDst++] = (byte)b;
-					dst[offsDst++] = (byte)a;
-				}
-			}
-		}
-
-		public void loadX(int xValue, byte[] dst)  {
-			for (int z=0; z < zDim; z++){
-				int offsDst = z * yTexSize * 4;
-				for (int y=0; y < yDim; y++){
-					int c = l.loadWithLUT(xValue, y, z);
-					int a = (c & 0xff000000) >> 24;
-					int r = (c & 0xff0000) >> 16;
-					int g = (c & 0xff00) >> 8;
-					int b = c & 0xff;
-					dst[offsDst++] = (byte)r;
-					dst[offsDst++] = (byte)g;
-					dst[offsDst++] = (byte)b;
-					dst[offsDst++] = (byte)a;
-				}
-			}
-		}
 	}
 }
-
@@ -3,8 +3,16 @@ package voltex;
 import ij.IJ;
 import ij.ImagePlus;
 import ij3d.AxisConstants;
+import ij3d.UniverseSettings;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.List;
 
 import javax.media.j3d.Appearance;
+import javax.media.j3d.Behavior;
+import javax.media.j3d.BoundingSphere;
 import javax.media.j3d.BranchGroup;
 import javax.media.j3d.Canvas3D;
 import javax.media.j3d.GeometryArray;
@@ -16,6 +24,7 @@ import javax.media.j3d.Switch;
 import javax.media.j3d.TextureUnitState;
 import javax.media.j3d.Transform3D;
 import javax.media.j3d.View;
+import javax.media.j3d.WakeupOnBehaviorPost;
 import javax.vecmath.Color3f;
 import javax.vecmath.Point3d;
 import javax.vecmath.Vector3d;
@@ -52,6 +61,18 @@ public class VolumeRenderer implements AxisConstants {
 	/** The current direction of view */
 	private int curDir = FRONT;
 
+	/** For each axis, whether its slices are loaded */
+	private final boolean[] axisLoaded = new boolean[3];
+
+	/** The loaded axes, the least recently viewed one first */
+	private final List<Integer> loadedAxes = new ArrayList<Integer>(3);
+
+	/** False while the volume data is swapped out */
+	private boolean texturesEnabled = true;
+
+	/** The mask, if one was created */
+	private Mask mask;
+
 	/**
 	 * Constructor.
 	 * Initializes this VolumeRenderer with the given image, color,
@@ -93,13 +114,53 @@ public class VolumeRenderer implements AxisConstants {
 		root.addChild(axisSwitch);
 		root.setCapability(BranchGroup.ALLOW_DETACH);
 		root.setCapability(BranchGroup.ALLOW_LOCAL_TO_VWORLD_READ);
+
+		CommitBehavior commit = new CommitBehavior();
+		commit.setSchedulingBounds(new BoundingSphere(
+			new Point3d(), Double.POSITIVE_INFINITY));
+		root.addChild(commit);
+		volume.setChangeListener(commit);
+	}
+
+	/**
+	 * Commits the changes of the volume data once per frame, so that
+	 * painting results in a single texture update per modified slice.
+	 */
+	private final class CommitBehavior extends Behavior
+			implements Runnable {
+
+		private static final int CHANGED = 1;
+
+		private final WakeupOnBehaviorPost postCrit =
+			new WakeupOnBehaviorPost(this, CHANGED);
+
+		public void initialize() {
+			wakeupOn(postCrit);
+		}
+
+		@SuppressWarnings("rawtypes")
+		public void processStimulus(Enumeration criteria) {
+			volume.commitChanges();
+			wakeupOn(postCrit);
+		}
+
+		/** Called by the volume when its data changes. */
+		public void run() {
+			if(isLive())
+				postId(CHANGED);
+			else
+				volume.commitChanges();
+		}
 	}
 
 	public void disableTextures() {
 		int[] size = new int[] {volume.xDim, volume.yDim, volume.zDim};
 
+		texturesEnabled = false;
 		Appearance empty = new Appearance();
 		for(int axis = 0; axis < 3; axis++) {
+			if(!axisLoaded[axis])
+				continue;
 			for(int i = 0; i < size[axis]; i++) {
 				Group frontGroup = (Group)axisSwitch.
 					getChild(axisIndex[axis][FRONT]);
@@ -118,7 +179,10 @@ public class VolumeRenderer implements AxisConstants {
 
 	public void enableTextures() {
 		int[] size = new int[] {volume.xDim, volume.yDim, volume.zDim};
+		texturesEnabled = true;
 		for(int axis = 0; axis < 3; axis++) {
+			if(!axisLoaded[axis])
+				continue;
 			for(int i = 0; i < size[axis]; i++) {
 				Appearance app = appCreator.getAppearance(axis, i);
 				Group frontGroup = (Group)axisSwitch.
@@ -131,6 +195,8 @@ public class VolumeRenderer implements AxisConstants {
 						getChild(size[axis] - i - 1)).getChild(0)).setAppearance(app);
 			}
 		}
+		if(isLoadedOnDemand() && !axisLoaded[curAxis])
+			useAxis(curAxis);
 	}
 
 	/**
@@ -166,23 +232,22 @@ public class VolumeRenderer implements AxisConstants {
 	 * Create a mask to this volume.
 	 */
 	public Mask createMask() {
-		Mask mask = new Mask(volume, root);
-
-		Group frontGroup = null;
-		Group backGroup = null;
+		mask = new Mask(volume, root);
+		for(int axis = 0; axis < 3; axis++)
+			if(axisLoaded[axis])
+				applyMask(axis);
+		return mask;
+	}
 
+	private void applyMask(int axis) {
 		int[] size = new int[] {volume.xDim, volume.yDim, volume.zDim};
-
-		for(int axis = 0; axis < 3; axis++) {
-			for(int i = 0; i < size[axis]; i++) {
-				Appearance app = getAppearance(axis, i);
-				app.setTextureUnitState(1, new TextureUnitState(
-					appCreator.getTexture(axis, i, mask),
-					mask.getMaskAttributes(),
-					appCreator.getTg(axis)));
-			}
+		for(int i = 0; i < size[axis]; i++) {
+			Appearance app = getAppearance(axis, i);
+			app.setTextureUnitState(1, new TextureUnitState(
+				appCreator.getTexture(axis, i, mask),
+				mask.getMaskAttributes(),
+				appCreator.getTg(axis)));
 		}
-		return mask;
 	}
 
 	/**
@@ -214,6 +279,8 @@ public class VolumeRenderer implements AxisConstants {
 			int dir = value > 0.0 ? FRONT : BACK;
 
 			if ((axis != curAxis) || (dir != curDir)) {
+				if(axis != curAxis)
+					useAxis(axis);
 				curAxis = axis;
 				curDir = dir;
 				axisSwitch.setWhichChild(
@@ -224,17 +291,122 @@ public class VolumeRenderer implements AxisConstants {
 
 	/**
 	 * Fully removes all the data and reloads all the textures.
+	 *
+	 * If the textures of all three axes do not fit into
+	 * UniverseSettings.textureMemoryMB, only the axis of view is loaded,
+	 * and the others are loaded when the direction of view changes.
 	 */
 	public void fullReload() {
 		for(int i = 0; i < axisSwitch.numChildren(); i++) {
 			((Group)axisSwitch.getChild(i)).removeAllChildren();
 		}
-		loadAxis(Z_AXIS);
-		loadAxis(Y_AXIS);
-		loadAxis(X_AXIS);
+		Arrays.fill(axisLoaded, false);
+		loadedAxes.clear();
+		if(!isLoadedOnDemand()) {
+			for(int axis = 2; axis >= 0; axis--)
+				axisLoaded[axis] = loadAxisTextures(axis);
+			if(mask != null)
+				for(int axis = 0; axis < 3; axis++)
+					if(axisLoaded[axis])
+						applyMask(axis);
+		} else {
+			long all = volume.getTextureMemory(X_AXIS)
+				+ volume.getTextureMemory(Y_AXIS)
+				+ volume.getTextureMemory(Z_AXIS);
+			if(all <= getTextureMemoryLimit())
+				for(int axis = 0; axis < 3; axis++)
+					if(axis != curAxis)
+						useAxis(axis);
+			useAxis(curAxis);
+			for(int axis = 0; axis < 3; axis++)
+				if(!axisLoaded[axis])
+					volume.releaseTextures(axis);
+		}
 		axisSwitch.setWhichChild(axisIndex[curAxis][curDir]);
 	}
 
+	/**
+	 * Returns whether the axes are loaded when they are viewed, and
+	 * released when they exceed the texture memory limit. Subclasses
+	 * which display slices of all axes at once return false.
+	 */
+	protected boolean isLoadedOnDemand() {
+		return true;
+	}
+
+	private static long getTextureMemoryLimit() {
+		return UniverseSettings.textureMemoryMB * (1L << 20);
+	}
+
+	/**
+	 * Loads the given axis if necessary and marks it as the most
+	 * recently used one. The least recently used other axes are
+	 * released while the texture memory exceeds the limit.
+	 */
+	private void useAxis(int axis) {
+		if(!axisLoaded[axis]) {
+			if(!texturesEnabled || !loadAxisTextures(axis))
+				return;
+			if(mask != null)
+				applyMask(axis);
+			axisLoaded[axis] = true;
+		}
+		loadedAxes.remove(Integer.valueOf(axis));
+		loadedAxes.add(axis);
+		long limit = getTextureMemoryLimit();
+		while(loadedAxes.size() > 1
+				&& volume.getTextureMemory() > limit)
+			releaseAxis(loadedAxes.get(0));
+		IJ.showStatus("Texture memory: "
+			+ (volume.getTextureMemory() >> 20) + " MB");
+	}
+
+	/**
+	 * Creates the textures of the given axis in parallel and loads it.
+	 * Returns false if loading was cancelled; the axis is released in
+	 * this case.
+	 */
+	private boolean loadAxisTextures(int axis) {
+		if(!createTextures(axis)) {
+			volume.releaseTextures(axis);
+			IJ.showStatus("Loading cancelled");
+			return false;
+		}
+		loadAxis(axis);
+		return true;
+	}
+
+	/**
+	 * Creates the textures of the given axis before loadAxis() is
+	 * called, see VoltexVolume.createTextures(). Subclasses which only
+	 * display some of the slices override this to create their
+	 * textures in loadAxis() instead.
+	 * @return false if loading was cancelled.
+	 */
+	protected boolean createTextures(int axis) {
+		return volume.createTextures(axis);
+	}
+
+	/**
+	 * Cancels the creation of textures, if it is running. May be
+	 * called from any thread.
+	 */
+	public void cancelLoading() {
+		volume.cancelLoading();
+	}
+
+	private void releaseAxis(int axis) {
+		((Group)axisSwitch.getChild(axisIndex[axis][FRONT]))
+			.removeAllChildren();
+		((Group)axisSwitch.getChild(axisIndex[axis][BACK]))
+			.removeAllChildren();
+		volume.releaseTextures(axis);
+		if(mask != null)
+			mask.releaseTextures(axis);
+		axisLoaded[axis] = false;
+		loadedAxes.remove(Integer.valueOf(axis));
+	}
+
 	/**
 	 * Set the threshold. Pixel value below the threshold are not rendered.
 	 * @param threshold